@@ -1,30 +1,83 @@
 package com.googlecode.gmail4j;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Message attachement.
+ * <p>
+ * Implementations may describe an attachement without its data, and fetch
+ * the data only when {@link #getData()} is called.
  *
  */
 public class GmailAttachment {
-    
+
     private int partIndex;
     private String fileName;
     private String contentType;
     private InputStream data;
-    
+    private String partPath;
+    private long size = -1;
+    private String encoding;
+
     public GmailAttachment(int partIndex, String fileName, String contentType, InputStream data) {
         super();
         this.partIndex = partIndex;
         this.fileName = fileName;
         this.contentType = contentType;
         this.data = data;
+        this.partPath = String.valueOf(partIndex + 1);
+    }
+
+    /**
+     * Constructor for an attachement whose data is opened by
+     * {@link #openData()}
+     *
+     * @param partPath path of the part in the message, i.e. {@code 2.1}
+     * @param fileName file name, can be null
+     * @param contentType MIME type
+     * @param size size in bytes in transfer encoding, -1 if unknown
+     * @param encoding transfer encoding, i.e. {@code base64}, can be null
+     * @since 0.5
+     */
+    protected GmailAttachment(String partPath, String fileName,
+            String contentType, long size, String encoding) {
+        super();
+        this.partPath = partPath;
+        this.partIndex = Integer.parseInt(
+                partPath.substring(partPath.lastIndexOf('.') + 1)) - 1;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.size = size;
+        this.encoding = encoding;
     }
 
+    /**
+     * Gets the index of the part in its parent multipart
+     *
+     * @return zero based part index
+     */
     public int getPartIndex() {
         return partIndex;
     }
 
+    /**
+     * Gets the path of the part in the message, as in IMAP section
+     * specifiers: {@code 2} is the second part of the message, {@code 2.1}
+     * is the first part of it.
+     *
+     * @return part path
+     * @since 0.5
+     */
+    public String getPartPath() {
+        return partPath;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -32,14 +85,168 @@ public class GmailAttachment {
     public String getContentType() {
         return contentType;
     }
-    
+
+    /**
+     * Gets the size of the attachement as stored in the message, in its
+     * transfer encoding. Decoded base64 data is about 3/4 of it.
+     *
+     * @return size in bytes, -1 if unknown
+     * @since 0.5
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the transfer encoding of the attachement
+     *
+     * @return encoding, i.e. {@code base64}, or null if unknown
+     * @since 0.5
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Gets the decoded data. If the attachement was created without data,
+     * every call opens a new stream with {@link #openData()}, which the
+     * caller should close.
+     *
+     * @return data stream
+     */
     public InputStream getData() {
-        return data;
+        if (data != null) {
+            return data;
+        }
+        return openData();
+    }
+
+    /**
+     * Opens the decoded data of an attachement created without data
+     *
+     * @return data stream
+     * @throws GmailException if data cannot be opened
+     * @since 0.5
+     */
+    protected InputStream openData() {
+        throw new UnsupportedOperationException("This GmailAttachment "
+                + "implementation does not provide openData()");
+    }
+
+    /**
+     * Writes the decoded data to a channel, through a buffer of fixed size
+     *
+     * @param channel channel to write to, left open
+     * @return number of bytes written
+     * @throws GmailException if data cannot be read or written
+     * @since 0.5
+     */
+    public long transferTo(WritableByteChannel channel) {
+        try {
+            return transferTo(channel, 0);
+        } catch (final IOException e) {
+            throw new GmailException("Failed transferring attachement "
+                    + partPath, e);
+        }
+    }
+
+    /**
+     * Writes the decoded data to a file, replacing its contents
+     *
+     * @param file file to write to
+     * @return number of bytes written
+     * @throws GmailException if data cannot be read or written
+     * @since 0.5
+     */
+    public long transferTo(File file) {
+        return transferTo(file, false);
+    }
+
+    /**
+     * Writes the decoded data to a file. When resuming, the bytes already in
+     * the file are taken as the start of the data, and only the rest is 
+     * appended, so an interrupted download can be continued.
+     *
+     * @param file file to write to
+     * @param resume true to continue after the bytes already in the file,
+     * false to replace its contents
+     * @return number of bytes written by this call
+     * @throws GmailException if data cannot be read or written
+     * @since 0.5
+     */
+    public long transferTo(File file, boolean resume) {
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            final FileChannel channel = out.getChannel();
+            final long skip = resume ? channel.size() : 0;
+            channel.truncate(skip);
+            channel.position(skip);
+            final long written = transferTo(channel, skip);
+            channel.force(false);
+            return written;
+        } catch (final IOException e) {
+            throw new GmailException("Failed transferring attachement "
+                    + partPath + " to " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the decoded data after the first bytes to a channel.
+     * Implementations that can fetch a range of the data should override it
+     * to avoid reading the skipped bytes.
+     *
+     * @param channel channel to write to, left open
+     * @param skip number of bytes at the start of the data to leave out
+     * @return number of bytes written
+     * @throws IOException if data cannot be read or written
+     * @since 0.5
+     */
+    public long transferTo(WritableByteChannel channel, long skip) 
+            throws IOException {
+        final InputStream in = getData();
+        try {
+            long skipped = 0;
+            while (skipped < skip) {
+                final long n = in.skip(skip - skipped);
+                if (n <= 0) {
+                    if (in.read() == -1) {
+                        return 0;
+                    }
+                    skipped++;
+                } else {
+                    skipped += n;
+                }
+            }
+            final byte[] buffer = new byte[8192];
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                final ByteBuffer block = ByteBuffer.wrap(buffer, 0, read);
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+                written += read;
+            }
+            return written;
+        } finally {
+            in.close();
+        }
     }
 
     @Override
     public String toString() {
-        return "GmailAttachment [partIndex=" + partIndex + ", fileName="
-                + fileName + ", contentType=" + contentType + "]";
+        return "GmailAttachment [partIndex=" + partIndex + ", partPath="
+                + partPath + ", fileName=" + fileName + ", contentType="
+                + contentType + ", size=" + size + ", encoding=" + encoding
+                + "]";
     }
 }
@@ -89,6 +89,16 @@ public class GmailConnection {
         this.loginCredentials = loginCredentials;
     }
 
+    /**
+     * Gets {@link #loginCredentials}
+     * 
+     * @return Gmail login credentials or null if not set
+     * @since 0.5
+     */
+    public Credentials getLoginCredentials() {
+        return loginCredentials;
+    }
+
     /**
      * Wrapper method for setting {@link #loginCredentials}
      * 
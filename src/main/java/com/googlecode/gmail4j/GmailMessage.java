@@ -283,4 +283,18 @@ public abstract class GmailMessage {
         throw new UnsupportedOperationException("This GmailMessage "
                 + "implementation does not provide getAttachment()");
     }
+
+    /**
+     * Get a specific attachement by the path of its part, as returned by
+     * {@link GmailAttachment#getPartPath()}. Unlike part index, the path
+     * also finds attachements in nested multiparts.
+     * 
+     * @param partPath part path, i.e. {@code 2.1}
+     * @return attachement, or null if the part is not an attachement
+     * @since 0.5
+     */
+    public GmailAttachment getAttachment(String partPath) {
+        throw new UnsupportedOperationException("This GmailMessage "
+                + "implementation does not provide getAttachment()");
+    }
 }
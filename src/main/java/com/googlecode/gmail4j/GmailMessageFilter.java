@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.search.BodyTerm;
+
+import com.googlecode.gmail4j.GmailClient.EmailSearchStrategy;
+import com.googlecode.gmail4j.javamail.JavaMailGmailMessage;
+
+/**
+ * Compiled criteria for {@link GmailMessageList#filterMessagesBy(GmailMessageFilter)}.
+ * <p>
+ * The value of a criterion is parsed once when the filter is compiled, so
+ * the same filter can be applied to any number of messages and lists
+ * without parsing dates or creating search terms for every message.
+ * Filters are immutable and can be shared between threads.
+ * <p>
+ * Example: unread messages from j.smith that are not about lunch:
+ * <p><blockquote><pre>
+ *     GmailMessageFilter filter = GmailMessageFilter
+ *             .compile(EmailSearchStrategy.UNREAD, "")
+ *             .and(EmailSearchStrategy.FROM, "j.smith@example.com")
+ *             .and(GmailMessageFilter.not(EmailSearchStrategy.SUBJECT, "lunch"));
+ *     for (GmailMessageList batch : batches) {
+ *         GmailMessageList matching = batch.filterMessagesBy(filter);
+ *     }
+ * </pre></blockquote></p>
+ *
+ * @see GmailMessageList#filterMessagesBy(GmailMessageFilter)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public abstract class GmailMessageFilter {
+
+    /**
+     * Human readable form of the filter for logging
+     */
+    private final String description;
+
+    /**
+     * Constructor with the description
+     *
+     * @param description human readable filter
+     */
+    GmailMessageFilter(final String description) {
+        this.description = description;
+    }
+
+    /**
+     * Tells if a message matches the filter
+     *
+     * @param message message to check
+     * @return true if message matches
+     * @throws GmailException if message cannot be read
+     */
+    public abstract boolean matches(GmailMessage message);
+
+    /**
+     * Adds message attributes needed by the filter to a fetch profile
+     *
+     * @param profile profile to add items to
+     */
+    abstract void addFetchItems(FetchProfile profile);
+
+    /**
+     * Compiles a single criterion, with the same meaning as in
+     * {@link GmailMessageList#filterMessagesBy(EmailSearchStrategy, String)}
+     *
+     * @param strategy search strategy
+     * @param value the value to look for, ignored by
+     * {@link EmailSearchStrategy#UNREAD}
+     * @return compiled filter
+     * @throws GmailException if strategy is null
+     */
+    public static GmailMessageFilter compile(final EmailSearchStrategy strategy,
+            final String value) {
+        if (strategy == null) {
+            throw new GmailException("GmailMessageFilter requires "
+                    + "EmailSearchStrategy");
+        }
+        final String description = strategy == EmailSearchStrategy.UNREAD
+                ? strategy.name() : strategy + " \"" + value + "\"";
+        switch (strategy) {
+            case SUBJECT:
+                return new SubjectFilter(description, value);
+            case DATE_EQ:
+            case DATE_GT:
+            case DATE_LT:
+                return new DateFilter(description, strategy,
+                        Date.parse(value));
+            case TO:
+                return new AddressFilter(description, value, false);
+            case CC:
+                return new AddressFilter(description, value, true);
+            case FROM:
+                return new FromFilter(description, value);
+            case KEYWORD:
+                return new KeywordFilter(description, value);
+            case UNREAD:
+                return new UnreadFilter(description);
+            default:
+                throw new GmailException("Unsupported search strategy: "
+                        + strategy);
+        }
+    }
+
+    /**
+     * Creates a filter that matches messages matching all given filters
+     *
+     * @param filters filters to combine
+     * @return new filter
+     * @throws GmailException if less than two filters are given
+     */
+    public static GmailMessageFilter and(final GmailMessageFilter... filters) {
+        checkCombined(filters);
+        return new CompositeFilter(join(filters, " AND "), filters.clone(),
+                true);
+    }
+
+    /**
+     * Creates a filter that matches messages matching any of given filters
+     *
+     * @param filters filters to combine
+     * @return new filter
+     * @throws GmailException if less than two filters are given
+     */
+    public static GmailMessageFilter or(final GmailMessageFilter... filters) {
+        checkCombined(filters);
+        return new CompositeFilter(join(filters, " OR "), filters.clone(),
+                false);
+    }
+
+    /**
+     * Creates a filter that matches messages not matching given filter
+     *
+     * @param filter filter to negate
+     * @return new filter
+     * @throws GmailException if filter is null
+     */
+    public static GmailMessageFilter not(final GmailMessageFilter filter) {
+        if (filter == null) {
+            throw new GmailException("GmailMessageFilter cannot negate "
+                    + "null filter");
+        }
+        return new NotFilter(filter);
+    }
+
+    /**
+     * Creates a filter that matches messages not matching given criterion
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return new filter
+     */
+    public static GmailMessageFilter not(final EmailSearchStrategy strategy,
+            final String value) {
+        return not(compile(strategy, value));
+    }
+
+    /**
+     * Combines this filter with another one using AND
+     *
+     * @param filter filter to add
+     * @return new filter
+     */
+    public GmailMessageFilter and(final GmailMessageFilter filter) {
+        return and(new GmailMessageFilter[] {this, filter});
+    }
+
+    /**
+     * Combines this filter with a criterion using AND
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return new filter
+     */
+    public GmailMessageFilter and(final EmailSearchStrategy strategy,
+            final String value) {
+        return and(compile(strategy, value));
+    }
+
+    /**
+     * Combines this filter with another one using OR
+     *
+     * @param filter filter to add
+     * @return new filter
+     */
+    public GmailMessageFilter or(final GmailMessageFilter filter) {
+        return or(new GmailMessageFilter[] {this, filter});
+    }
+
+    /**
+     * Combines this filter with a criterion using OR
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return new filter
+     */
+    public GmailMessageFilter or(final EmailSearchStrategy strategy,
+            final String value) {
+        return or(compile(strategy, value));
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Gets the JavaMail message of a message
+     *
+     * @param message message to check
+     * @return JavaMail message
+     * @throws GmailException if message does not come from JavaMail
+     */
+    static Message toJavaMail(final GmailMessage message) {
+        if (message instanceof JavaMailGmailMessage) {
+            return ((JavaMailGmailMessage) message).getMessage();
+        }
+        throw new GmailException("Filter requires JavaMailGmailMessage: "
+                + message.getClass().getName());
+    }
+
+    /**
+     * Checks that there are enough filters to combine
+     *
+     * @param filters filters to combine
+     * @throws GmailException if less than two filters are given
+     */
+    private static void checkCombined(final GmailMessageFilter[] filters) {
+        if (filters == null || filters.length < 2) {
+            throw new GmailException("GmailMessageFilter needs at least two "
+                    + "filters to combine");
+        }
+        for (final GmailMessageFilter filter : filters) {
+            if (filter == null) {
+                throw new GmailException("GmailMessageFilter cannot combine "
+                        + "null filter");
+            }
+        }
+    }
+
+    /**
+     * Joins filter descriptions in parentheses
+     *
+     * @param filters filters to join
+     * @param operator operator between filters, i.e. {@code " AND "}
+     * @return joined description
+     */
+    private static String join(final GmailMessageFilter[] filters,
+            final String operator) {
+        final StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < filters.length; i++) {
+            if (i > 0) {
+                sb.append(operator);
+            }
+            sb.append(filters[i].description);
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Matches subject exactly
+     */
+    private static final class SubjectFilter extends GmailMessageFilter {
+
+        private final String subject;
+
+        SubjectFilter(final String description, final String subject) {
+            super(description);
+            this.subject = subject;
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            return message.getSubject().equals(subject);
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            profile.add(FetchProfile.Item.ENVELOPE);
+        }
+    }
+
+    /**
+     * Compares the send date with a date parsed in advance
+     */
+    private static final class DateFilter extends GmailMessageFilter {
+
+        private final EmailSearchStrategy strategy;
+
+        private final long time;
+
+        DateFilter(final String description,
+                final EmailSearchStrategy strategy, final long time) {
+            super(description);
+            this.strategy = strategy;
+            this.time = time;
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            final long sent = message.getSendDate().getTime();
+            switch (strategy) {
+                case DATE_GT:
+                    return sent > time;
+                case DATE_LT:
+                    return sent < time;
+                default:
+                    return sent == time;
+            }
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            profile.add(FetchProfile.Item.ENVELOPE);
+        }
+    }
+
+    /**
+     * Matches any TO recipient address, or any CC recipient address when
+     * {@code cc} is set, ignoring case
+     */
+    private static final class AddressFilter extends GmailMessageFilter {
+
+        private final String email;
+
+        private final boolean cc;
+
+        AddressFilter(final String description, final String email,
+                final boolean cc) {
+            super(description);
+            this.email = email;
+            this.cc = cc;
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            final List<EmailAddress> addresses = cc ? message.getCc()
+                    : message.getTo();
+            for (int i = 0, n = addresses.size(); i < n; i++) {
+                if (addresses.get(i).getEmail().equalsIgnoreCase(email)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            profile.add(FetchProfile.Item.ENVELOPE);
+        }
+    }
+
+    /**
+     * Matches sender address, ignoring case
+     */
+    private static final class FromFilter extends GmailMessageFilter {
+
+        private final String email;
+
+        FromFilter(final String description, final String email) {
+            super(description);
+            this.email = email;
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            return message.getFrom().getEmail().equalsIgnoreCase(email);
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            profile.add(FetchProfile.Item.ENVELOPE);
+        }
+    }
+
+    /**
+     * Searches message body with one shared {@link BodyTerm}
+     */
+    private static final class KeywordFilter extends GmailMessageFilter {
+
+        private final BodyTerm term;
+
+        KeywordFilter(final String description, final String keyword) {
+            super(description);
+            this.term = new BodyTerm(keyword);
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            return term.match(toJavaMail(message));
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            profile.add(FetchProfile.Item.CONTENT_INFO);
+        }
+    }
+
+    /**
+     * Matches messages without the {@link Flags.Flag#SEEN} flag
+     */
+    private static final class UnreadFilter extends GmailMessageFilter {
+
+        UnreadFilter(final String description) {
+            super(description);
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            try {
+                // unlike getFlags(), isSet() does not copy the flags
+                return !toJavaMail(message).isSet(Flags.Flag.SEEN);
+            } catch (final GmailException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new GmailException("Failed reading message flags", e);
+            }
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            profile.add(FetchProfile.Item.FLAGS);
+        }
+    }
+
+    /**
+     * Combines filters with AND or OR, stopping at the first decisive one
+     */
+    private static final class CompositeFilter extends GmailMessageFilter {
+
+        private final GmailMessageFilter[] filters;
+
+        private final boolean all;
+
+        CompositeFilter(final String description,
+                final GmailMessageFilter[] filters, final boolean all) {
+            super(description);
+            this.filters = filters;
+            this.all = all;
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            for (final GmailMessageFilter filter : filters) {
+                if (filter.matches(message) != all) {
+                    return !all;
+                }
+            }
+            return all;
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            for (final GmailMessageFilter filter : filters) {
+                filter.addFetchItems(profile);
+            }
+        }
+    }
+
+    /**
+     * Negates a filter
+     */
+    private static final class NotFilter extends GmailMessageFilter {
+
+        private final GmailMessageFilter filter;
+
+        NotFilter(final GmailMessageFilter filter) {
+            super("NOT " + filter.description);
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean matches(final GmailMessage message) {
+            return !filter.matches(message);
+        }
+
+        @Override
+        void addFetchItems(final FetchProfile profile) {
+            filter.addFetchItems(profile);
+        }
+    }
+}
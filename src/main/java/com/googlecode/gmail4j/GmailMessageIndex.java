@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailClient.EmailSearchStrategy;
+
+/**
+ * In-memory index of a {@link GmailMessageList} for repeated queries.
+ * <p>
+ * Addresses, subjects and send dates of all messages are read once when the
+ * index is built. Address and subject queries are then hash lookups, and
+ * date queries are binary searches in a sorted array, instead of a scan of
+ * the whole list per query. Queries have the same meaning as in
+ * {@link GmailMessageList#filterMessagesBy(EmailSearchStrategy, String)}
+ * and return messages in list order.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     GmailMessageList messages = client.getMessagesBy(query);
+ *     GmailMessageIndex index = messages.buildIndex();
+ *     GmailMessageList fromBoss = index.find(EmailSearchStrategy.FROM,
+ *             "boss@example.com");
+ *     GmailMessageList lastWeek = index.findBetween(weekAgo, now);
+ *     // filterMessagesBy() uses the index too
+ *     GmailMessageList toMe = messages.filterMessagesBy(
+ *             EmailSearchStrategy.TO, "me@example.com");
+ * </pre></blockquote></p>
+ * Any change of the list makes the index out of date. It is then no longer
+ * used by the list, and querying it throws {@link GmailException}.
+ *
+ * @see GmailMessageList#buildIndex()
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class GmailMessageIndex {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(GmailMessageIndex.class);
+
+    /**
+     * No positions
+     */
+    private static final int[] NONE = new int[0];
+
+    /**
+     * Indexed list
+     */
+    private final GmailMessageList list;
+
+    /**
+     * {@link GmailMessageList#getVersion()} when the index was built
+     */
+    private final int version;
+
+    /**
+     * Positions of messages by lowercase sender address
+     */
+    private final Map<String, int[]> byFrom;
+
+    /**
+     * Positions of messages by lowercase TO address
+     */
+    private final Map<String, int[]> byTo;
+
+    /**
+     * Positions of messages by lowercase CC address
+     */
+    private final Map<String, int[]> byCc;
+
+    /**
+     * Positions of messages by subject
+     */
+    private final Map<String, int[]> bySubject;
+
+    /**
+     * Send times of messages in ascending order
+     */
+    private final long[] dates;
+
+    /**
+     * Positions of messages in the order of {@link #dates}
+     */
+    private final int[] dateOrder;
+
+    /**
+     * Builds the index
+     *
+     * @param list list to index
+     * @param version current version of the list
+     */
+    GmailMessageIndex(final GmailMessageList list, final int version) {
+        this.list = list;
+        this.version = version;
+        final int size = list.size();
+        final Map<String, Positions> from = new HashMap<String, Positions>();
+        final Map<String, Positions> to = new HashMap<String, Positions>();
+        final Map<String, Positions> cc = new HashMap<String, Positions>();
+        final Map<String, Positions> subject = new HashMap<String, Positions>();
+        final long[] times = new long[size];
+        final Integer[] order = new Integer[size];
+        int dated = 0;
+        for (int i = 0; i < size; i++) {
+            final GmailMessage message = list.get(i);
+            final EmailAddress sender = message.getFrom();
+            if (sender != null && sender.getEmail() != null) {
+                add(from, lower(sender.getEmail()), i);
+            }
+            addAll(to, message.getTo(), i);
+            addAll(cc, message.getCc(), i);
+            if (message.getSubject() != null) {
+                add(subject, message.getSubject(), i);
+            }
+            final Date sent = message.getSendDate();
+            if (sent != null) {
+                times[i] = sent.getTime();
+                order[dated++] = Integer.valueOf(i);
+            }
+        }
+        final Integer[] sorted = new Integer[dated];
+        System.arraycopy(order, 0, sorted, 0, dated);
+        // stable, so equal dates stay in list order
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(final Integer a, final Integer b) {
+                final long ta = times[a.intValue()];
+                final long tb = times[b.intValue()];
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        this.dates = new long[dated];
+        this.dateOrder = new int[dated];
+        for (int i = 0; i < dated; i++) {
+            dateOrder[i] = sorted[i].intValue();
+            dates[i] = times[dateOrder[i]];
+        }
+        this.byFrom = compact(from);
+        this.byTo = compact(to);
+        this.byCc = compact(cc);
+        this.bySubject = compact(subject);
+        log.debug("Indexed " + size + " emails");
+    }
+
+    /**
+     * Finds messages matching a criterion
+     *
+     * @param strategy search strategy, any but
+     * {@link EmailSearchStrategy#KEYWORD} and
+     * {@link EmailSearchStrategy#UNREAD}
+     * @param value the value to look for
+     * @return matching messages in list order
+     * @throws GmailException if strategy is not indexed or the index is out
+     * of date
+     */
+    public GmailMessageList find(final EmailSearchStrategy strategy,
+            final String value) {
+        checkCurrent();
+        if (!isIndexed(strategy)) {
+            throw new GmailException("GmailMessageIndex does not index "
+                    + strategy);
+        }
+        switch (strategy) {
+            case SUBJECT:
+                return toList(bySubject.get(value));
+            case FROM:
+                return toList(byFrom.get(lower(value)));
+            case TO:
+                return toList(byTo.get(lower(value)));
+            case CC:
+                return toList(byCc.get(lower(value)));
+            case DATE_EQ: {
+                final long time = Date.parse(value);
+                return toList(dateRange(lowerBound(time),
+                        lowerBound(time + 1)));
+            }
+            case DATE_GT:
+                return toList(dateRange(lowerBound(Date.parse(value) + 1),
+                        dates.length));
+            default:
+                return toList(dateRange(0, lowerBound(Date.parse(value))));
+        }
+    }
+
+    /**
+     * Finds messages sent within a period
+     *
+     * @param from start of the period, inclusive
+     * @param to end of the period, exclusive
+     * @return matching messages in list order
+     * @throws GmailException if the index is out of date
+     */
+    public GmailMessageList findBetween(final Date from, final Date to) {
+        checkCurrent();
+        final int start = lowerBound(from.getTime());
+        final int end = Math.max(start, lowerBound(to.getTime()));
+        return toList(dateRange(start, end));
+    }
+
+    /**
+     * Tells if the list has not changed since the index was built
+     *
+     * @return true if the index can be used
+     */
+    public boolean isCurrent() {
+        return list.getVersion() == version;
+    }
+
+    /**
+     * Tells if criteria of a strategy can be looked up in the index
+     *
+     * @param strategy search strategy
+     * @return true if strategy is indexed
+     */
+    static boolean isIndexed(final EmailSearchStrategy strategy) {
+        return strategy != null && strategy != EmailSearchStrategy.KEYWORD
+                && strategy != EmailSearchStrategy.UNREAD;
+    }
+
+    /**
+     * Checks that the index is not out of date
+     *
+     * @throws GmailException if the list has changed
+     */
+    private void checkCurrent() {
+        if (!isCurrent()) {
+            throw new GmailException("GmailMessageIndex is out of date, "
+                    + "the list has changed");
+        }
+    }
+
+    /**
+     * Finds the first position in {@link #dates} with time not less than
+     * given
+     *
+     * @param time time to look for
+     * @return position, {@code dates.length} if all dates are earlier
+     */
+    private int lowerBound(final long time) {
+        int low = 0;
+        int high = dates.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (dates[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Gets list positions of a range of {@link #dateOrder}
+     *
+     * @param start first position in {@link #dateOrder}
+     * @param end position after the last one
+     * @return list positions in ascending order
+     */
+    private int[] dateRange(final int start, final int end) {
+        final int[] positions = new int[end - start];
+        System.arraycopy(dateOrder, start, positions, 0, positions.length);
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    /**
+     * Creates a list of messages at given positions
+     *
+     * @param positions positions in ascending order, can be null
+     * @return list of messages
+     */
+    private GmailMessageList toList(final int[] positions) {
+        if (positions == null) {
+            return new GmailMessageList(0);
+        }
+        final GmailMessageList found = new GmailMessageList(positions.length);
+        for (final int position : positions) {
+            found.add(list.get(position));
+        }
+        return found;
+    }
+
+    /**
+     * Lowercases an address for case insensitive lookup
+     *
+     * @param email address
+     * @return lowercase address
+     */
+    private static String lower(final String email) {
+        return email == null ? null : email.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Adds a position under each address of a list
+     *
+     * @param map map to add to
+     * @param addresses addresses, can be null
+     * @param position position of the message
+     */
+    private static void addAll(final Map<String, Positions> map,
+            final List<EmailAddress> addresses, final int position) {
+        if (addresses == null) {
+            return;
+        }
+        for (final EmailAddress address : addresses) {
+            if (address != null && address.getEmail() != null) {
+                add(map, lower(address.getEmail()), position);
+            }
+        }
+    }
+
+    /**
+     * Adds a position under a key, once
+     *
+     * @param map map to add to
+     * @param key key
+     * @param position position of the message
+     */
+    private static void add(final Map<String, Positions> map, final String key,
+            final int position) {
+        Positions positions = map.get(key);
+        if (positions == null) {
+            positions = new Positions();
+            map.put(key, positions);
+        }
+        positions.add(position);
+    }
+
+    /**
+     * Turns growable position lists into arrays
+     *
+     * @param map map with growable lists
+     * @return map with arrays
+     */
+    private static Map<String, int[]> compact(final Map<String, Positions> map) {
+        final Map<String, int[]> result = new HashMap<String, int[]>(
+                map.size() * 4 / 3 + 1);
+        for (final Map.Entry<String, Positions> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return result;
+    }
+
+    /**
+     * Growable list of ascending positions
+     */
+    private static final class Positions {
+
+        private int[] values = new int[2];
+
+        private int size;
+
+        void add(final int position) {
+            if (size > 0 && values[size - 1] == position) {
+                // same address twice in one message
+                return;
+            }
+            if (size == values.length) {
+                final int[] grown = new int[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = position;
+        }
+
+        int[] toArray() {
+            if (size == 0) {
+                return NONE;
+            }
+            final int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -4,33 +4,115 @@ import com.googlecode.gmail4j.javamail.JavaMailGmailMessage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import javax.mail.Flags;
-import javax.mail.search.BodyTerm;
-import javax.mail.search.FlagTerm;
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
 
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.ListIterator;
-
-
-public class GmailMessageList implements List<GmailMessage> {
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * List of {@link GmailMessage}s backed by an array, so that access by index
+ * is constant time.
+ * <p>
+ * Message numbers and UIDs of the messages are kept in primitive arrays 
+ * next to the messages. They are read from a message the first time they 
+ * are needed, so {@link #indexOfMessageNumber(int)} and 
+ * {@link #indexOfUid(long)} do not touch the messages again. Message 
+ * numbers are remembered as they were when first read, so after messages 
+ * are expunged from the folder they may be out of date.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ */
+public class GmailMessageList extends AbstractList<GmailMessage> 
+        implements RandomAccess {
 
     /**
      * Logger
      */
     private static final Log LOG = LogFactory.getLog(GmailMessageList.class);
 
-    private List<GmailMessage> emails;
+    /**
+     * Smallest number of messages matched by one parallel filtering task
+     */
+    private static final int MIN_FILTER_CHUNK = 64;
+
+    /**
+     * Capacity of a list created without size hint
+     */
+    private static final int DEFAULT_CAPACITY = 10;
+
+    /**
+     * Messages, only first {@link #size} elements are used
+     */
+    private GmailMessage[] emails;
+
+    /**
+     * Message numbers of {@link #emails}, 0 if not read yet, -1 if unknown
+     */
+    private int[] messageNumbers;
+
+    /**
+     * UIDs of {@link #emails}, 0 if not read yet, -1 if unknown
+     */
+    private long[] uids;
+
+    /**
+     * Number of messages in the list
+     */
+    private int size;
+
+    /**
+     * Incremented on every change, including {@link #set(int, GmailMessage)}
+     */
+    private int version;
+
+    /**
+     * Index built with {@link #buildIndex()}, can be null or out of date
+     */
+    private GmailMessageIndex index;
 
     public GmailMessageList() {
-        emails = new LinkedList<GmailMessage>();
+        this(DEFAULT_CAPACITY);
     }
 
+    /**
+     * Constructor that allocates room for given number of messages, i.e.
+     * the number of search results
+     *
+     * @param initialCapacity expected number of messages
+     * @since 0.5
+     */
+    public GmailMessageList(final int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal capacity: " 
+                    + initialCapacity);
+        }
+        emails = new GmailMessage[initialCapacity];
+        messageNumbers = new int[initialCapacity];
+        uids = new long[initialCapacity];
+    }
+
+    /**
+     * Constructor that copies given messages. Unlike before 0.5, the list
+     * is not wrapped, so later changes of either list are not seen by the
+     * other.
+     *
+     * @param emails messages to add to the list
+     */
     public GmailMessageList(List<GmailMessage> emails) {
-        this.emails = emails;
+        this(emails.size());
+        addAll(emails);
     }
 
     /**
@@ -41,183 +123,515 @@ public class GmailMessageList implements List<GmailMessage> {
      */
     public GmailMessageList filterMessagesBy(GmailClient.EmailSearchStrategy strategy, String value)
             throws Exception {
-        LOG.debug("Retrieving emails where " + strategy.name() + " equals " + value);
-        List<GmailMessage> matchedEmails = new LinkedList<GmailMessage>();
-        Date dateToLookFor = null;
-        if (strategy == GmailClient.EmailSearchStrategy.DATE_EQ
-                || strategy == GmailClient.EmailSearchStrategy.DATE_GT
-                || strategy == GmailClient.EmailSearchStrategy.DATE_LT) {
-            dateToLookFor = new Date(Date.parse(value));
-        }
-        int total = emails.size();
-        int counter = 0;
-        boolean wasFound;
-        for (GmailMessage message : emails) {
-            switch (strategy) {
-                case SUBJECT:
-                    if (message.getSubject().equals(value)) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case DATE_EQ:
-                    if (message.getSendDate().compareTo(dateToLookFor) == 0) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case DATE_GT:
-                    if (message.getSendDate().compareTo(dateToLookFor) > 0) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case DATE_LT:
-                    if (message.getSendDate().compareTo(dateToLookFor) < 0) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case TO:
-                    wasFound = false;
-                    List<EmailAddress> emailAddressesTo = message.getTo();
-                    for (EmailAddress address : emailAddressesTo) {
-                        if (address.getEmail().equalsIgnoreCase(value)) {
-                            wasFound = true;
-                        }
-                    }
-                    if (wasFound) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case FROM:
-                    if (message.getFrom().getEmail().equalsIgnoreCase(value)) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case KEYWORD:
-                    if (((JavaMailGmailMessage)message).getMessage().match(new BodyTerm(value))) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case CC:
-                    wasFound = false;
-                    List<EmailAddress> emailAddressesCC = message.getCc();
-                    for (EmailAddress address : emailAddressesCC) {
-                        if (address.getEmail().equalsIgnoreCase(value)) {
-                            wasFound = true;
+        final GmailMessageIndex current = index;
+        if (current != null && current.isCurrent() 
+                && GmailMessageIndex.isIndexed(strategy)) {
+            LOG.debug("Looking up emails where " + strategy.name() 
+                    + " equals " + value + " in index");
+            return current.find(strategy, value);
+        }
+        return filterMessagesBy(GmailMessageFilter.compile(strategy, value));
+    }
+
+    /**
+     * Builds an index of addresses, subjects and send dates of the messages,
+     * which {@link #filterMessagesBy(GmailClient.EmailSearchStrategy, String)}
+     * then uses instead of scanning the list, until the list is changed.
+     *
+     * @return the index, which can also be queried directly
+     * @see GmailMessageIndex
+     * @since 0.5
+     */
+    public GmailMessageIndex buildIndex() {
+        index = new GmailMessageIndex(this, version);
+        return index;
+    }
+
+    /**
+     * Gets the number of changes made to the list, used to tell if an index
+     * is out of date
+     *
+     * @return change counter
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns list of {@link GmailMessage} objects matching a compiled 
+     * filter. The filter can be reused for any number of lists.
+     *
+     * @param filter compiled filter
+     * @return matching messages in list order
+     * @throws GmailException if messages cannot be read
+     * @see GmailMessageFilter
+     * @since 0.5
+     */
+    public GmailMessageList filterMessagesBy(final GmailMessageFilter filter) {
+        LOG.debug("Retrieving emails where " + filter);
+        List<GmailMessage> matchedEmails = new ArrayList<GmailMessage>();
+        int total = size;
+        boolean debug = LOG.isDebugEnabled();
+        for (int counter = 0; counter < total; counter++) {
+            if (filter.matches(emails[counter])) {
+                matchedEmails.add(emails[counter]);
+            }
+            if (debug) {
+                LOG.debug("Processing record: " + counter + " of " + total + "  "
+                        + Math.round( ((double)counter * 100) / ((double)total) ) + "% done");
+            }
+        }
+        return filtered(matchedEmails, filter);
+    }
+
+    /**
+     * Returns list of matching {@link GmailMessage} objects, evaluating the
+     * criteria in parallel on the given executor.
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @param executor executor to run matching on, not shut down here
+     * @return matching messages in list order
+     * @throws Exception if matching fails
+     * @see #filterMessagesBy(GmailMessageFilter, ExecutorService)
+     * @since 0.5
+     */
+    public GmailMessageList filterMessagesBy(
+            final GmailClient.EmailSearchStrategy strategy, final String value,
+            final ExecutorService executor) throws Exception {
+        return filterMessagesBy(GmailMessageFilter.compile(strategy, value), 
+                executor);
+    }
+
+    /**
+     * Returns list of {@link GmailMessage} objects matching a compiled 
+     * filter, evaluating it in parallel on the given executor.
+     * <p>
+     * Attributes needed by the filter are first prefetched for all 
+     * messages with one IMAP command per folder (envelope, flags or, for 
+     * {@link GmailClient.EmailSearchStrategy#KEYWORD}, body structure), then
+     * the list is split into ranges that are matched concurrently. Matches 
+     * are returned in list order. Note that message bodies needed for 
+     * {@link GmailClient.EmailSearchStrategy#KEYWORD} are still downloaded
+     * one by one over the connection of their folder.
+     * <p>
+     * Example:
+     * <p><blockquote><pre>
+     *     ExecutorService executor = Executors.newFixedThreadPool(
+     *             Runtime.getRuntime().availableProcessors());
+     *     GmailMessageList unread = messages.filterMessagesBy(
+     *             GmailMessageFilter.compile(EmailSearchStrategy.UNREAD, ""),
+     *             executor);
+     * </pre></blockquote></p>
+     *
+     * @param filter compiled filter
+     * @param executor executor to run matching on, not shut down here
+     * @return matching messages in list order
+     * @throws Exception if matching fails
+     * @since 0.5
+     */
+    public GmailMessageList filterMessagesBy(final GmailMessageFilter filter,
+            final ExecutorService executor) throws Exception {
+        LOG.debug("Retrieving emails in parallel where " + filter);
+        final GmailMessage[] messages = toArray(new GmailMessage[size]);
+        prefetch(messages, filter);
+        final int chunk = Math.max(MIN_FILTER_CHUNK, messages.length 
+                / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+        final List<Callable<List<GmailMessage>>> tasks = 
+                new ArrayList<Callable<List<GmailMessage>>>();
+        for (int i = 0; i < messages.length; i += chunk) {
+            final int from = i;
+            final int to = Math.min(messages.length, i + chunk);
+            tasks.add(new Callable<List<GmailMessage>>() {
+                public List<GmailMessage> call() {
+                    final List<GmailMessage> matched = 
+                            new ArrayList<GmailMessage>();
+                    for (int j = from; j < to; j++) {
+                        if (filter.matches(messages[j])) {
+                            matched.add(messages[j]);
                         }
                     }
-                    if (wasFound) {
-                        matchedEmails.add(message);
-                    }
-                    break;
-                case UNREAD:
-                    if (((JavaMailGmailMessage)message).getMessage()
-                            .match(new FlagTerm(new Flags(Flags.Flag.SEEN), false))) {
-                        matchedEmails.add(message);
-                    }
-                    break;
+                    return matched;
+                }
+            });
+        }
+        final List<GmailMessage> matchedEmails = new ArrayList<GmailMessage>();
+        for (final Future<List<GmailMessage>> result : executor.invokeAll(tasks)) {
+            try {
+                matchedEmails.addAll(result.get());
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return filtered(matchedEmails, filter);
+    }
+
+    /**
+     * Fetches attributes needed by a filter with one IMAP command per 
+     * folder. Failures are logged and attributes are then loaded lazily.
+     *
+     * @param messages messages to prefetch
+     * @param filter filter to prefetch for
+     */
+    private static void prefetch(final GmailMessage[] messages,
+            final GmailMessageFilter filter) {
+        final FetchProfile profile = new FetchProfile();
+        filter.addFetchItems(profile);
+        final Map<Folder, List<Message>> byFolder = 
+                new LinkedHashMap<Folder, List<Message>>();
+        for (final GmailMessage message : messages) {
+            if (!(message instanceof JavaMailGmailMessage)) {
+                continue;
+            }
+            final Message msg = ((JavaMailGmailMessage) message).getMessage();
+            final Folder folder = msg.getFolder();
+            if (folder == null || !folder.isOpen()) {
+                continue;
+            }
+            List<Message> folderMessages = byFolder.get(folder);
+            if (folderMessages == null) {
+                folderMessages = new ArrayList<Message>();
+                byFolder.put(folder, folderMessages);
+            }
+            folderMessages.add(msg);
+        }
+        for (final Map.Entry<Folder, List<Message>> entry : byFolder.entrySet()) {
+            try {
+                entry.getKey().fetch(entry.getValue().toArray(
+                        new Message[entry.getValue().size()]), profile);
+            } catch (final Exception e) {
+                LOG.warn("Failed prefetching messages for filtering", e);
             }
-            LOG.debug("Processing record: " + counter + " of " + total + "  "
-                    + Math.round( ((double)counter * 100) / ((double)total) ) + "% done");
-            counter++;
         }
+    }
+
+    /**
+     * Logs the outcome of filtering and wraps matches into a list
+     *
+     * @param matchedEmails matching messages
+     * @param filter applied filter
+     * @return list of matching messages
+     */
+    private GmailMessageList filtered(final List<GmailMessage> matchedEmails,
+            final GmailMessageFilter filter) {
         if (matchedEmails.size() == 0) {
-            LOG.debug("No emails found with " + strategy.name() + " of " + value);
+            LOG.debug("No emails found with " + filter);
         }
         else {
-            LOG.debug("Filtered down to " + matchedEmails.size() + " from " + this.emails.size()
-                    + " on criteria " + strategy.name() + " equal to " + value);
+            LOG.debug("Filtered down to " + matchedEmails.size() + " from " + size
+                    + " on criteria " + filter);
         }
         return new GmailMessageList(matchedEmails);
     }
 
-    public int size() {
-        return emails.size();
+    /**
+     * Gets the message number of a message in the list
+     *
+     * @param index index of the message
+     * @return message number, or -1 if the message does not have one
+     * @see GmailMessage#getMessageNumber()
+     * @since 0.5
+     */
+    public int getMessageNumber(final int index) {
+        checkIndex(index);
+        if (messageNumbers[index] == 0) {
+            try {
+                final int number = emails[index].getMessageNumber();
+                messageNumbers[index] = number > 0 ? number : -1;
+            } catch (final UnsupportedOperationException e) {
+                messageNumbers[index] = -1;
+            }
+        }
+        return messageNumbers[index];
+    }
+
+    /**
+     * Gets the UID of a message in the list
+     *
+     * @param index index of the message
+     * @return UID, or -1 if the message does not come from an IMAP folder
+     * @see JavaMailGmailMessage#getUid()
+     * @since 0.5
+     */
+    public long getUid(final int index) {
+        checkIndex(index);
+        if (uids[index] == 0) {
+            final GmailMessage message = emails[index];
+            try {
+                uids[index] = message instanceof JavaMailGmailMessage 
+                        ? ((JavaMailGmailMessage) message).getUid() : -1;
+            } catch (final GmailException e) {
+                // i.e. a new message that is not in a folder
+                uids[index] = -1;
+            }
+        }
+        return uids[index];
     }
 
-    public boolean isEmpty() {
-        return emails.isEmpty();
+    /**
+     * Gets message numbers of all messages, i.e. for 
+     * {@link com.googlecode.gmail4j.javamail.ImapGmailClient#markAsRead(int[])}
+     *
+     * @return message numbers in list order
+     * @see #getMessageNumber(int)
+     * @since 0.5
+     */
+    public int[] getMessageNumbers() {
+        final int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = getMessageNumber(i);
+        }
+        return result;
     }
 
-    public boolean contains(Object o) {
-        return emails.contains(o);
+    /**
+     * Gets UIDs of all messages, i.e. for 
+     * {@link com.googlecode.gmail4j.javamail.ImapGmailClient#markAsReadByUid(long[])}
+     *
+     * @return UIDs in list order
+     * @see #getUid(int)
+     * @since 0.5
+     */
+    public long[] getUids() {
+        final long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = getUid(i);
+        }
+        return result;
     }
 
-    public Iterator iterator() {
-        return emails.iterator();
+    /**
+     * Finds the message with given message number
+     *
+     * @param messageNumber message number to look for
+     * @return index of the first such message, or -1 if there is none
+     * @since 0.5
+     */
+    public int indexOfMessageNumber(final int messageNumber) {
+        for (int i = 0; i < size; i++) {
+            if (getMessageNumber(i) == messageNumber) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public Object[] toArray() {
-        return emails.toArray();
+    /**
+     * Finds the message with given UID
+     *
+     * @param uid UID to look for
+     * @return index of the first such message, or -1 if there is none
+     * @since 0.5
+     */
+    public int indexOfUid(final long uid) {
+        for (int i = 0; i < size; i++) {
+            if (getUid(i) == uid) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public boolean add(GmailMessage o) {
-        return emails.add((GmailMessage)o);
+    @Override
+    public int size() {
+        return size;
     }
 
-    public boolean remove(Object o) {
-        return emails.remove(o);
+    @Override
+    public GmailMessage get(int index) {
+        checkIndex(index);
+        return emails[index];
     }
 
-    public boolean containsAll(Collection<?> c) {
-        return emails.containsAll(c);
+    @Override
+    public GmailMessage set(int index, GmailMessage element) {
+        checkIndex(index);
+        final GmailMessage old = emails[index];
+        emails[index] = element;
+        messageNumbers[index] = 0;
+        uids[index] = 0;
+        changed();
+        return old;
     }
 
-    public boolean addAll(Collection c) {
-        return emails.addAll((Collection<GmailMessage>) c);
+    @Override
+    public boolean add(GmailMessage element) {
+        ensureCapacity(size + 1);
+        emails[size++] = element;
+        modCount++;
+        changed();
+        return true;
     }
 
-    public boolean addAll(int index, Collection c) {
-        return emails.addAll(index, (Collection<GmailMessage>) c);
+    @Override
+    public void add(int index, GmailMessage element) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index 
+                    + ", Size: " + size);
+        }
+        ensureCapacity(size + 1);
+        shift(index, index + 1, size - index);
+        emails[index] = element;
+        messageNumbers[index] = 0;
+        uids[index] = 0;
+        size++;
+        modCount++;
+        changed();
     }
 
-    public boolean removeAll(Collection<?> c) {
-        return emails.removeAll(c);
+    @Override
+    public boolean addAll(Collection<? extends GmailMessage> c) {
+        ensureCapacity(size + c.size());
+        for (final GmailMessage message : c) {
+            emails[size++] = message;
+        }
+        modCount++;
+        changed();
+        return !c.isEmpty();
     }
 
-    public boolean retainAll(Collection<?> c) {
-        return emails.retainAll(c);
+    @Override
+    public GmailMessage remove(int index) {
+        checkIndex(index);
+        final GmailMessage old = emails[index];
+        shift(index + 1, index, size - index - 1);
+        size--;
+        clearRange(size, size + 1);
+        modCount++;
+        changed();
+        return old;
     }
 
+    @Override
     public void clear() {
-        emails.clear();
+        clearRange(0, size);
+        size = 0;
+        modCount++;
+        changed();
     }
 
-    public GmailMessage get(int index) {
-        return emails.get(index);
+    @Override
+    public int indexOf(Object o) {
+        for (int i = 0; i < size; i++) {
+            if (o == null ? emails[i] == null : o.equals(emails[i])) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public GmailMessage set(int index, GmailMessage element) {
-        return emails.set(index,(GmailMessage)element);
+    @Override
+    public int lastIndexOf(Object o) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (o == null ? emails[i] == null : o.equals(emails[i])) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public void add(int index, GmailMessage element) {
-        emails.add(index,(GmailMessage)element);
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
     }
 
-    public GmailMessage remove(int index) {
-        return emails.remove(index);
+    @Override
+    public Object[] toArray() {
+        final Object[] result = new Object[size];
+        System.arraycopy(emails, 0, result, 0, size);
+        return result;
     }
 
-    public int indexOf(Object o) {
-        return emails.indexOf(o);
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        final T[] result = a.length >= size ? a : (T[]) java.lang.reflect.Array
+                .newInstance(a.getClass().getComponentType(), size);
+        System.arraycopy(emails, 0, result, 0, size);
+        if (result.length > size) {
+            result[size] = null;
+        }
+        return result;
     }
 
-    public int lastIndexOf(Object o) {
-        return emails.lastIndexOf(o);
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        shift(toIndex, fromIndex, size - toIndex);
+        final int oldSize = size;
+        size -= toIndex - fromIndex;
+        clearRange(size, oldSize);
+        modCount++;
+        changed();
     }
 
-    public ListIterator listIterator() {
-        return emails.listIterator();
+    /**
+     * Records a change of the list, dropping the index
+     */
+    private void changed() {
+        version++;
+        index = null;
     }
 
-    public ListIterator listIterator(int index) {
-        return emails.listIterator(index);
+    /**
+     * Grows the arrays to hold at least given number of messages
+     *
+     * @param capacity required capacity
+     */
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= emails.length) {
+            return;
+        }
+        final int grown = Math.max(capacity, emails.length * 3 / 2 + 1);
+        final GmailMessage[] newEmails = new GmailMessage[grown];
+        System.arraycopy(emails, 0, newEmails, 0, size);
+        final int[] newNumbers = new int[grown];
+        System.arraycopy(messageNumbers, 0, newNumbers, 0, size);
+        final long[] newUids = new long[grown];
+        System.arraycopy(uids, 0, newUids, 0, size);
+        emails = newEmails;
+        messageNumbers = newNumbers;
+        uids = newUids;
     }
 
-    public List subList(int fromIndex, int toIndex) {
-        return emails.subList(fromIndex,toIndex);
+    /**
+     * Moves a range of messages and their side data inside the arrays
+     *
+     * @param from index of the first message to move
+     * @param to new index of the first message
+     * @param length number of messages to move
+     */
+    private void shift(final int from, final int to, final int length) {
+        System.arraycopy(emails, from, emails, to, length);
+        System.arraycopy(messageNumbers, from, messageNumbers, to, length);
+        System.arraycopy(uids, from, uids, to, length);
+    }
+
+    /**
+     * Clears unused array slots, so that removed messages can be collected
+     * and lazily read values are not reused
+     *
+     * @param from index of the first slot to clear
+     * @param to index after the last slot to clear
+     */
+    private void clearRange(final int from, final int to) {
+        Arrays.fill(emails, from, to, null);
+        Arrays.fill(messageNumbers, from, to, 0);
+        Arrays.fill(uids, from, to, 0);
     }
 
-    public Object[] toArray(Object[] a) {
-        return emails.toArray((GmailMessage[])a);
+    /**
+     * Checks that the index refers to a message in the list
+     *
+     * @param index index to check
+     * @throws IndexOutOfBoundsException if it does not
+     */
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index 
+                    + ", Size: " + size);
+        }
     }
 }
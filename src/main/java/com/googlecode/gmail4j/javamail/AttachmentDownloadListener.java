@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.File;
+import java.util.EventListener;
+
+import com.googlecode.gmail4j.GmailAttachment;
+
+/**
+ * Listener of attachment downloads of an {@link ImapAttachmentDownloader}.
+ * <p>
+ * Listeners are called on the download threads, for several attachments 
+ * at the same time, so they must be thread safe and should return quickly.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public interface AttachmentDownloadListener extends EventListener {
+
+    /**
+     * Called after every block of an attachment is written
+     *
+     * @param attachment attachment being downloaded
+     * @param bytesWritten bytes of the attachment written so far by this 
+     * download
+     */
+    void downloadProgress(GmailAttachment attachment, long bytesWritten);
+
+    /**
+     * Called when an attachment has been downloaded
+     *
+     * @param attachment downloaded attachment
+     * @param file file with the attachment data
+     */
+    void downloadCompleted(GmailAttachment attachment, File file);
+
+    /**
+     * Called when download of an attachment fails. Other attachments are
+     * still downloaded.
+     *
+     * @param attachment attachment that failed
+     * @param file file that was written to
+     * @param error cause of the failure
+     */
+    void downloadFailed(GmailAttachment attachment, File file, Exception error);
+}
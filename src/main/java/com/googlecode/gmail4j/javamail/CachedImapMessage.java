@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * Format of {@link ImapMessageCache} values: the IMAP flag list of the 
+ * message on the first line, i.e. {@code (\Seen $Label1)}, followed by the
+ * RFC 822 content as fetched from the server.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+final class CachedImapMessage {
+
+    /**
+     * Utility class
+     */
+    private CachedImapMessage() {
+    }
+
+    /**
+     * Encodes a message for the cache
+     *
+     * @param flags message flags
+     * @param content RFC 822 content of the message
+     * @return cache value
+     */
+    static byte[] encode(final Flags flags, final byte[] content) {
+        final byte[] line = ascii(ImapCommands.toFlagList(flags) + "\r\n");
+        final byte[] value = new byte[line.length + content.length];
+        System.arraycopy(line, 0, value, 0, line.length);
+        System.arraycopy(content, 0, value, line.length, content.length);
+        return value;
+    }
+
+    /**
+     * Replaces the flags of a cache value, keeping the content
+     *
+     * @param value cache value
+     * @param flags new message flags
+     * @return new cache value
+     */
+    static byte[] withFlags(final byte[] value, final Flags flags) {
+        final int start = contentStart(value);
+        final byte[] content = new byte[value.length - start];
+        System.arraycopy(value, start, content, 0, content.length);
+        return encode(flags, content);
+    }
+
+    /**
+     * Reads the flags of a cache value
+     *
+     * @param value cache value
+     * @return message flags
+     */
+    static Flags getFlags(final byte[] value) {
+        final int start = contentStart(value);
+        // flag list without "(" and ")\r\n"
+        try {
+            return ImapCommands.parseFlags(
+                    new String(value, 1, start - 4, "US-ASCII"));
+        } catch (final UnsupportedEncodingException e) {
+            throw new GmailException("US-ASCII is not supported", e);
+        }
+    }
+
+    /**
+     * Creates a message from a cache value. The message is not attached to
+     * a folder.
+     *
+     * @param value cache value
+     * @param uid UID of the message
+     * @return message with flags and UID
+     * @throws GmailException if value is not a cached message
+     */
+    static JavaMailGmailMessage toMessage(final byte[] value, final long uid) {
+        final int start = contentStart(value);
+        try {
+            final MimeMessage source = new MimeMessage((Session) null, 
+                    new ByteArrayInputStream(value, start, 
+                            value.length - start));
+            source.setFlags(getFlags(value), true);
+            final JavaMailGmailMessage message = 
+                    new JavaMailGmailMessage(source);
+            message.setUid(uid);
+            return message;
+        } catch (final MessagingException e) {
+            throw new GmailException("Failed parsing cached message " + uid, e);
+        }
+    }
+
+    /**
+     * Finds the end of the flag line
+     *
+     * @param value cache value
+     * @return offset of the content
+     * @throws GmailException if value has no flag line
+     */
+    private static int contentStart(final byte[] value) {
+        if (value.length > 0 && value[0] == '(') {
+            for (int i = 1; i + 1 < value.length; i++) {
+                if (value[i - 1] == ')' && value[i] == '\r' 
+                        && value[i + 1] == '\n') {
+                    return i + 2;
+                }
+            }
+        }
+        throw new GmailException("Not a cached message");
+    }
+
+    /**
+     * Encodes ASCII text
+     *
+     * @param text text
+     * @return bytes
+     */
+    private static byte[] ascii(final String text) {
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (final UnsupportedEncodingException e) {
+            throw new GmailException("US-ASCII is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * {@link ImapMessageCache} that keeps entries on disk, so they survive 
+ * restarts.
+ * <p>
+ * Entries are appended to segment files of about {@link #getSegmentSize()}
+ * bytes, and read through memory mapped buffers of the segments, so a read
+ * is a copy from the page cache. An in-memory index of key positions is 
+ * rebuilt from the segments when the cache is created. When the segments 
+ * take more than {@link #getMaxSize()} bytes, the oldest segment is 
+ * deleted with all entries in it. Replaced and removed entries take space
+ * until their segment is deleted.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     FileImapMessageCache cache = new FileImapMessageCache(
+ *             new File("messages"), 1024L * 1024 * 1024);
+ *     client.setMessageCache(cache);
+ *     //on shutdown
+ *     cache.close();
+ * </pre></blockquote></p>
+ * Writes are not forced to disk until {@link #close()}; entries written 
+ * just before a crash may be lost, which is detected and cut off when the
+ * segments are read. Cache is thread safe; it should not be shared by 
+ * processes.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class FileImapMessageCache implements ImapMessageCache, Closeable {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(FileImapMessageCache.class);
+
+    /**
+     * Largest default segment size in bytes
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * File name suffix of segments, which are named by their number
+     */
+    private static final String SUFFIX = ".segment";
+
+    /**
+     * Value length of a record that removes the key
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * Directory with the segments
+     */
+    private final File directory;
+
+    /**
+     * Maximum total size of segments in bytes
+     */
+    private final long maxSize;
+
+    /**
+     * Size after which a new segment is started
+     */
+    private final long segmentSize;
+
+    /**
+     * Segments, oldest first; the last one is written to
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Position of the current value of every key
+     */
+    private final Map<String, Location> index = new HashMap<String, Location>();
+
+    /**
+     * Total size of segments in bytes
+     */
+    private long size;
+
+    /**
+     * Set by {@link #close()}
+     */
+    private boolean closed;
+
+    /**
+     * Constructor with the cache directory and size limit. Segments are at 
+     * most {@link #DEFAULT_SEGMENT_SIZE} and a quarter of the limit.
+     *
+     * @param directory directory to keep segments in
+     * @param maxSize maximum total size of segments in bytes
+     * @throws GmailException if directory cannot be created or read
+     */
+    public FileImapMessageCache(final File directory, final long maxSize) {
+        this(directory, maxSize, 
+                Math.min(DEFAULT_SEGMENT_SIZE, Math.max(1, maxSize / 4)));
+    }
+
+    /**
+     * Constructor with the cache directory, size limit and segment size.
+     * Existing segments in the directory are read.
+     *
+     * @param directory directory to keep segments in
+     * @param maxSize maximum total size of segments in bytes
+     * @param segmentSize size after which a new segment is started
+     * @throws GmailException if sizes are invalid or directory cannot be 
+     * created or read
+     */
+    public FileImapMessageCache(final File directory, final long maxSize,
+            final long segmentSize) {
+        if (maxSize <= 0 || segmentSize <= 0 
+                || segmentSize > Integer.MAX_VALUE / 2) {
+            throw new GmailException("FileImapMessageCache sizes must be "
+                    + "positive and segments smaller than 1 GB");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new GmailException("Cannot create message cache directory "
+                    + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        try {
+            load();
+        } catch (final IOException e) {
+            close();
+            throw new GmailException("Failed reading message cache "
+                    + directory, e);
+        }
+    }
+
+    /**
+     * Gets {@link #maxSize}
+     *
+     * @return maximum total size of segments in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets {@link #segmentSize}
+     *
+     * @return size after which a new segment is started
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Gets {@link #size}
+     *
+     * @return total size of segments in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of entries
+     *
+     * @return number of entries
+     */
+    public synchronized int getCount() {
+        return index.size();
+    }
+
+    public synchronized byte[] get(final String key) {
+        checkOpen();
+        final Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            final ByteBuffer buffer = location.segment.map(
+                    location.position + location.length).duplicate();
+            buffer.position(location.position);
+            final byte[] value = new byte[location.length];
+            buffer.get(value);
+            return value;
+        } catch (final IOException e) {
+            throw new GmailException("Failed reading message cache entry " 
+                    + key, e);
+        }
+    }
+
+    public synchronized void put(final String key, final byte[] value) {
+        checkOpen();
+        try {
+            index.put(key, append(key, value));
+            evict();
+        } catch (final IOException e) {
+            index.remove(key);
+            throw new GmailException("Failed writing message cache entry " 
+                    + key, e);
+        }
+    }
+
+    public synchronized void remove(final String key) {
+        checkOpen();
+        if (index.remove(key) != null) {
+            try {
+                append(key, null);
+            } catch (final IOException e) {
+                throw new GmailException("Failed removing message cache "
+                        + "entry " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Writes pending data to disk and closes the segments
+     */
+    public synchronized void close() {
+        closed = true;
+        for (final Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    /**
+     * Appends a record of a key to the last segment, starting a new segment
+     * if it is full
+     *
+     * @param key key
+     * @param value value, null to remove the key
+     * @return location of the value
+     * @throws IOException if record cannot be written
+     */
+    private Location append(final String key, final byte[] value) 
+            throws IOException {
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.size >= segmentSize) {
+            segment = newSegment(segment.id + 1);
+        }
+        final byte[] name = encode(key);
+        final ByteBuffer header = ByteBuffer.allocate(8 + name.length);
+        header.putInt(name.length).put(name);
+        header.putInt(value == null ? REMOVED : value.length);
+        header.flip();
+        final ByteBuffer[] record = value == null ? new ByteBuffer[] {header}
+                : new ByteBuffer[] {header, ByteBuffer.wrap(value)};
+        final long length = header.limit() + (value == null ? 0 : value.length);
+        segment.channel.position(segment.size);
+        long written = 0;
+        while (written < length) {
+            written += segment.channel.write(record);
+        }
+        final Location location = new Location(segment, 
+                (int) segment.size + header.limit(), 
+                value == null ? 0 : value.length);
+        segment.size += length;
+        size += length;
+        return location;
+    }
+
+    /**
+     * Deletes oldest segments until the size is within {@link #maxSize}, 
+     * keeping the last one
+     */
+    private void evict() {
+        while (size > maxSize && segments.size() > 1) {
+            final Segment oldest = segments.remove(0);
+            final Iterator<Location> it = index.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().segment == oldest) {
+                    it.remove();
+                }
+            }
+            size -= oldest.size;
+            oldest.close();
+            if (!oldest.file.delete()) {
+                log.warn("Cannot delete message cache segment " + oldest.file);
+            }
+            log.debug("Evicted message cache segment " + oldest.file);
+        }
+    }
+
+    /**
+     * Opens the segments in {@link #directory} and reads their records into
+     * {@link #index}
+     *
+     * @throws IOException if segments cannot be read
+     */
+    private void load() throws IOException {
+        final File[] files = directory.listFiles();
+        final List<Long> ids = new ArrayList<Long>();
+        for (final File file : files == null ? new File[0] : files) {
+            final String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    ids.add(Long.valueOf(name.substring(0, 
+                            name.length() - SUFFIX.length())));
+                } catch (final NumberFormatException e) {
+                    log.debug("Not a message cache segment: " + file);
+                }
+            }
+        }
+        final Long[] sorted = ids.toArray(new Long[ids.size()]);
+        Arrays.sort(sorted);
+        for (final Long id : sorted) {
+            final Segment segment = new Segment(id.longValue());
+            segments.add(segment);
+            scan(segment);
+            size += segment.size;
+        }
+        if (segments.isEmpty()) {
+            newSegment(1);
+        }
+        log.debug("Loaded " + index.size() + " cached messages from " 
+                + directory);
+    }
+
+    /**
+     * Reads the records of a segment into {@link #index}, cutting off a 
+     * record that was not written completely
+     *
+     * @param segment segment to read
+     * @throws IOException if segment cannot be read
+     */
+    private void scan(final Segment segment) throws IOException {
+        final long length = segment.size;
+        final ByteBuffer buffer = segment.map(length).duplicate();
+        int position = 0;
+        while (position + 8 <= length) {
+            final int nameLength = buffer.getInt(position);
+            if (nameLength <= 0 || position + 8L + nameLength > length) {
+                break;
+            }
+            final byte[] name = new byte[nameLength];
+            buffer.position(position + 4);
+            buffer.get(name);
+            final int valueLength = buffer.getInt(position + 4 + nameLength);
+            final int valuePosition = position + 8 + nameLength;
+            final String key = decode(name);
+            if (valueLength == REMOVED) {
+                index.remove(key);
+                position = valuePosition;
+            } else if (valueLength < 0 
+                    || (long) valuePosition + valueLength > length) {
+                break;
+            } else {
+                index.put(key, new Location(segment, valuePosition, 
+                        valueLength));
+                position = valuePosition + valueLength;
+            }
+        }
+        if (position < length) {
+            log.warn("Cutting off incomplete record of message cache " 
+                    + "segment " + segment.file + " at " + position);
+            segment.truncate(position);
+        }
+    }
+
+    /**
+     * Starts a new segment to write to
+     *
+     * @param id number of the segment
+     * @return new segment
+     * @throws IOException if segment cannot be created
+     */
+    private Segment newSegment(final long id) throws IOException {
+        final Segment segment = new Segment(id);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Checks that the cache is not closed
+     *
+     * @throws GmailException if cache is closed
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new GmailException("FileImapMessageCache is closed");
+        }
+    }
+
+    /**
+     * Encodes a key as UTF-8
+     *
+     * @param key key
+     * @return encoded key
+     */
+    private static byte[] encode(final String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new GmailException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 key
+     *
+     * @param name encoded key
+     * @return key
+     */
+    private static String decode(final byte[] name) {
+        try {
+            return new String(name, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new GmailException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Position of a value in a segment
+     */
+    private static final class Location {
+
+        /**
+         * Segment of the value
+         */
+        final Segment segment;
+
+        /**
+         * Offset of the value in the segment
+         */
+        final int position;
+
+        /**
+         * Length of the value
+         */
+        final int length;
+
+        /**
+         * Constructor
+         *
+         * @param segment segment of the value
+         * @param position offset of the value in the segment
+         * @param length length of the value
+         */
+        Location(final Segment segment, final int position, final int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Segment file with its channel and mapped buffer
+     */
+    private final class Segment {
+
+        /**
+         * Number of the segment, increasing with age
+         */
+        final long id;
+
+        /**
+         * Segment file
+         */
+        final File file;
+
+        /**
+         * Open file
+         */
+        final RandomAccessFile raf;
+
+        /**
+         * Channel of the file
+         */
+        final FileChannel channel;
+
+        /**
+         * Bytes written to the segment
+         */
+        long size;
+
+        /**
+         * Read-only mapping of the segment, remapped when it has grown
+         */
+        private MappedByteBuffer map;
+
+        /**
+         * Opens or creates a segment
+         *
+         * @param id number of the segment
+         * @throws IOException if file cannot be opened
+         */
+        Segment(final long id) throws IOException {
+            this.id = id;
+            this.file = new File(directory, id + SUFFIX);
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * Gets a mapping of the segment that covers given length
+         *
+         * @param length number of bytes from the start that must be mapped
+         * @return mapped buffer
+         * @throws IOException if segment cannot be mapped
+         */
+        MappedByteBuffer map(final long length) throws IOException {
+            if (map == null || map.limit() < length) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return map;
+        }
+
+        /**
+         * Cuts the segment to given size
+         *
+         * @param length new size
+         * @throws IOException if file cannot be truncated
+         */
+        void truncate(final long length) throws IOException {
+            map = null;
+            channel.truncate(length);
+            size = length;
+        }
+
+        /**
+         * Forces written data to disk and closes the file, ignoring errors
+         */
+        void close() {
+            map = null;
+            try {
+                channel.force(false);
+                raf.close();
+            } catch (final IOException e) {
+                log.warn("Cannot close message cache segment " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * {@link ImapSyncStateStore} that keeps the state in a properties file, so 
+ * sync continues where it stopped after a restart.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     ImapSyncStateStore store = new FileImapSyncStateStore(
+ *             new File("gmail-sync.properties"));
+ *     ImapSyncResult result = client.sync(store);
+ * </pre></blockquote></p>
+ * The file is rewritten on every {@link #save(String, ImapSyncState)}, 
+ * through a temporary file, so a crash never leaves it half written.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class FileImapSyncStateStore implements ImapSyncStateStore {
+
+    /**
+     * Properties file with the state
+     */
+    private final File file;
+
+    /**
+     * Loaded state, property values are 
+     * {@code uidValidity:uidNext:highestModSeq}
+     */
+    private final Properties properties = new Properties();
+
+    /**
+     * Constructor with the properties file, which is read if it exists
+     *
+     * @param file properties file
+     * @throws GmailException if file exists but cannot be read
+     */
+    public FileImapSyncStateStore(final File file) {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+            } catch (final IOException e) {
+                throw new GmailException("Failed reading sync state from " 
+                        + file, e);
+            } finally {
+                close(in);
+            }
+        }
+    }
+
+    public synchronized ImapSyncState load(final String key) {
+        final String value = properties.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        final String[] parts = value.split(":");
+        try {
+            return new ImapSyncState(Long.parseLong(parts[0]), 
+                    Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (final RuntimeException e) {
+            throw new GmailException("Invalid sync state of " + key + ": " 
+                    + value, e);
+        }
+    }
+
+    public synchronized void save(final String key, final ImapSyncState state) {
+        properties.setProperty(key, state.getUidValidity() + ":" 
+                + state.getUidNext() + ":" + state.getHighestModSeq());
+        final File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, "gmail4j sync state");
+            out.close();
+            out = null;
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+        } catch (final IOException e) {
+            throw new GmailException("Failed writing sync state to " + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Closes a stream, ignoring errors
+     *
+     * @param stream stream to close, can be null
+     */
+    private static void close(final Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import javax.mail.FetchProfile;
+
+/**
+ * Gmail IMAP extension attributes that can be added to a 
+ * {@link FetchProfile} to fetch them for all search results with one FETCH
+ * command.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     FetchProfile profile = client.getFetchProfile();
+ *     profile.add(GmailFetchProfileItem.MSGID);
+ *     profile.add(GmailFetchProfileItem.THRID);
+ *     for (GmailMessage message : client.getUnreadMessages()) {
+ *         long id = ((JavaMailGmailMessage) message).getGmailMessageId();
+ *     }
+ * </pre></blockquote></p>
+ * Attributes that were not prefetched are fetched when first read.
+ *
+ * @see JavaMailGmailMessage#getGmailMessageId()
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class GmailFetchProfileItem extends FetchProfile.Item {
+
+    /**
+     * Message id that is unique in the account and the same in all labels
+     * ({@code X-GM-MSGID})
+     */
+    public static final GmailFetchProfileItem MSGID = 
+            new GmailFetchProfileItem("X-GM-MSGID");
+
+    /**
+     * Thread (conversation) id ({@code X-GM-THRID})
+     */
+    public static final GmailFetchProfileItem THRID = 
+            new GmailFetchProfileItem("X-GM-THRID");
+
+    /**
+     * Labels of the message ({@code X-GM-LABELS})
+     */
+    public static final GmailFetchProfileItem LABELS = 
+            new GmailFetchProfileItem("X-GM-LABELS");
+
+    /**
+     * Name of the IMAP FETCH item
+     */
+    private final String imapName;
+
+    /**
+     * Constructor with the IMAP FETCH item name
+     *
+     * @param imapName item name, i.e. {@code X-GM-MSGID}
+     */
+    protected GmailFetchProfileItem(final String imapName) {
+        super(imapName);
+        this.imapName = imapName;
+    }
+
+    /**
+     * Gets {@link #imapName}
+     *
+     * @return IMAP FETCH item name
+     */
+    public String getImapName() {
+        return imapName;
+    }
+}
@@ -0,0 +1,903 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.Closeable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * On-disk cache of attachment data, shared by all messages of an account.
+ * <p>
+ * Attachments are found by Gmail message id ({@code X-GM-MSGID}), which is
+ * the same in every label of a message, and part path. Data is stored 
+ * once per content: files are named by the SHA-1 of their data, so an 
+ * attachment that comes in many messages (a logo, a forwarded PDF) takes 
+ * disk space once. When the data exceeds {@link #getMaxSize()}, the least
+ * recently used contents are deleted.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     ImapAttachmentCache cache = new ImapAttachmentCache(
+ *             new File("attachments"), 512 * 1024 * 1024);
+ *     client.setAttachmentCache(cache);
+ *     //attachments of messages read by the client now come from the cache
+ *     InputStream in = message.getAttachment(1).getData();
+ *     //on shutdown
+ *     cache.flush();
+ * </pre></blockquote></p>
+ * Added and deleted data is appended to a journal next to the index. The 
+ * index is rewritten through a temporary file, and the journal emptied, 
+ * by {@link #flush()}, which also saves the usage order, and when the 
+ * journal grows larger than the index. Both are read when a cache is 
+ * created on the same directory.
+ * <p>
+ * Data opened with {@link #open(long, String)} is not deleted until the 
+ * stream is closed, even if it is evicted meanwhile. Cache is thread 
+ * safe; it should not be shared by processes.
+ *
+ * @see ImapGmailClient#setAttachmentCache(ImapAttachmentCache)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class ImapAttachmentCache {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapAttachmentCache.class);
+
+    /**
+     * Name of the index file in {@link #directory}
+     */
+    private static final String INDEX = "index.properties";
+
+    /**
+     * Name of the journal file in {@link #directory}
+     */
+    private static final String JOURNAL = "index.journal";
+
+    /**
+     * Journal entries written before the journal can be compacted into 
+     * the index
+     */
+    private static final int MIN_JOURNAL_ENTRIES = 1000;
+
+    /**
+     * Journal operation of added data: {@code D hash size lastUsed}
+     */
+    private static final String JOURNAL_DATA = "D";
+
+    /**
+     * Journal operation of an attachment: {@code P key hash}
+     */
+    private static final String JOURNAL_PART = "P";
+
+    /**
+     * Journal operation of deleted data: {@code R hash}
+     */
+    private static final String JOURNAL_REMOVE = "R";
+
+    /**
+     * Prefix of index properties of contents, values are 
+     * {@code size:lastUsed}
+     */
+    private static final String DATA_PREFIX = "data.";
+
+    /**
+     * Prefix of index properties of attachments, values are SHA-1 of data
+     */
+    private static final String PART_PREFIX = "part.";
+
+    /**
+     * Directory with the data files and the index
+     */
+    private final File directory;
+
+    /**
+     * Maximum total size of data files in bytes
+     */
+    private final long maxSize;
+
+    /**
+     * Stored contents by SHA-1, least recently used first
+     */
+    private final LinkedHashMap<String, Content> contents = 
+            new LinkedHashMap<String, Content>(16, 0.75f, true);
+
+    /**
+     * SHA-1 of data by attachment key
+     */
+    private final Map<String, String> parts = new HashMap<String, String>();
+
+    /**
+     * Removed contents whose data files are still being read, by SHA-1
+     */
+    private final Map<String, Content> reading = new HashMap<String, Content>();
+
+    /**
+     * Journal entries not yet in the index
+     */
+    private final StringBuilder journal = new StringBuilder();
+
+    /**
+     * Number of entries in the journal file
+     */
+    private int journalEntries;
+
+    /**
+     * Total size of data files in bytes
+     */
+    private long size;
+
+    /**
+     * Constructor with the cache directory, which is created if needed and
+     * whose index is read if it exists. Other files in the directory that
+     * are not indexed are deleted, so it must not be used for anything 
+     * else.
+     *
+     * @param directory directory to keep data in
+     * @param maxSize maximum total size of data in bytes
+     * @throws GmailException if directory cannot be created or read
+     */
+    public ImapAttachmentCache(final File directory, final long maxSize) {
+        if (maxSize <= 0) {
+            throw new GmailException("ImapAttachmentCache max size must be "
+                    + "positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new GmailException("Cannot create attachment cache "
+                    + "directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        load();
+        if (new File(directory, JOURNAL).exists()) {
+            save();
+        }
+        deleteUnknownFiles();
+    }
+
+    /**
+     * Gets {@link #maxSize}
+     *
+     * @return maximum total size of data in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets {@link #size}
+     *
+     * @return total size of stored data in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of different contents stored
+     *
+     * @return number of data files
+     */
+    public synchronized int getContentCount() {
+        return contents.size();
+    }
+
+    /**
+     * Gets the data file of an attachment. The file must not be changed; 
+     * it may be deleted when other data is added, so use 
+     * {@link #open(long, String)} to read it.
+     *
+     * @param gmailMessageId Gmail message id of the message
+     * @param partPath part path of the attachment
+     * @return data file, or null if attachment is not cached
+     */
+    public synchronized File get(final long gmailMessageId, 
+            final String partPath) {
+        final String hash = find(key(gmailMessageId, partPath));
+        return hash == null ? null : dataFile(hash);
+    }
+
+    /**
+     * Opens the data of an attachment. The data file is kept until the 
+     * stream is closed.
+     *
+     * @param gmailMessageId Gmail message id of the message
+     * @param partPath part path of the attachment
+     * @return data stream, or null if attachment is not cached
+     */
+    public synchronized FileInputStream open(final long gmailMessageId, 
+            final String partPath) {
+        final String key = key(gmailMessageId, partPath);
+        final String hash = find(key);
+        if (hash == null) {
+            return null;
+        }
+        final Content content = contents.get(hash);
+        try {
+            final FileInputStream in = new DataInputStream(hash, content);
+            content.readers++;
+            return in;
+        } catch (final FileNotFoundException e) {
+            log.debug("Cached attachment data is missing: " + hash, e);
+            parts.remove(key);
+            remove(hash);
+            return null;
+        }
+    }
+
+    /**
+     * Stores data of an attachment. The stream is read to the end and 
+     * closed. If the same data is already stored, it is not stored again.
+     *
+     * @param gmailMessageId Gmail message id of the message
+     * @param partPath part path of the attachment
+     * @param data decoded attachment data
+     * @return data file
+     * @throws GmailException if data cannot be read or stored
+     */
+    public File put(final long gmailMessageId, final String partPath, 
+            final InputStream data) {
+        return dataFile(store(gmailMessageId, partPath, data, false));
+    }
+
+    /**
+     * Stores data of an attachment, like 
+     * {@link #put(long, String, InputStream)}, and opens the stored data
+     *
+     * @param gmailMessageId Gmail message id of the message
+     * @param partPath part path of the attachment
+     * @param data decoded attachment data
+     * @return data stream, which keeps the data file until it is closed
+     * @throws GmailException if data cannot be read or stored
+     */
+    public FileInputStream putAndOpen(final long gmailMessageId, 
+            final String partPath, final InputStream data) {
+        final String hash = store(gmailMessageId, partPath, data, true);
+        synchronized (this) {
+            Content content = contents.get(hash);
+            if (content == null) {
+                content = reading.get(hash);
+            }
+            try {
+                return new DataInputStream(hash, content);
+            } catch (final FileNotFoundException e) {
+                release(hash, content);
+                throw new GmailException("Failed opening cached attachment " 
+                        + partPath + " of " + gmailMessageId, e);
+            }
+        }
+    }
+
+    /**
+     * Stores data of an attachment
+     *
+     * @param gmailMessageId Gmail message id of the message
+     * @param partPath part path of the attachment
+     * @param data decoded attachment data
+     * @param pin true to count a read of the content, so that it is not
+     * deleted before it is opened
+     * @return SHA-1 of the data
+     * @throws GmailException if data cannot be read or stored
+     */
+    private String store(final long gmailMessageId, 
+            final String partPath, final InputStream data, 
+            final boolean pin) {
+        File temp = null;
+        try {
+            temp = File.createTempFile("put", ".tmp", directory);
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            final long length = copy(data, temp, sha1);
+            final String hash = toHex(sha1.digest());
+            synchronized (this) {
+                final File file = dataFile(hash);
+                Content content = contents.get(hash);
+                if (content == null && reading.containsKey(hash)) {
+                    // deleted while being read, the file is still there
+                    content = reading.remove(hash);
+                    content.keys.clear();
+                    contents.put(hash, content);
+                    size += content.size;
+                    journal(JOURNAL_DATA, hash, content.size + " " 
+                            + System.currentTimeMillis());
+                } else if (content == null || !file.isFile()) {
+                    if (content != null) {
+                        remove(hash);
+                    }
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Cannot rename " + temp 
+                                + " to " + file);
+                    }
+                    temp = null;
+                    content = new Content(length);
+                    contents.put(hash, content);
+                    size += length;
+                    journal(JOURNAL_DATA, hash, length + " " 
+                            + System.currentTimeMillis());
+                } else {
+                    log.debug("Attachment " + partPath + " of " 
+                            + gmailMessageId + " is already cached as " + hash);
+                }
+                content.lastUsed = System.currentTimeMillis();
+                final String key = key(gmailMessageId, partPath);
+                final String old = parts.put(key, hash);
+                content.keys.add(key);
+                if (old != null && !old.equals(hash)) {
+                    final Content previous = contents.get(old);
+                    if (previous != null) {
+                        previous.keys.remove(key);
+                    }
+                }
+                journal(JOURNAL_PART, key, hash);
+                evict(hash);
+                writeJournal();
+                if (pin) {
+                    content.readers++;
+                }
+                return hash;
+            }
+        } catch (final IOException e) {
+            throw new GmailException("Failed caching attachment " + partPath
+                    + " of " + gmailMessageId, e);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new GmailException("SHA-1 is not available", e);
+        } finally {
+            close(data);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes all stored data
+     */
+    public synchronized void clear() {
+        for (final String hash : new ArrayList<String>(contents.keySet())) {
+            remove(hash);
+        }
+        parts.clear();
+        save();
+    }
+
+    /**
+     * Saves the index with the current usage order
+     *
+     * @throws GmailException if index cannot be written
+     */
+    public synchronized void flush() {
+        save();
+    }
+
+    /**
+     * Finds the stored content of an attachment and marks it used
+     *
+     * @param key attachment key
+     * @return SHA-1 of the content, or null if attachment is not cached
+     */
+    private String find(final String key) {
+        final String hash = parts.get(key);
+        if (hash == null) {
+            return null;
+        }
+        final Content content = contents.get(hash);
+        final File file = dataFile(hash);
+        if (content == null || !file.isFile()) {
+            log.debug("Cached attachment data is missing: " + file);
+            parts.remove(key);
+            if (content != null) {
+                remove(hash);
+            }
+            return null;
+        }
+        content.lastUsed = System.currentTimeMillis();
+        return hash;
+    }
+
+    /**
+     * Ends a read of a content, deleting its data file if the content was
+     * removed meanwhile and nobody else reads it
+     *
+     * @param hash SHA-1 of the content
+     * @param content content that was read
+     */
+    private synchronized void release(final String hash, 
+            final Content content) {
+        content.readers--;
+        if (content.readers == 0 && reading.get(hash) == content) {
+            reading.remove(hash);
+            deleteFile(hash);
+        }
+    }
+
+    /**
+     * Deletes least recently used contents until the size is within 
+     * {@link #maxSize}. The content just stored is kept even if it is 
+     * larger than the limit.
+     *
+     * @param keep SHA-1 of the content to keep
+     */
+    private void evict(final String keep) {
+        final Iterator<Map.Entry<String, Content>> it = 
+                contents.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Map.Entry<String, Content> entry = it.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            delete(entry.getKey(), entry.getValue());
+            log.debug("Evicted cached attachment data " + entry.getKey());
+        }
+    }
+
+    /**
+     * Removes a content and its attachments
+     *
+     * @param hash SHA-1 of the content
+     */
+    private void remove(final String hash) {
+        final Content content = contents.remove(hash);
+        if (content != null) {
+            delete(hash, content);
+        }
+    }
+
+    /**
+     * Deletes the data file of a removed content and forgets its 
+     * attachments
+     *
+     * @param hash SHA-1 of the content
+     * @param content removed content
+     */
+    private void delete(final String hash, final Content content) {
+        size -= content.size;
+        for (final String key : content.keys) {
+            if (hash.equals(parts.get(key))) {
+                parts.remove(key);
+            }
+        }
+        journal(JOURNAL_REMOVE, hash, null);
+        if (content.readers > 0) {
+            reading.put(hash, content);
+        } else {
+            deleteFile(hash);
+        }
+    }
+
+    /**
+     * Deletes a data file
+     *
+     * @param hash SHA-1 of the content
+     */
+    private void deleteFile(final String hash) {
+        final File file = dataFile(hash);
+        if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete cached attachment data " + file);
+        }
+    }
+
+    /**
+     * Adds an entry to the journal; it is written by 
+     * {@link #writeJournal()}
+     *
+     * @param operation journal operation
+     * @param key SHA-1 or attachment key
+     * @param value value of the entry, can be null
+     */
+    private void journal(final String operation, final String key, 
+            final String value) {
+        journal.append(operation).append(' ').append(key);
+        if (value != null) {
+            journal.append(' ').append(value);
+        }
+        journal.append('\n');
+        journalEntries++;
+    }
+
+    /**
+     * Appends the new journal entries to the journal file, or saves the 
+     * index instead when the journal is larger than the index
+     *
+     * @throws GmailException if journal cannot be written
+     */
+    private void writeJournal() {
+        if (journalEntries > MIN_JOURNAL_ENTRIES 
+                && journalEntries > contents.size() + parts.size()) {
+            save();
+            return;
+        }
+        final File file = new File(directory, JOURNAL);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            out.write(journal.toString().getBytes("US-ASCII"));
+            out.close();
+            out = null;
+        } catch (final IOException e) {
+            throw new GmailException("Failed writing attachment cache "
+                    + "journal " + file, e);
+        } finally {
+            journal.setLength(0);
+            close(out);
+        }
+    }
+
+    /**
+     * Reads the index, skipping contents whose data files are missing
+     *
+     * @throws GmailException if index cannot be read
+     */
+    private void load() {
+        final File file = new File(directory, INDEX);
+        final Properties index = new Properties();
+        if (file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                index.load(in);
+            } catch (final IOException e) {
+                throw new GmailException("Failed reading attachment cache "
+                        + "index " + file, e);
+            } finally {
+                close(in);
+            }
+        }
+        loadJournal(index);
+        final Map<String, Content> byHash = new HashMap<String, Content>();
+        for (final Object property : index.keySet()) {
+            final String name = (String) property;
+            if (!name.startsWith(DATA_PREFIX)) {
+                continue;
+            }
+            final String hash = name.substring(DATA_PREFIX.length());
+            final String[] value = index.getProperty(name).split(":");
+            final File data = dataFile(hash);
+            try {
+                if (!data.isFile() 
+                        || data.length() != Long.parseLong(value[0])) {
+                    continue;
+                }
+                final Content content = new Content(data.length());
+                content.lastUsed = Long.parseLong(value[1]);
+                byHash.put(hash, content);
+            } catch (final RuntimeException e) {
+                log.warn("Invalid attachment cache entry " + name, e);
+            }
+        }
+        final List<String> hashes = new ArrayList<String>(byHash.keySet());
+        Collections.sort(hashes, new Comparator<String>() {
+            public int compare(final String a, final String b) {
+                final long ta = byHash.get(a).lastUsed;
+                final long tb = byHash.get(b).lastUsed;
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        for (final String hash : hashes) {
+            final Content content = byHash.get(hash);
+            contents.put(hash, content);
+            size += content.size;
+        }
+        for (final Object property : index.keySet()) {
+            final String name = (String) property;
+            if (!name.startsWith(PART_PREFIX)) {
+                continue;
+            }
+            final String key = name.substring(PART_PREFIX.length());
+            final String hash = index.getProperty(name);
+            final Content content = byHash.get(hash);
+            if (content != null) {
+                parts.put(key, hash);
+                content.keys.add(key);
+            }
+        }
+        log.debug("Loaded " + contents.size() + " cached attachments from " 
+                + directory);
+    }
+
+    /**
+     * Deletes files that are not the index, the journal or indexed data: 
+     * temporary files left by a crash, and data files of contents that 
+     * were removed while being read and not deleted before the process 
+     * ended
+     */
+    private void deleteUnknownFiles() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!file.isFile() || INDEX.equals(name) || JOURNAL.equals(name)
+                    || contents.containsKey(name)) {
+                continue;
+            }
+            if (file.delete()) {
+                log.debug("Deleted unknown attachment cache file " + file);
+            } else {
+                log.warn("Cannot delete unknown attachment cache file " 
+                        + file);
+            }
+        }
+    }
+
+    /**
+     * Applies the journal to the index read from the index file. An 
+     * incomplete last entry, left by a crash, is skipped.
+     *
+     * @param index index properties
+     * @throws GmailException if journal cannot be read
+     */
+    private void loadJournal(final Properties index) {
+        final File file = new File(directory, JOURNAL);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "US-ASCII"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] entry = line.split(" ");
+                if (JOURNAL_DATA.equals(entry[0]) && entry.length == 4) {
+                    index.setProperty(DATA_PREFIX + entry[1], 
+                            entry[2] + ":" + entry[3]);
+                } else if (JOURNAL_PART.equals(entry[0]) 
+                        && entry.length == 3) {
+                    index.setProperty(PART_PREFIX + entry[1], entry[2]);
+                } else if (JOURNAL_REMOVE.equals(entry[0]) 
+                        && entry.length == 2) {
+                    index.remove(DATA_PREFIX + entry[1]);
+                } else {
+                    log.warn("Invalid attachment cache journal entry " 
+                            + line);
+                }
+            }
+        } catch (final IOException e) {
+            throw new GmailException("Failed reading attachment cache "
+                    + "journal " + file, e);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the index through a temporary file and empties the journal
+     *
+     * @throws GmailException if index cannot be written
+     */
+    private void save() {
+        final Properties index = new Properties();
+        for (final Map.Entry<String, Content> entry : contents.entrySet()) {
+            index.setProperty(DATA_PREFIX + entry.getKey(), 
+                    entry.getValue().size + ":" + entry.getValue().lastUsed);
+        }
+        for (final Map.Entry<String, String> entry : parts.entrySet()) {
+            index.setProperty(PART_PREFIX + entry.getKey(), entry.getValue());
+        }
+        final File file = new File(directory, INDEX);
+        final File temp = new File(directory, INDEX + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            index.store(out, "gmail4j attachment cache");
+            out.close();
+            out = null;
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+            final File journalFile = new File(directory, JOURNAL);
+            if (journalFile.exists() && !journalFile.delete()) {
+                throw new IOException("Cannot delete " + journalFile);
+            }
+            journal.setLength(0);
+            journalEntries = 0;
+        } catch (final IOException e) {
+            throw new GmailException("Failed writing attachment cache index " 
+                    + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Gets the data file of a content
+     *
+     * @param hash SHA-1 of the content
+     * @return data file
+     */
+    private File dataFile(final String hash) {
+        return new File(directory, hash);
+    }
+
+    /**
+     * Makes the key of an attachment
+     *
+     * @param gmailMessageId Gmail message id
+     * @param partPath part path
+     * @return key
+     */
+    private static String key(final long gmailMessageId, final String partPath) {
+        return gmailMessageId + "/" + partPath;
+    }
+
+    /**
+     * Copies a stream to a file, computing a digest of the data
+     *
+     * @param data stream to copy
+     * @param file file to write
+     * @param digest digest to update
+     * @return number of bytes copied
+     * @throws IOException if copy fails
+     */
+    private static long copy(final InputStream data, final File file, 
+            final MessageDigest digest) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            long length = 0;
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                digest.update(buffer, 0, read);
+                length += read;
+            }
+            return length;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Formats bytes as lowercase hexadecimal
+     *
+     * @param bytes bytes to format
+     * @return hexadecimal text
+     */
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Closes a stream, ignoring errors
+     *
+     * @param stream stream to close, can be null
+     */
+    private static void close(final Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Stored data of one content
+     */
+    private static final class Content {
+
+        /**
+         * Size of the data in bytes
+         */
+        final long size;
+
+        /**
+         * Keys of attachments with this content
+         */
+        final Set<String> keys = new HashSet<String>();
+
+        /**
+         * Time of the last use, for the index
+         */
+        long lastUsed;
+
+        /**
+         * Number of open streams of the data
+         */
+        int readers;
+
+        /**
+         * Constructor
+         *
+         * @param size size of the data in bytes
+         */
+        Content(final long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Stream of a data file that ends its read when closed
+     */
+    private final class DataInputStream extends FileInputStream {
+
+        /**
+         * SHA-1 of the content
+         */
+        private final String hash;
+
+        /**
+         * Content being read, null once the stream is closed
+         */
+        private Content content;
+
+        /**
+         * Constructor that opens the data file of a content
+         *
+         * @param hash SHA-1 of the content
+         * @param content content to read
+         * @throws FileNotFoundException if data file is missing
+         */
+        DataInputStream(final String hash, final Content content) 
+                throws FileNotFoundException {
+            super(dataFile(hash));
+            this.hash = hash;
+            this.content = content;
+        }
+
+        @Override
+        public void close() throws IOException {
+            final Content read;
+            synchronized (this) {
+                read = content;
+                content = null;
+            }
+            if (read != null) {
+                try {
+                    super.close();
+                } finally {
+                    release(hash, read);
+                }
+            }
+        }
+    }
+}
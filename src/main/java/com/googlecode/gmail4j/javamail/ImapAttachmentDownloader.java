@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Folder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailAttachment;
+import com.googlecode.gmail4j.GmailException;
+import com.googlecode.gmail4j.util.Constants;
+
+/**
+ * Downloads attachments to files in parallel over connections of an 
+ * {@link ImapConnectionPool}.
+ * <p>
+ * Up to {@link #getParallelism()} workers each borrow one pooled 
+ * connection and take attachments from a shared queue, so that a few 
+ * large attachments do not hold up the small ones. A worker keeps the 
+ * folder of the last attachment open and fetches following attachments 
+ * of that folder through it. Attachments are fetched by message UID in blocks, as
+ * {@link GmailAttachment#transferTo(File, boolean)} does, so memory use 
+ * is bounded whatever their size.
+ * <p>
+ * JavaMail uses one more IMAP connection for every open folder, so every
+ * worker holds two of Gmail's 
+ * {@link Constants#GMAIL_MAX_IMAP_CONNECTIONS}, which the pool counts as
+ * one pooled connection. A worker opens one folder at a time. The number 
+ * of workers is limited by the size of the pool, and by default uses half
+ * of it, leaving connections for other users of the pool.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     ImapAttachmentDownloader downloader = 
+ *             new ImapAttachmentDownloader(pool);
+ *     downloader.addListener(listener);
+ *     downloader.download(message.getAttachements(), dir);
+ *     log.info(downloader.getBytesTransferred() + " bytes at " 
+ *             + downloader.getThroughput() + " bytes/s");
+ * </pre></blockquote></p>
+ *
+ * @see AttachmentDownloadListener
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class ImapAttachmentDownloader {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapAttachmentDownloader.class);
+
+    /**
+     * Pool to borrow connections from
+     */
+    private final ImapConnectionPool pool;
+
+    /**
+     * Maximum number of attachments downloaded at the same time
+     */
+    private final int parallelism;
+
+    /**
+     * Download listeners
+     */
+    private final List<AttachmentDownloadListener> listeners = 
+            new CopyOnWriteArrayList<AttachmentDownloadListener>();
+
+    /**
+     * Bytes written by all downloads
+     */
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    /**
+     * Number of downloaded attachments
+     */
+    private final AtomicInteger partsCompleted = new AtomicInteger();
+
+    /**
+     * Number of attachments that failed
+     */
+    private final AtomicInteger partsFailed = new AtomicInteger();
+
+    /**
+     * Time spent in {@link #download(Map)}, in nanoseconds
+     */
+    private final AtomicLong transferTime = new AtomicLong();
+
+    /**
+     * Continue downloads into files that already exist
+     *
+     * @see #setResume(boolean)
+     */
+    private volatile boolean resume = false;
+
+    /**
+     * Constructor that uses half of the connections of the pool
+     *
+     * @param pool pool of the account of the attachments
+     */
+    public ImapAttachmentDownloader(final ImapConnectionPool pool) {
+        this(pool, Math.max(1, pool.getMaxSize() / 2));
+    }
+
+    /**
+     * Constructor with a limit of parallel downloads
+     *
+     * @param pool pool of the account of the attachments
+     * @param parallelism maximum number of attachments downloaded at the 
+     * same time, at most the maximum size of the pool
+     * @throws GmailException if parallelism is out of range
+     */
+    public ImapAttachmentDownloader(final ImapConnectionPool pool, 
+            final int parallelism) {
+        if (pool == null) {
+            throw new GmailException("ImapAttachmentDownloader requires "
+                    + "ImapConnectionPool");
+        }
+        if (parallelism <= 0 || parallelism > pool.getMaxSize()) {
+            throw new GmailException("ImapAttachmentDownloader parallelism "
+                    + "must be between 1 and " + pool.getMaxSize());
+        }
+        this.pool = pool;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Gets {@link #parallelism}
+     *
+     * @return maximum number of parallel downloads
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Adds a download listener
+     *
+     * @param listener listener to add
+     */
+    public void addListener(final AttachmentDownloadListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a download listener
+     *
+     * @param listener listener to remove
+     */
+    public void removeListener(final AttachmentDownloadListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sets {@link #resume}. When set, bytes already in a target file are 
+     * taken as the start of the attachment and only the rest is written. 
+     * Attachments read by UID fetch only the rest; others are resumed with
+     * {@link GmailAttachment#transferTo(java.nio.channels.WritableByteChannel, long)}.
+     *
+     * @param resume true to resume downloads
+     */
+    public void setResume(final boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Downloads attachments into a directory. Files are named after the
+     * attachments; when a name is missing or used by another attachment of
+     * the call, the part path and, if needed, a number are added to it, so
+     * every attachment gets its own file.
+     *
+     * @param attachments attachments to download
+     * @param directory existing directory to write to
+     * @return files of the attachments, in the order of attachments
+     * @throws GmailException if any download failed, after all have ended
+     */
+    public Map<GmailAttachment, File> download(
+            final List<? extends GmailAttachment> attachments, 
+            final File directory) {
+        final Map<GmailAttachment, File> targets = 
+                new LinkedHashMap<GmailAttachment, File>();
+        // lowercase, as file systems may ignore case
+        final Set<String> names = new HashSet<String>();
+        for (final GmailAttachment attachment : attachments) {
+            String name = attachment.getFileName() == null ? null 
+                    : new File(attachment.getFileName()).getName();
+            if (name == null || name.length() == 0) {
+                name = "part-" + attachment.getPartPath();
+            }
+            String unique = name;
+            if (names.contains(unique.toLowerCase(Locale.ENGLISH))) {
+                unique = attachment.getPartPath() + "-" + name;
+            }
+            for (int i = 2; names.contains(unique.toLowerCase(Locale.ENGLISH)); 
+                    i++) {
+                unique = attachment.getPartPath() + "-" + i + "-" + name;
+            }
+            names.add(unique.toLowerCase(Locale.ENGLISH));
+            targets.put(attachment, new File(directory, unique));
+        }
+        return download(targets);
+    }
+
+    /**
+     * Downloads attachments into given files, replacing their contents 
+     * unless resume is set
+     *
+     * @param targets attachments and their files, a different file for 
+     * every attachment
+     * @return files of the attachments
+     * @throws GmailException if a file is given for more than one 
+     * attachment, or if any download failed, after all have ended
+     */
+    public Map<GmailAttachment, File> download(
+            final Map<? extends GmailAttachment, File> targets) {
+        final Set<File> files = new HashSet<File>();
+        for (final File file : targets.values()) {
+            if (!files.add(file.getAbsoluteFile())) {
+                throw new GmailException("ImapAttachmentDownloader cannot "
+                        + "write more than one attachment to " + file);
+            }
+        }
+        final Queue<Map.Entry<? extends GmailAttachment, File>> jobs = 
+                new ConcurrentLinkedQueue<Map.Entry<? extends GmailAttachment, File>>(
+                        targets.entrySet());
+        final int workers = Math.min(parallelism, jobs.size());
+        if (workers == 0) {
+            return new LinkedHashMap<GmailAttachment, File>();
+        }
+        final List<Exception> errors = 
+                Collections.synchronizedList(new ArrayList<Exception>());
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(
+                workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.add(Executors.callable(new Worker(jobs, errors)));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(workers,
+                new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "ImapAttachmentDownloader-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final long start = System.nanoTime();
+        try {
+            for (final Future<Object> result : executor.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GmailException("Interrupted while downloading "
+                    + "attachments", e);
+        } catch (final ExecutionException e) {
+            throw new GmailException("Failed downloading attachments", 
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+            transferTime.addAndGet(System.nanoTime() - start);
+        }
+        if (!errors.isEmpty()) {
+            throw new GmailException("Failed downloading " + errors.size() 
+                    + " of " + targets.size() + " attachments", errors.get(0));
+        }
+        return new LinkedHashMap<GmailAttachment, File>(targets);
+    }
+
+    /**
+     * Gets the number of bytes written by all downloads
+     *
+     * @return bytes written
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * Gets the number of attachments downloaded
+     *
+     * @return attachments downloaded
+     */
+    public int getPartsCompleted() {
+        return partsCompleted.get();
+    }
+
+    /**
+     * Gets the number of attachments that failed to download
+     *
+     * @return attachments failed
+     */
+    public int getPartsFailed() {
+        return partsFailed.get();
+    }
+
+    /**
+     * Gets the time spent downloading
+     *
+     * @return time in milliseconds
+     */
+    public long getTransferTime() {
+        return transferTime.get() / 1000000;
+    }
+
+    /**
+     * Gets the average download speed of all attachments together
+     *
+     * @return bytes per second, 0 if nothing was downloaded yet
+     */
+    public long getThroughput() {
+        final long nanos = transferTime.get();
+        return nanos == 0 ? 0 
+                : (long) (bytesTransferred.get() * 1000000000.0 / nanos);
+    }
+
+    /**
+     * Sets all statistics to zero
+     */
+    public void resetStatistics() {
+        bytesTransferred.set(0);
+        partsCompleted.set(0);
+        partsFailed.set(0);
+        transferTime.set(0);
+    }
+
+    /**
+     * Takes attachments from the queue and downloads them on one pooled
+     * connection
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * Attachments left to download
+         */
+        private final Queue<Map.Entry<? extends GmailAttachment, File>> jobs;
+
+        /**
+         * Errors of failed downloads
+         */
+        private final List<Exception> errors;
+
+        /**
+         * Folders opened on {@link #connection} by full name
+         */
+        private final Map<String, Folder> folders = new HashMap<String, Folder>();
+
+        /**
+         * Borrowed connection, null until needed
+         */
+        private ImapGmailConnection connection;
+
+        /**
+         * Constructor
+         *
+         * @param jobs shared queue of attachments
+         * @param errors shared list of errors
+         */
+        Worker(final Queue<Map.Entry<? extends GmailAttachment, File>> jobs,
+                final List<Exception> errors) {
+            this.jobs = jobs;
+            this.errors = errors;
+        }
+
+        public void run() {
+            try {
+                Map.Entry<? extends GmailAttachment, File> job;
+                while ((job = jobs.poll()) != null 
+                        && !Thread.currentThread().isInterrupted()) {
+                    final GmailAttachment attachment = job.getKey();
+                    final File file = job.getValue();
+                    try {
+                        download(attachment, file);
+                    } catch (final Exception e) {
+                        log.warn("Failed downloading attachment " 
+                                + attachment + " to " + file, e);
+                        partsFailed.incrementAndGet();
+                        errors.add(e);
+                        // the connection may be broken, take a new one
+                        release(false);
+                        for (final AttachmentDownloadListener l : listeners) {
+                            l.downloadFailed(attachment, file, e);
+                        }
+                        continue;
+                    }
+                    partsCompleted.incrementAndGet();
+                    for (final AttachmentDownloadListener l : listeners) {
+                        l.downloadCompleted(attachment, file);
+                    }
+                }
+            } finally {
+                release(true);
+            }
+        }
+
+        /**
+         * Downloads one attachment
+         *
+         * @param attachment attachment to download
+         * @param file file to write to
+         * @throws Exception if download fails
+         */
+        private void download(final GmailAttachment attachment, 
+                final File file) throws Exception {
+            final RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel channel = out.getChannel();
+                final long skip = resume ? channel.size() : 0;
+                channel.truncate(skip);
+                channel.position(skip);
+                if (attachment instanceof JavaMailGmailAttachment 
+                        && ((JavaMailGmailAttachment) attachment).getUid() > 0) {
+                    final JavaMailGmailAttachment imap = 
+                            (JavaMailGmailAttachment) attachment;
+                    imap.transferTo(getFolder(imap), 
+                            new ProgressChannel(channel, attachment), skip);
+                } else {
+                    // not fetched by UID, read it through its own message
+                    attachment.transferTo(new ProgressChannel(channel, 
+                            attachment), skip);
+                }
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Gets the folder of an attachment opened on the borrowed 
+         * connection, borrowing it on first use
+         *
+         * @param attachment attachment
+         * @return open folder
+         * @throws Exception if folder cannot be opened
+         */
+        private Folder getFolder(final JavaMailGmailAttachment attachment) 
+                throws Exception {
+            final String name = attachment.getMessage().getFolder().getFullName();
+            Folder folder = folders.get(name);
+            if (folder != null && folder.isOpen()) {
+                return folder;
+            }
+            // one folder at a time, as the pool counts one per connection
+            closeFolders();
+            if (connection == null) {
+                connection = pool.borrowConnection();
+            }
+            folder = connection.openGmailStore().getFolder(name);
+            folder.open(Folder.READ_ONLY);
+            folders.put(name, folder);
+            return folder;
+        }
+
+        /**
+         * Closes open folders of the borrowed connection
+         */
+        private void closeFolders() {
+            for (final Folder folder : folders.values()) {
+                if (folder.isOpen()) {
+                    try {
+                        folder.close(false);
+                    } catch (final Exception e) {
+                        log.debug("Cannot close folder : " 
+                                + folder.getFullName(), e);
+                    }
+                }
+            }
+            folders.clear();
+        }
+
+        /**
+         * Closes open folders and gives the connection back to the pool
+         *
+         * @param healthy false to close the connection instead
+         */
+        private void release(final boolean healthy) {
+            closeFolders();
+            if (connection != null) {
+                if (healthy) {
+                    pool.returnConnection(connection);
+                } else {
+                    pool.invalidateConnection(connection);
+                }
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * Channel that counts written bytes and reports progress
+     */
+    private final class ProgressChannel implements WritableByteChannel {
+
+        /**
+         * Channel to write to
+         */
+        private final WritableByteChannel target;
+
+        /**
+         * Attachment being written
+         */
+        private final GmailAttachment attachment;
+
+        /**
+         * Bytes written so far
+         */
+        private long written;
+
+        /**
+         * Constructor
+         *
+         * @param target channel to write to
+         * @param attachment attachment being written
+         */
+        ProgressChannel(final WritableByteChannel target, 
+                final GmailAttachment attachment) {
+            this.target = target;
+            this.attachment = attachment;
+        }
+
+        public int write(final ByteBuffer src) throws IOException {
+            final int count = target.write(src);
+            written += count;
+            bytesTransferred.addAndGet(count);
+            for (final AttachmentDownloadListener l : listeners) {
+                l.downloadProgress(attachment, written);
+            }
+            return count;
+        }
+
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,928 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.search.SearchException;
+import javax.mail.search.SearchTerm;
+
+import com.googlecode.gmail4j.GmailException;
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxDecoder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
+import com.sun.mail.imap.protocol.FLAGS;
+import com.sun.mail.imap.protocol.FetchResponse;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.MessageSet;
+import com.sun.mail.imap.protocol.RFC822SIZE;
+import com.sun.mail.imap.protocol.UIDSet;
+
+/**
+ * IMAP commands that JavaMail does not provide, sent on the connection of
+ * an open {@link IMAPFolder}.
+ * <p>
+ * Commands take UID sets, which are sent in compact form, i.e.
+ * {@code 1:500,720,900:950}.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+final class ImapCommands {
+
+    /**
+     * Finds item name and value pairs in a STATUS response
+     */
+    private static final Pattern STATUS_ITEM = 
+            Pattern.compile("([A-Za-z-]+)\\s+(\\d+)");
+
+    /**
+     * Finds UID value in a FETCH response
+     */
+    private static final Pattern UID = 
+            Pattern.compile("\\bUID\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Finds flag list in a FETCH response
+     */
+    private static final Pattern FLAGS = 
+            Pattern.compile("\\bFLAGS\\s+\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Finds X-GM-MSGID value in a FETCH response
+     */
+    private static final Pattern X_GM_MSGID = 
+            Pattern.compile("X-GM-MSGID\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Finds X-GM-THRID value in a FETCH response
+     */
+    private static final Pattern X_GM_THRID = 
+            Pattern.compile("X-GM-THRID\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * No instances
+     */
+    private ImapCommands() {
+    }
+
+    /**
+     * Casts a {@link Folder} to {@link IMAPFolder}
+     *
+     * @param folder open Gmail folder
+     * @return IMAP folder
+     * @throws GmailException if folder is not an IMAP folder
+     */
+    static IMAPFolder imap(final Folder folder) {
+        if (folder instanceof IMAPFolder) {
+            return (IMAPFolder) folder;
+        }
+        throw new GmailException("Folder is not an IMAP folder: " + folder);
+    }
+
+    /**
+     * Builds a compact IMAP sequence set of UIDs
+     *
+     * @param uids message UIDs in any order
+     * @return sequence set, i.e. {@code 1:500,720}
+     * @throws GmailException if there are no UIDs
+     */
+    static String toUidSet(final long[] uids) {
+        if (uids == null || uids.length == 0) {
+            throw new GmailException("ImapGmailClient requires message UID(s)");
+        }
+        final long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        return UIDSet.toString(UIDSet.createUIDSets(sorted));
+    }
+
+    /**
+     * Sends a command and returns all its responses after letting the folder
+     * process them (i.e. to update flags of loaded messages)
+     *
+     * @param folder open folder
+     * @param command IMAP command, i.e. {@code UID STORE}
+     * @param args command arguments
+     * @return untagged responses followed by the tagged result
+     * @throws MessagingException if command fails
+     */
+    static Response[] execute(final Folder folder, final String command,
+            final Argument args) throws MessagingException {
+        return (Response[]) imap(folder).doCommand(
+                new IMAPFolder.ProtocolCommand() {
+            public Object doCommand(final IMAPProtocol p)
+                    throws ProtocolException {
+                final Response[] r = p.command(command, args);
+                p.notifyResponseHandlers(r);
+                p.handleResult(r[r.length - 1]);
+                return r;
+            }
+        });
+    }
+
+    /**
+     * Sends {@code NOOP}, so the folder learns about messages that arrived
+     * and flags that changed since its last command
+     *
+     * @param folder open folder
+     * @throws MessagingException if command fails
+     */
+    static void noop(final Folder folder) throws MessagingException {
+        execute(folder, "NOOP", null);
+    }
+
+    /**
+     * Tells if the server of the folder supports an IMAP extension
+     *
+     * @param folder Gmail folder
+     * @param capability capability name, i.e. {@code CONDSTORE}
+     * @return true if capability is supported
+     * @throws MessagingException if capabilities cannot be read
+     */
+    static boolean hasCapability(final Folder folder, final String capability)
+            throws MessagingException {
+        return ((IMAPStore) folder.getStore()).hasCapability(capability);
+    }
+
+    /**
+     * Sets or clears flags of messages with {@code UID STORE}
+     *
+     * @param folder folder open in read/write mode
+     * @param uids message UIDs
+     * @param flags flags to change
+     * @param value true to set, false to clear the flags
+     * @throws MessagingException if command fails
+     */
+    static void uidStore(final Folder folder, final long[] uids,
+            final Flags flags, final boolean value) throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        args.writeAtom(value ? "+FLAGS.SILENT" : "-FLAGS.SILENT");
+        args.writeAtom(toFlagList(flags));
+        execute(folder, "UID STORE", args);
+    }
+
+    /**
+     * Adds or removes Gmail labels of messages with 
+     * {@code UID STORE +X-GM-LABELS}. Requires the {@code X-GM-EXT-1}
+     * extension.
+     *
+     * @param folder folder open in read/write mode
+     * @param uids message UIDs
+     * @param labels label names, system labels start with a backslash, 
+     * i.e. {@code \Important}
+     * @param add true to add, false to remove the labels
+     * @throws MessagingException if command fails
+     */
+    static void uidStoreLabels(final Folder folder, final long[] uids,
+            final String[] labels, final boolean add) 
+            throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        args.writeAtom(add ? "+X-GM-LABELS.SILENT" : "-X-GM-LABELS.SILENT");
+        args.writeAtom(toLabelList(labels));
+        execute(folder, "UID STORE", args);
+    }
+
+    /**
+     * Copies messages to another folder with {@code UID COPY}
+     *
+     * @param folder open source folder
+     * @param uids message UIDs
+     * @param destination full name of destination folder
+     * @throws MessagingException if command fails
+     */
+    static void uidCopy(final Folder folder, final long[] uids,
+            final String destination) throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        args.writeString(BASE64MailboxEncoder.encode(destination));
+        execute(folder, "UID COPY", args);
+    }
+
+    /**
+     * Moves messages to another folder with {@code UID MOVE}. Requires the
+     * {@code MOVE} extension (RFC 6851).
+     *
+     * @param folder source folder open in read/write mode
+     * @param uids message UIDs
+     * @param destination full name of destination folder
+     * @throws MessagingException if command fails
+     */
+    static void uidMove(final Folder folder, final long[] uids,
+            final String destination) throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        args.writeString(BASE64MailboxEncoder.encode(destination));
+        execute(folder, "UID MOVE", args);
+    }
+
+    /**
+     * Expunges only the given deleted messages with {@code UID EXPUNGE}.
+     * Requires the {@code UIDPLUS} extension.
+     *
+     * @param folder folder open in read/write mode
+     * @param uids UIDs of messages marked deleted
+     * @throws MessagingException if command fails
+     */
+    static void uidExpunge(final Folder folder, final long[] uids)
+            throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        execute(folder, "UID EXPUNGE", args);
+    }
+
+    /**
+     * Fetches the MIME structure of a message with 
+     * {@code FETCH n (BODYSTRUCTURE)}
+     *
+     * @param folder open folder of the message
+     * @param number message number
+     * @return body structure
+     * @throws MessagingException if command fails
+     */
+    static BODYSTRUCTURE fetchBodyStructure(final Folder folder, 
+            final int number) throws MessagingException {
+        return (BODYSTRUCTURE) imap(folder).doCommand(
+                new IMAPFolder.ProtocolCommand() {
+            public Object doCommand(final IMAPProtocol p)
+                    throws ProtocolException {
+                return p.fetchBodyStructure(number);
+            }
+        });
+    }
+
+    /**
+     * Fetches a range of bytes of a message part with 
+     * {@code FETCH n (BODY.PEEK[section]<start.size>)}, which does not set 
+     * the {@code \Seen} flag
+     *
+     * @param folder open folder of the message
+     * @param number message number
+     * @param section part specifier, i.e. {@code 1.2}
+     * @param start offset of the first byte
+     * @param size maximum number of bytes
+     * @return fetched bytes, still in the transfer encoding of the part
+     * @throws MessagingException if command fails
+     */
+    static byte[] peekBody(final Folder folder, final int number,
+            final String section, final int start, final int size) 
+            throws MessagingException {
+        final BODY body = (BODY) imap(folder).doCommand(
+                new IMAPFolder.ProtocolCommand() {
+            public Object doCommand(final IMAPProtocol p)
+                    throws ProtocolException {
+                return p.peekBody(number, section, start, size);
+            }
+        });
+        if (body == null || body.getByteArray() == null) {
+            return new byte[0];
+        }
+        return body.getByteArray().getNewBytes();
+    }
+
+    /**
+     * Fetches a range of bytes of a message part by UID with 
+     * {@code UID FETCH uid (BODY.PEEK[section]<start.size>)}. Unlike 
+     * {@link #peekBody(Folder, int, String, int, int)}, it works after the
+     * folder has been closed and opened again.
+     *
+     * @param folder open folder of the message
+     * @param uid message UID
+     * @param section part specifier, i.e. {@code 1.2}
+     * @param start offset of the first byte
+     * @param size maximum number of bytes
+     * @return fetched bytes, still in the transfer encoding of the part, 
+     * without a copy of the response buffer
+     * @throws MessagingException if command fails or message does not exist
+     */
+    static ByteArray uidPeekBody(final Folder folder, final long uid,
+            final String section, final long start, final int size) 
+            throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(String.valueOf(uid));
+        args.writeAtom("(BODY.PEEK[" + section + "]<" + start + "." + size 
+                + ">)");
+        for (final Response r : execute(folder, "UID FETCH", args)) {
+            if (!(r instanceof FetchResponse)) {
+                continue;
+            }
+            final BODY body = (BODY) ((FetchResponse) r).getItem(BODY.class);
+            if (body != null) {
+                return body.getByteArray() == null 
+                        ? new ByteArray(new byte[0], 0, 0) : body.getByteArray();
+            }
+        }
+        throw new MessagingException("No message with UID " + uid);
+    }
+
+    /**
+     * Fetches sizes and flags of messages with one 
+     * {@code UID FETCH set (UID FLAGS RFC822.SIZE)} command, so that whole
+     * messages can be fetched in batches of limited size
+     *
+     * @param folder open folder
+     * @param uids message UIDs
+     * @param flags receives flags of fetched messages by UID
+     * @return RFC 822 size in bytes of fetched messages by UID, missing for
+     * messages that do not exist
+     * @throws MessagingException if command fails
+     */
+    static Map<Long, Integer> uidFetchSizes(final Folder folder, 
+            final long[] uids, final Map<Long, Flags> flags) 
+            throws MessagingException {
+        final Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        args.writeAtom("(UID FLAGS RFC822.SIZE)");
+        for (final Response r : execute(folder, "UID FETCH", args)) {
+            if (!(r instanceof FetchResponse)) {
+                continue;
+            }
+            final FetchResponse fetch = (FetchResponse) r;
+            final com.sun.mail.imap.protocol.UID uid = 
+                    (com.sun.mail.imap.protocol.UID) fetch.getItem(
+                            com.sun.mail.imap.protocol.UID.class);
+            final RFC822SIZE size = (RFC822SIZE) fetch.getItem(
+                    RFC822SIZE.class);
+            if (uid == null || size == null) {
+                continue;
+            }
+            final Long key = Long.valueOf(uid.uid);
+            sizes.put(key, Integer.valueOf(size.size));
+            final FLAGS messageFlags = (FLAGS) fetch.getItem(FLAGS.class);
+            flags.put(key, messageFlags == null ? new Flags() : messageFlags);
+        }
+        return sizes;
+    }
+
+    /**
+     * Fetches whole messages and their flags with one 
+     * {@code UID FETCH set (UID FLAGS BODY.PEEK[])} command, which does not
+     * set the {@code \Seen} flag
+     *
+     * @param folder open folder
+     * @param uids message UIDs
+     * @param flags receives flags of fetched messages by UID
+     * @return RFC 822 content of fetched messages by UID, missing for 
+     * messages that do not exist
+     * @throws MessagingException if command fails
+     */
+    static Map<Long, byte[]> uidFetchMessages(final Folder folder, 
+            final long[] uids, final Map<Long, Flags> flags) 
+            throws MessagingException {
+        final Map<Long, byte[]> contents = new HashMap<Long, byte[]>();
+        final Argument args = new Argument();
+        args.writeAtom(toUidSet(uids));
+        args.writeAtom("(UID FLAGS BODY.PEEK[])");
+        for (final Response r : execute(folder, "UID FETCH", args)) {
+            if (!(r instanceof FetchResponse)) {
+                continue;
+            }
+            final FetchResponse fetch = (FetchResponse) r;
+            // the UID constant of this class hides the item class
+            final com.sun.mail.imap.protocol.UID uid = 
+                    (com.sun.mail.imap.protocol.UID) fetch.getItem(
+                            com.sun.mail.imap.protocol.UID.class);
+            final BODY body = (BODY) fetch.getItem(BODY.class);
+            if (uid == null || body == null || body.getByteArray() == null) {
+                // i.e. flag changes of other messages
+                continue;
+            }
+            final Long key = Long.valueOf(uid.uid);
+            contents.put(key, body.getByteArray().getNewBytes());
+            final FLAGS messageFlags = (FLAGS) fetch.getItem(FLAGS.class);
+            flags.put(key, messageFlags == null ? new Flags() : messageFlags);
+        }
+        return contents;
+    }
+
+    /**
+     * Fetches a whole message in parts with 
+     * {@code UID FETCH uid (BODY.PEEK[]<start.size>)} commands, so that no
+     * response is larger than a part
+     *
+     * @param folder open folder of the message
+     * @param uid message UID
+     * @param size RFC 822 size of the message
+     * @param partSize maximum number of bytes fetched with one command
+     * @return RFC 822 content of the message
+     * @throws MessagingException if command fails or message does not exist
+     */
+    static byte[] uidFetchMessage(final Folder folder, final long uid, 
+            final int size, final int partSize) throws MessagingException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream(size);
+        while (content.size() < size) {
+            final ByteArray part = uidPeekBody(folder, uid, "", 
+                    content.size(), partSize);
+            if (part.getCount() == 0) {
+                break;
+            }
+            content.write(part.getBytes(), part.getStart(), part.getCount());
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Gets status items of a folder with {@code STATUS}. Unlike the values
+     * JavaMail reads when the folder is opened, these are always current.
+     * <p>
+     * {@code STATUS} must not be used on the selected mailbox (RFC 3501,
+     * 6.3.10), so the folder must not be open: a closed folder sends the 
+     * command on the store connection, where no mailbox is selected.
+     *
+     * @param folder closed folder
+     * @param items item names, i.e. {@code UIDNEXT} or {@code HIGHESTMODSEQ}
+     * (requires {@code CONDSTORE})
+     * @return values by upper case item name, missing if server did not 
+     * return the item
+     * @throws MessagingException if command fails
+     * @throws GmailException if folder is open
+     */
+    static Map<String, Long> status(final Folder folder, final String... items)
+            throws MessagingException {
+        if (folder.isOpen()) {
+            throw new GmailException("STATUS must not be sent on the "
+                    + "connection of open folder " + folder.getFullName());
+        }
+        final StringBuilder list = new StringBuilder("(");
+        for (final String item : items) {
+            if (list.length() > 1) {
+                list.append(' ');
+            }
+            list.append(item);
+        }
+        final Argument args = new Argument();
+        args.writeString(BASE64MailboxEncoder.encode(folder.getFullName()));
+        args.writeAtom(list.append(')').toString());
+        final Map<String, Long> status = new HashMap<String, Long>();
+        for (final Response r : execute(folder, "STATUS", args)) {
+            final String text = r.toString();
+            final int open = text.lastIndexOf('(');
+            if (!r.isUnTagged() || open < 0 || !text.contains("STATUS")) {
+                continue;
+            }
+            final Matcher m = STATUS_ITEM.matcher(text.substring(open));
+            while (m.find()) {
+                status.put(m.group(1).toUpperCase(), Long.valueOf(m.group(2)));
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Gets flags of messages changed after given mod-sequence with
+     * {@code UID FETCH ... (FLAGS) (CHANGEDSINCE modseq)}. Requires the
+     * {@code CONDSTORE} extension.
+     *
+     * @param folder open folder
+     * @param uidSet UIDs to check, i.e. {@code 1:500}
+     * @param modSeq mod-sequence of the last check
+     * @return current flags by UID of changed messages
+     * @throws MessagingException if command fails
+     */
+    static Map<Long, Flags> uidFetchFlagsChangedSince(final Folder folder,
+            final String uidSet, final long modSeq) throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom(uidSet);
+        args.writeAtom("(UID FLAGS)");
+        args.writeAtom("(CHANGEDSINCE " + modSeq + ")");
+        final Map<Long, Flags> changed = new LinkedHashMap<Long, Flags>();
+        for (final Response r : execute(folder, "UID FETCH", args)) {
+            if (!r.isUnTagged()) {
+                continue;
+            }
+            final String text = r.toString();
+            final Matcher uid = UID.matcher(text);
+            final Matcher flags = FLAGS.matcher(text);
+            if (uid.find() && flags.find()) {
+                changed.put(Long.valueOf(uid.group(1)), 
+                        parseFlags(flags.group(1)));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Searches with Gmail query syntax using 
+     * {@code UID SEARCH CHARSET UTF-8 X-GM-RAW}. Requires the 
+     * {@code X-GM-EXT-1} extension.
+     *
+     * @param folder open folder
+     * @param query Gmail query, i.e. {@code has:attachment newer_than:2d}
+     * @return UIDs of matching messages in ascending order
+     * @throws MessagingException if command fails
+     */
+    static long[] uidSearchRaw(final Folder folder, final String query)
+            throws MessagingException {
+        final Argument args = new Argument();
+        args.writeAtom("CHARSET");
+        args.writeAtom("UTF-8");
+        args.writeAtom("X-GM-RAW");
+        try {
+            args.writeString(query, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new GmailException("UTF-8 is not supported", e);
+        }
+        long[] uids = new long[16];
+        int count = 0;
+        for (final Response r : execute(folder, "UID SEARCH", args)) {
+            if (!(r instanceof IMAPResponse) 
+                    || !((IMAPResponse) r).keyEquals("SEARCH")) {
+                continue;
+            }
+            long uid;
+            while ((uid = r.readLong()) != -1) {
+                if (count == uids.length) {
+                    final long[] grown = new long[uids.length * 2];
+                    System.arraycopy(uids, 0, grown, 0, count);
+                    uids = grown;
+                }
+                uids[count++] = uid;
+            }
+        }
+        final long[] result = new long[count];
+        System.arraycopy(uids, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Searches with {@code SEARCH}, returning message numbers only. Unlike
+     * {@link Folder#search(SearchTerm)} no {@link javax.mail.Message} 
+     * objects are created for the matches.
+     *
+     * @param folder open folder
+     * @param term search term
+     * @return message numbers of matching messages in ascending order
+     * @throws MessagingException if search fails
+     */
+    static int[] search(final Folder folder, final SearchTerm term)
+            throws MessagingException {
+        final int[] numbers = (int[]) imap(folder).doCommand(
+                new IMAPFolder.ProtocolCommand() {
+            public Object doCommand(final IMAPProtocol p)
+                    throws ProtocolException {
+                try {
+                    return p.search(term);
+                } catch (final SearchException e) {
+                    throw new ProtocolException(e.getMessage());
+                }
+            }
+        });
+        if (numbers == null) {
+            return new int[0];
+        }
+        final int[] sorted = numbers.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Gets UIDs of messages with {@code FETCH ... (UID)}
+     *
+     * @param folder open folder
+     * @param numbers message numbers in ascending order
+     * @return UIDs in the same order, 0 for expunged messages
+     * @throws MessagingException if command fails
+     */
+    static long[] fetchUids(final Folder folder, final int[] numbers)
+            throws MessagingException {
+        final long[] uids = new long[numbers.length];
+        if (numbers.length == 0) {
+            return uids;
+        }
+        final Argument args = new Argument();
+        args.writeAtom(MessageSet.toString(
+                MessageSet.createMessageSets(numbers)));
+        args.writeAtom("(UID)");
+        for (final Response r : execute(folder, "FETCH", args)) {
+            if (!(r instanceof IMAPResponse) 
+                    || !((IMAPResponse) r).keyEquals("FETCH")) {
+                continue;
+            }
+            final int i = Arrays.binarySearch(numbers, 
+                    ((IMAPResponse) r).getNumber());
+            final Matcher uid = UID.matcher(r.toString());
+            if (i >= 0 && uid.find()) {
+                uids[i] = Long.parseLong(uid.group(1));
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Fetches Gmail extension attributes of messages with one {@code FETCH}
+     * command and stores them in the messages. Requires the 
+     * {@code X-GM-EXT-1} extension.
+     *
+     * @param folder open folder of the messages
+     * @param messages messages to fetch attributes for
+     * @param items attributes to fetch
+     * @throws MessagingException if command fails
+     */
+    static void fetchGmailAttributes(final Folder folder,
+            final List<JavaMailGmailMessage> messages,
+            final GmailFetchProfileItem[] items) throws MessagingException {
+        if (messages.isEmpty() || items.length == 0) {
+            return;
+        }
+        final Map<Integer, JavaMailGmailMessage> byNumber = 
+                new HashMap<Integer, JavaMailGmailMessage>();
+        final int[] numbers = new int[messages.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            final JavaMailGmailMessage msg = messages.get(i);
+            numbers[i] = msg.getMessage().getMessageNumber();
+            byNumber.put(Integer.valueOf(numbers[i]), msg);
+        }
+        Arrays.sort(numbers);
+        final StringBuilder list = new StringBuilder("(");
+        for (final GmailFetchProfileItem item : items) {
+            if (list.length() > 1) {
+                list.append(' ');
+            }
+            list.append(item.getImapName());
+        }
+        final Argument args = new Argument();
+        args.writeAtom(MessageSet.toString(MessageSet.createMessageSets(numbers)));
+        args.writeAtom(list.append(')').toString());
+        for (final Response r : execute(folder, "FETCH", args)) {
+            if (!(r instanceof IMAPResponse) 
+                    || !((IMAPResponse) r).keyEquals("FETCH")) {
+                continue;
+            }
+            final JavaMailGmailMessage msg = byNumber.get(
+                    Integer.valueOf(((IMAPResponse) r).getNumber()));
+            if (msg == null) {
+                continue;
+            }
+            final String text = r.toString();
+            final Matcher msgId = X_GM_MSGID.matcher(text);
+            if (msgId.find()) {
+                msg.setGmailMessageId(Long.parseLong(msgId.group(1)));
+            }
+            final Matcher thrId = X_GM_THRID.matcher(text);
+            if (thrId.find()) {
+                msg.setGmailThreadId(Long.parseLong(thrId.group(1)));
+            }
+            final int labels = text.indexOf("X-GM-LABELS");
+            if (labels >= 0) {
+                msg.setGmailLabels(parseLabels(text, 
+                        text.indexOf('(', labels) + 1));
+            }
+        }
+    }
+
+    /**
+     * Gets Gmail extension items of a {@link FetchProfile}
+     *
+     * @param profile fetch profile, can be null
+     * @return Gmail items of the profile
+     */
+    static GmailFetchProfileItem[] gmailItems(final FetchProfile profile) {
+        final List<GmailFetchProfileItem> items = 
+                new ArrayList<GmailFetchProfileItem>();
+        if (profile != null) {
+            for (final FetchProfile.Item item : profile.getItems()) {
+                if (item instanceof GmailFetchProfileItem) {
+                    items.add((GmailFetchProfileItem) item);
+                }
+            }
+        }
+        return items.toArray(new GmailFetchProfileItem[0]);
+    }
+
+    /**
+     * Copies a {@link FetchProfile} without Gmail extension items, which 
+     * JavaMail does not know how to fetch
+     *
+     * @param profile fetch profile, can be null
+     * @return profile with standard items and headers, null if there are none
+     */
+    static FetchProfile standardItems(final FetchProfile profile) {
+        if (profile == null) {
+            return null;
+        }
+        final FetchProfile standard = new FetchProfile();
+        boolean empty = true;
+        for (final FetchProfile.Item item : profile.getItems()) {
+            if (!(item instanceof GmailFetchProfileItem)) {
+                standard.add(item);
+                empty = false;
+            }
+        }
+        for (final String header : profile.getHeaderNames()) {
+            standard.add(header);
+            empty = false;
+        }
+        return empty ? null : standard;
+    }
+
+    /**
+     * Parses an {@code X-GM-LABELS} list of atoms, quoted strings and 
+     * literals, decoding modified UTF-7 label names
+     *
+     * @param text FETCH response text
+     * @param start index after the opening parenthesis of the list
+     * @return label names, i.e. {@code \Important} or {@code Work/Projects}
+     */
+    static List<String> parseLabels(final String text, final int start) {
+        final List<String> labels = new ArrayList<String>();
+        int i = start;
+        while (i < text.length() && text.charAt(i) != ')') {
+            final char c = text.charAt(i);
+            if (c == ' ') {
+                i++;
+            } else if (c == '"') {
+                final StringBuilder label = new StringBuilder();
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\' && i + 1 < text.length()) {
+                        i++;
+                    }
+                    label.append(text.charAt(i++));
+                }
+                i++;
+                labels.add(BASE64MailboxDecoder.decode(label.toString()));
+            } else if (c == '{') {
+                final int end = text.indexOf('}', i);
+                final int size = Integer.parseInt(text.substring(i + 1, end));
+                // literal data follows the CRLF after the size
+                final int data = end + 3;
+                labels.add(BASE64MailboxDecoder.decode(
+                        text.substring(data, data + size)));
+                i = data + size;
+            } else {
+                final int begin = i;
+                while (i < text.length() && text.charAt(i) != ' ' 
+                        && text.charAt(i) != ')') {
+                    i++;
+                }
+                labels.add(BASE64MailboxDecoder.decode(
+                        text.substring(begin, i)));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Parses a space separated IMAP flag list without parentheses
+     *
+     * @param list flag list, i.e. {@code \Seen $Label1}
+     * @return parsed flags
+     */
+    static Flags parseFlags(final String list) {
+        final Flags flags = new Flags();
+        for (final String name : list.trim().split("\\s+")) {
+            if (name.length() == 0) {
+                continue;
+            }
+            final Flags.Flag flag = toFlag(name);
+            if (flag != null) {
+                flags.add(flag);
+            } else if (!name.startsWith("\\")) {
+                flags.add(name);
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Builds a parenthesized IMAP flag list, i.e. {@code (\Seen \Deleted)}
+     *
+     * @param flags system and user flags
+     * @return flag list
+     */
+    static String toFlagList(final Flags flags) {
+        final StringBuilder list = new StringBuilder("(");
+        for (final Flags.Flag flag : flags.getSystemFlags()) {
+            final String name = toFlagName(flag);
+            if (name != null) {
+                if (list.length() > 1) {
+                    list.append(' ');
+                }
+                list.append(name);
+            }
+        }
+        for (final String flag : flags.getUserFlags()) {
+            if (list.length() > 1) {
+                list.append(' ');
+            }
+            list.append(flag);
+        }
+        return list.append(')').toString();
+    }
+
+    /**
+     * Builds a parenthesized list of quoted, modified UTF-7 encoded labels,
+     * i.e. {@code ("\\Important" "Work/Projects")}
+     *
+     * @param labels label names
+     * @return label list
+     * @throws GmailException if there are no labels
+     */
+    static String toLabelList(final String[] labels) {
+        if (labels == null || labels.length == 0) {
+            throw new GmailException("ImapGmailClient requires label(s)");
+        }
+        final StringBuilder list = new StringBuilder("(");
+        for (final String label : labels) {
+            if (label == null || label.length() == 0) {
+                throw new GmailException("Label cannot be empty");
+            }
+            if (list.length() > 1) {
+                list.append(' ');
+            }
+            list.append('"');
+            final String encoded = BASE64MailboxEncoder.encode(label);
+            for (int i = 0; i < encoded.length(); i++) {
+                final char c = encoded.charAt(i);
+                if (c == '"' || c == '\\') {
+                    list.append('\\');
+                }
+                list.append(c);
+            }
+            list.append('"');
+        }
+        return list.append(')').toString();
+    }
+
+    /**
+     * Gets the system flag of an IMAP flag name
+     *
+     * @param name flag name, i.e. {@code \Seen}
+     * @return system flag or null if it is not a system flag
+     */
+    private static Flags.Flag toFlag(final String name) {
+        if ("\\Seen".equalsIgnoreCase(name)) {
+            return Flags.Flag.SEEN;
+        } else if ("\\Flagged".equalsIgnoreCase(name)) {
+            return Flags.Flag.FLAGGED;
+        } else if ("\\Deleted".equalsIgnoreCase(name)) {
+            return Flags.Flag.DELETED;
+        } else if ("\\Answered".equalsIgnoreCase(name)) {
+            return Flags.Flag.ANSWERED;
+        } else if ("\\Draft".equalsIgnoreCase(name)) {
+            return Flags.Flag.DRAFT;
+        } else if ("\\Recent".equalsIgnoreCase(name)) {
+            return Flags.Flag.RECENT;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the IMAP name of a system flag
+     *
+     * @param flag system flag
+     * @return flag name or null if flag cannot be stored
+     */
+    private static String toFlagName(final Flags.Flag flag) {
+        if (flag == Flags.Flag.SEEN) {
+            return "\\Seen";
+        } else if (flag == Flags.Flag.FLAGGED) {
+            return "\\Flagged";
+        } else if (flag == Flags.Flag.DELETED) {
+            return "\\Deleted";
+        } else if (flag == Flags.Flag.ANSWERED) {
+            return "\\Answered";
+        } else if (flag == Flags.Flag.DRAFT) {
+            return "\\Draft";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailException;
+import com.googlecode.gmail4j.auth.Credentials;
+import com.googlecode.gmail4j.util.Constants;
+
+/**
+ * Bounded pool of {@link ImapGmailConnection}s for a single Gmail account.
+ * <p>
+ * Gmail limits the number of simultaneous IMAP connections per account, so
+ * worker threads that access the same account should share connections
+ * through one pool instead of creating their own. Every pooled connection
+ * runs in persistent store mode and is checked with a NOOP when borrowed.
+ * Threads waiting for a connection are served in arrival order.
+ * <p>
+ * JavaMail uses one more IMAP connection for every open
+ * {@link javax.mail.Folder}, so every pooled connection is counted as 
+ * {@link #SOCKETS_PER_CONNECTION} IMAP connections: the store and one open
+ * folder. Pooled connections keep at most one folder open in their 
+ * {@link ImapFolderCache}, which is closed when the connection is returned,
+ * and borrowers should open one folder at a time.
+ * <p>
+ * IMAP connections of all pools of the same account are counted together,
+ * and a new pooled connection is opened only while the account has less 
+ * than {@link Constants#GMAIL_MAX_IMAP_CONNECTIONS} of them. Connections 
+ * opened outside pools are not counted, so by default a pool leaves room
+ * for one such connection with an open folder.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     ImapGmailConnection conn = new ImapGmailConnection("user",
+ *         "pass".toCharArray());
+ *     //configure proxy, hosts etc. if needed
+ *     ImapConnectionPool pool = new ImapConnectionPool(conn, 1, 4);
+ *     //in a worker thread
+ *     ImapGmailConnection pooled = pool.borrowConnection();
+ *     try {
+ *         ImapGmailClient client = new ImapGmailClient();
+ *         client.setConnection(pooled);
+ *         //use the client
+ *     } finally {
+ *         pool.returnConnection(pooled);
+ *     }
+ *     //on shutdown
+ *     pool.close();
+ * </pre></blockquote></p>
+ *
+ * @see ImapGmailConnection#setPersistentStore(boolean)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class ImapConnectionPool {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapConnectionPool.class);
+
+    /**
+     * Default value of {@link #maxWait} in milliseconds
+     */
+    public static final long DEFAULT_MAX_WAIT = 30000;
+
+    /**
+     * Default value of {@link #maxIdleTime} in milliseconds
+     */
+    public static final long DEFAULT_MAX_IDLE_TIME = 300000;
+
+    /**
+     * IMAP connections counted for one pooled connection: the store and
+     * one open folder
+     */
+    public static final int SOCKETS_PER_CONNECTION = 2;
+
+    /**
+     * Free IMAP connections of every account that has a pool, by 
+     * lowercase address. Shared by all pools of the account.
+     */
+    private static final Map<String, Semaphore> accountSockets = 
+            new HashMap<String, Semaphore>();
+
+    /**
+     * How often idle connections are checked for eviction, in milliseconds
+     */
+    private static final long EVICTION_INTERVAL = 30000;
+
+    /**
+     * Connection which new pooled connections are copied from
+     */
+    private final ImapGmailConnection template;
+
+    /**
+     * Number of connections kept open even when they are not used
+     */
+    private final int minSize;
+
+    /**
+     * Maximum number of connections opened by this pool
+     */
+    private final int maxSize;
+
+    /**
+     * Permits for borrowing, one per {@link #maxSize} connection. Fair, so
+     * waiting threads get connections in arrival order.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Free IMAP connections of the account, shared with other pools
+     */
+    private final Semaphore sockets;
+
+    /**
+     * Connections that are open and not borrowed, most recently returned
+     * first
+     */
+    private final LinkedList<IdleConnection> idle =
+            new LinkedList<IdleConnection>();
+
+    /**
+     * Connections that are currently borrowed
+     */
+    private final Set<ImapGmailConnection> borrowed =
+            new HashSet<ImapGmailConnection>();
+
+    /**
+     * Timer that evicts idle connections
+     */
+    private final Timer evictor;
+
+    /**
+     * How long {@link #borrowConnection()} waits for a free connection
+     *
+     * @see #setMaxWait(long)
+     */
+    private volatile long maxWait = DEFAULT_MAX_WAIT;
+
+    /**
+     * How long a connection may stay idle before it is closed
+     *
+     * @see #setMaxIdleTime(long)
+     */
+    private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+    /**
+     * Set when the pool has been closed
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor with the template connection. Pool keeps no idle
+     * connections and opens as many as fit into 
+     * {@link Constants#GMAIL_MAX_IMAP_CONNECTIONS} with room for one more.
+     *
+     * @param template connection with credentials, hosts and proxy settings
+     * @throws GmailException if template has no credentials
+     */
+    public ImapConnectionPool(final ImapGmailConnection template) {
+        this(template, 0, getMaxPoolSize() - 1);
+    }
+
+    /**
+     * Constructor with the template connection and pool size limits
+     *
+     * @param template connection with credentials, hosts and proxy settings
+     * @param minSize number of connections to keep open when idle
+     * @param maxSize maximum number of open connections
+     * @throws GmailException if sizes are invalid or template has no
+     * credentials
+     */
+    public ImapConnectionPool(final ImapGmailConnection template,
+            final int minSize, final int maxSize) {
+        if (template == null || template.getLoginCredentials() == null) {
+            throw new GmailException("ImapConnectionPool requires "
+                    + "ImapGmailConnection template with credentials");
+        }
+        template.getLoginCredentials().validate();
+        if (maxSize <= 0 || maxSize > getMaxPoolSize()) {
+            throw new GmailException("ImapConnectionPool max size must be "
+                    + "between 1 and " + getMaxPoolSize());
+        }
+        if (minSize < 0 || minSize > maxSize) {
+            throw new GmailException("ImapConnectionPool min size must be "
+                    + "between 0 and " + maxSize);
+        }
+        this.template = template;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+        this.sockets = getAccountSockets(template.getLoginCredentials());
+        this.evictor = new Timer("ImapConnectionPool-evictor", true);
+        evictor.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdleConnections();
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL);
+    }
+
+    /**
+     * Gets the {@link Credentials} of the account this pool serves
+     *
+     * @return Gmail login credentials
+     */
+    public Credentials getCredentials() {
+        return template.getLoginCredentials();
+    }
+
+    /**
+     * Gets the number of IMAP connections of an account that pools can 
+     * still open
+     *
+     * @param credentials Gmail login credentials
+     * @return free IMAP connections of the account
+     */
+    public static int getAvailableSockets(final Credentials credentials) {
+        return getAccountSockets(credentials).availablePermits();
+    }
+
+    /**
+     * Gets {@link #minSize}
+     *
+     * @return minimum number of open connections
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Gets {@link #maxSize}
+     *
+     * @return maximum number of open connections
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets {@link #maxWait}
+     *
+     * @param maxWait milliseconds to wait for a free connection
+     */
+    public void setMaxWait(final long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Sets {@link #maxIdleTime}. Zero or negative value disables eviction.
+     *
+     * @param maxIdleTime milliseconds a connection may stay unused
+     */
+    public void setMaxIdleTime(final long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Gets number of connections currently borrowed
+     *
+     * @return number of borrowed connections
+     */
+    public synchronized int getActiveCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * Gets number of open connections waiting in the pool
+     *
+     * @return number of idle connections
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Borrows a connected {@link ImapGmailConnection}, waiting up to
+     * {@link #maxWait} milliseconds if all connections are in use.
+     * <p>
+     * Borrowed connection must be given back with
+     * {@link #returnConnection(ImapGmailConnection)} or, if it is broken,
+     * {@link #invalidateConnection(ImapGmailConnection)}.
+     *
+     * @return connection with an open Gmail store
+     * @throws GmailException if no connection became available in time or
+     * connecting failed
+     */
+    public ImapGmailConnection borrowConnection() {
+        checkOpen();
+        final long deadline = System.currentTimeMillis() + maxWait;
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new GmailException("Timed out waiting for a pooled "
+                        + "IMAP connection of " + getCredentials().getUsername());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GmailException("Interrupted while waiting for a pooled "
+                    + "IMAP connection", e);
+        }
+        ImapGmailConnection conn = null;
+        try {
+            conn = takeIdle();
+            if (conn == null) {
+                acquireSockets(deadline);
+                conn = newConnection();
+                log.debug("Opening new pooled IMAP connection for "
+                        + getCredentials().getUsername());
+            }
+            // persistent store sends a NOOP and reconnects if it is dead
+            conn.openGmailStore();
+            synchronized (this) {
+                borrowed.add(conn);
+            }
+            return conn;
+        } catch (final RuntimeException e) {
+            if (conn != null) {
+                close(conn);
+            }
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection back to the pool
+     *
+     * @param conn connection taken with {@link #borrowConnection()}
+     */
+    public void returnConnection(final ImapGmailConnection conn) {
+        synchronized (this) {
+            if (!borrowed.contains(conn)) {
+                log.warn("Connection does not belong to this pool: " + conn);
+                return;
+            }
+        }
+        // frees the folder connection for the next borrower
+        conn.getFolderCache().close();
+        boolean close;
+        synchronized (this) {
+            borrowed.remove(conn);
+            close = closed;
+            if (!close) {
+                idle.addFirst(new IdleConnection(conn));
+            }
+        }
+        if (close) {
+            close(conn);
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a broken borrowed connection instead of returning it to the pool
+     *
+     * @param conn connection taken with {@link #borrowConnection()}
+     */
+    public void invalidateConnection(final ImapGmailConnection conn) {
+        synchronized (this) {
+            if (!borrowed.remove(conn)) {
+                log.warn("Connection does not belong to this pool: " + conn);
+                return;
+            }
+        }
+        close(conn);
+        permits.release();
+    }
+
+    /**
+     * Closes connections that stayed idle longer than {@link #maxIdleTime},
+     * keeping at least {@link #minSize} connections, and opens new ones if
+     * there are less than {@link #minSize}. Called periodically by the pool.
+     */
+    public void evictIdleConnections() {
+        final LinkedList<ImapGmailConnection> evicted =
+                new LinkedList<ImapGmailConnection>();
+        int missing;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (maxIdleTime > 0) {
+                final long oldest = System.currentTimeMillis() - maxIdleTime;
+                // least recently used connections are at the end
+                final ListIterator<IdleConnection> it = 
+                        idle.listIterator(idle.size());
+                while (it.hasPrevious() 
+                        && idle.size() + borrowed.size() > minSize) {
+                    final IdleConnection candidate = it.previous();
+                    if (candidate.since < oldest) {
+                        it.remove();
+                        evicted.add(candidate.connection);
+                    }
+                }
+            }
+            missing = minSize - idle.size() - borrowed.size();
+        }
+        for (final ImapGmailConnection conn : evicted) {
+            log.debug("Closing idle pooled IMAP connection");
+            close(conn);
+        }
+        for (int i = 0; i < missing; i++) {
+            if (!permits.tryAcquire()) {
+                break;
+            }
+            ImapGmailConnection conn = null;
+            try {
+                if (!sockets.tryAcquire(SOCKETS_PER_CONNECTION)) {
+                    log.debug("No free IMAP connections of " 
+                            + getCredentials().getUsername());
+                    break;
+                }
+                conn = newConnection();
+                conn.openGmailStore();
+                synchronized (this) {
+                    idle.addLast(new IdleConnection(conn));
+                }
+            } catch (final Exception e) {
+                log.warn("Failed opening pooled IMAP connection", e);
+                if (conn != null) {
+                    close(conn);
+                }
+                break;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Closes the pool and all idle connections. Borrowed connections are
+     * closed when returned.
+     */
+    public void close() {
+        final LinkedList<IdleConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new LinkedList<IdleConnection>(idle);
+            idle.clear();
+        }
+        evictor.cancel();
+        for (final IdleConnection conn : toClose) {
+            close(conn.connection);
+        }
+    }
+
+    /**
+     * Gets the largest pool size that fits into 
+     * {@link Constants#GMAIL_MAX_IMAP_CONNECTIONS}
+     *
+     * @return maximum pool size
+     */
+    private static int getMaxPoolSize() {
+        return Constants.GMAIL_MAX_IMAP_CONNECTIONS / SOCKETS_PER_CONNECTION;
+    }
+
+    /**
+     * Gets the free IMAP connections of an account, shared by its pools
+     *
+     * @param credentials Gmail login credentials
+     * @return free IMAP connections
+     */
+    private static Semaphore getAccountSockets(final Credentials credentials) {
+        String account = credentials.getUsername().toLowerCase(Locale.ENGLISH);
+        if (!account.contains("@")) {
+            account += Constants.GMAIL_EXTENSION;
+        }
+        synchronized (accountSockets) {
+            Semaphore free = accountSockets.get(account);
+            if (free == null) {
+                free = new Semaphore(Constants.GMAIL_MAX_IMAP_CONNECTIONS, true);
+                accountSockets.put(account, free);
+            }
+            return free;
+        }
+    }
+
+    /**
+     * Takes IMAP connections of the account for a new pooled connection
+     *
+     * @param deadline time to give up waiting at
+     * @throws GmailException if other pools of the account use all IMAP
+     * connections until the deadline
+     */
+    private void acquireSockets(final long deadline) {
+        try {
+            if (!sockets.tryAcquire(SOCKETS_PER_CONNECTION, 
+                    Math.max(0, deadline - System.currentTimeMillis()), 
+                    TimeUnit.MILLISECONDS)) {
+                throw new GmailException("Timed out waiting for a free IMAP "
+                        + "connection of " + getCredentials().getUsername());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GmailException("Interrupted while waiting for a free "
+                    + "IMAP connection", e);
+        }
+    }
+
+    /**
+     * Creates a pooled connection, for which IMAP connections of the 
+     * account have been taken
+     *
+     * @return new connection, not connected yet
+     */
+    private ImapGmailConnection newConnection() {
+        final ImapGmailConnection conn = template.copy();
+        conn.getFolderCache().setMaxOpenFolders(1);
+        return conn;
+    }
+
+    /**
+     * Disconnects a pooled connection that leaves the pool and gives its 
+     * IMAP connections back to the account
+     *
+     * @param conn pooled connection
+     */
+    private void close(final ImapGmailConnection conn) {
+        try {
+            conn.disconnect();
+        } finally {
+            sockets.release(SOCKETS_PER_CONNECTION);
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection
+     *
+     * @return idle connection or null if there is none
+     */
+    private synchronized ImapGmailConnection takeIdle() {
+        return idle.isEmpty() ? null : idle.removeFirst().connection;
+    }
+
+    /**
+     * Checks that the pool was not closed
+     *
+     * @throws GmailException if pool is closed
+     */
+    private synchronized void checkOpen() {
+        if (closed) {
+            throw new GmailException("ImapConnectionPool is closed");
+        }
+    }
+
+    /**
+     * Idle connection with the time it was returned to the pool
+     */
+    private static final class IdleConnection {
+
+        /**
+         * Pooled connection
+         */
+        private final ImapGmailConnection connection;
+
+        /**
+         * Time the connection became idle
+         */
+        private final long since;
+
+        /**
+         * Constructor with the connection that becomes idle now
+         *
+         * @param connection pooled connection
+         */
+        private IdleConnection(final ImapGmailConnection connection) {
+            this.connection = connection;
+            this.since = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * Cache of open IMAP {@link Folder}s of a single {@link ImapGmailConnection}.
+ * <p>
+ * Opening a folder costs a SELECT (and one more IMAP connection in JavaMail),
+ * and closing it with expunge costs an EXPUNGE. The cache keeps the most
+ * recently used folders open in read/write mode, so that a folder never 
+ * has to be reopened for writing, and expunges deleted messages only
+ * when {@link #flush()} is called, either explicitly or by a timer set with
+ * {@link #setFlushInterval(long)}.
+ * <p>
+ * The cache is used by {@link ImapGmailClient} when the connection is in
+ * persistent store mode:
+ * <p><blockquote><pre>
+ *     ImapGmailConnection conn = new ImapGmailConnection("user",
+ *         "pass".toCharArray());
+ *     conn.setPersistentStore(true);
+ *     //expunge deleted messages once a minute
+ *     conn.getFolderCache().setFlushInterval(60000);
+ * </pre></blockquote></p>
+ * Every {@link #getFolder(Store, String, int)} must be followed by 
+ * {@link #releaseFolder(Folder)} when the caller is done with the folder.
+ * A folder that is in use is never closed to make room for another one or
+ * expunged; those wait until it is released. Closing a folder invalidates
+ * the messages read from it, so a folder whose messages were handed out 
+ * with {@link #holdFolder(Folder, Collection)} is not closed to make room 
+ * either, until those messages are garbage collected.
+ *
+ * @see ImapGmailConnection#setPersistentStore(boolean)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class ImapFolderCache {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapFolderCache.class);
+
+    /**
+     * Default value of {@link #maxOpenFolders}
+     */
+    public static final int DEFAULT_MAX_OPEN_FOLDERS = 3;
+
+    /**
+     * Open folders by full name, least recently used first
+     */
+    private final LinkedHashMap<String, Folder> folders =
+            new LinkedHashMap<String, Folder>(16, 0.75f, true);
+
+    /**
+     * Names of folders that have messages waiting to be expunged
+     */
+    private final Set<String> pendingExpunge = new HashSet<String>();
+
+    /**
+     * Number of callers using each folder taken with 
+     * {@link #getFolder(Store, String, int)} and not released yet
+     */
+    private final Map<Folder, Integer> users = 
+            new IdentityHashMap<Folder, Integer>();
+
+    /**
+     * Messages that callers got from each folder, kept weakly
+     *
+     * @see #holdFolder(Folder, Collection)
+     */
+    private final Map<Folder, List<WeakReference<Object>>> holders = 
+            new IdentityHashMap<Folder, List<WeakReference<Object>>>();
+
+    /**
+     * Maximum number of folders kept open. Every open folder holds its own
+     * IMAP connection.
+     *
+     * @see #setMaxOpenFolders(int)
+     */
+    private int maxOpenFolders = DEFAULT_MAX_OPEN_FOLDERS;
+
+    /**
+     * Timer for scheduled {@link #flush()}
+     */
+    private Timer flushTimer;
+
+    /**
+     * Sets {@link #maxOpenFolders}
+     *
+     * @param maxOpenFolders number of folders to keep open
+     * @throws GmailException if value is less than 1
+     */
+    public synchronized void setMaxOpenFolders(final int maxOpenFolders) {
+        if (maxOpenFolders < 1) {
+            throw new GmailException("ImapFolderCache must allow at least "
+                    + "one open folder");
+        }
+        this.maxOpenFolders = maxOpenFolders;
+    }
+
+    /**
+     * Schedules {@link #flush()} to run periodically. Zero or negative
+     * interval cancels scheduled flushing.
+     *
+     * @param interval milliseconds between flushes
+     */
+    public synchronized void setFlushInterval(final long interval) {
+        if (flushTimer != null) {
+            flushTimer.cancel();
+            flushTimer = null;
+        }
+        if (interval > 0) {
+            flushTimer = new Timer("ImapFolderCache-flush", true);
+            flushTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (final Exception e) {
+                        log.warn("Scheduled folder flush failed", e);
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * Gets an open {@link Folder}, opening it if needed.
+     * <p>
+     * Folders are always opened in {@link Folder#READ_WRITE} mode, so that
+     * a later write does not reopen the folder and invalidate messages 
+     * read from it. Messages read for {@link Folder#READ_ONLY} requests 
+     * should be fetched with {@code BODY.PEEK}, as 
+     * {@link ImapGmailClient} does, to leave their {@code \Seen} flag 
+     * unchanged.
+     * <p>
+     * The folder must be released with {@link #releaseFolder(Folder)}.
+     *
+     * @param store connected Gmail {@link Store}
+     * @param name full name of the folder
+     * @param mode {@link Folder#READ_ONLY} or {@link Folder#READ_WRITE}
+     * @return folder open in read/write mode
+     * @throws MessagingException if folder cannot be opened
+     * @throws GmailException if folder does not exist
+     */
+    public synchronized Folder getFolder(final Store store, final String name,
+            final int mode) throws MessagingException {
+        Folder folder = getOpenFolder(store, name);
+        if (folder == null) {
+            evictUnused(1);
+            folder = store.getFolder(name);
+            if (!folder.exists()) {
+                throw new GmailException("Folder does not exist: " + name);
+            }
+            folder.open(Folder.READ_WRITE);
+            folders.put(name, folder);
+        }
+        final Integer count = users.get(folder);
+        users.put(folder, Integer.valueOf(count == null ? 1 
+                : count.intValue() + 1));
+        return folder;
+    }
+
+    /**
+     * Releases a folder taken with {@link #getFolder(Store, String, int)}.
+     * The folder stays open, but can be closed or expunged once no one 
+     * else uses it.
+     *
+     * @param folder folder to release
+     */
+    public synchronized void releaseFolder(final Folder folder) {
+        final Integer count = users.get(folder);
+        if (count == null) {
+            log.warn("Folder is not in use: " + folder.getFullName());
+            return;
+        }
+        if (count.intValue() > 1) {
+            users.put(folder, Integer.valueOf(count.intValue() - 1));
+            return;
+        }
+        users.remove(folder);
+        evictUnused(0);
+    }
+
+    /**
+     * Keeps a folder open while any of the messages read from it is 
+     * reachable, so that they can still load their content. The messages
+     * are referenced weakly; once they are garbage collected, the folder
+     * can be closed to make room for others. While all folders are in use
+     * or held, more than {@link #maxOpenFolders} may stay open.
+     *
+     * @param folder folder taken with {@link #getFolder(Store, String, int)}
+     * @param messages messages handed out to a caller
+     */
+    public synchronized void holdFolder(final Folder folder, 
+            final Collection<?> messages) {
+        if (messages.isEmpty() || !folders.containsValue(folder)) {
+            return;
+        }
+        List<WeakReference<Object>> refs = holders.get(folder);
+        if (refs == null) {
+            refs = new ArrayList<WeakReference<Object>>(messages.size());
+            holders.put(folder, refs);
+        }
+        for (final Object message : messages) {
+            refs.add(new WeakReference<Object>(message));
+        }
+    }
+
+    /**
+     * Tells if messages read from a folder are still reachable
+     *
+     * @param name full name of the folder
+     * @return true if cached folder is held by its messages
+     * @see #holdFolder(Folder, Collection)
+     */
+    public synchronized boolean isHeld(final String name) {
+        final Folder folder = folders.get(name);
+        return folder != null && isHeld(folder);
+    }
+
+    /**
+     * Tells if a folder is used by a caller that has not released it
+     *
+     * @param name full name of the folder
+     * @return true if cached folder is in use
+     */
+    public synchronized boolean isInUse(final String name) {
+        final Folder folder = folders.get(name);
+        return folder != null && users.containsKey(folder);
+    }
+
+    /**
+     * Marks the folder as having deleted messages to expunge on the next
+     * {@link #flush()}
+     *
+     * @param name full name of the folder
+     */
+    public synchronized void markForExpunge(final String name) {
+        pendingExpunge.add(name);
+    }
+
+    /**
+     * Tells if a folder has deleted messages waiting for {@link #flush()}
+     *
+     * @param name full name of the folder
+     * @return true if folder is marked for expunge
+     */
+    public synchronized boolean isPendingExpunge(final String name) {
+        return pendingExpunge.contains(name);
+    }
+
+    /**
+     * Expunges deleted messages from all folders marked with
+     * {@link #markForExpunge(String)}. Folders stay open. Folders in use are
+     * left for the next flush, so message numbers do not change under their
+     * users.
+     *
+     * @throws GmailException if expunge fails
+     */
+    public synchronized void flush() {
+        final Iterator<String> it = pendingExpunge.iterator();
+        while (it.hasNext()) {
+            final String name = it.next();
+            final Folder folder = folders.get(name);
+            if (folder == null || !folder.isOpen()
+                    || folder.getMode() != Folder.READ_WRITE) {
+                // expunged when folder is opened for writing again
+                continue;
+            }
+            if (users.containsKey(folder)) {
+                log.debug("Deferring expunge of " + name + ", it is in use");
+                continue;
+            }
+            try {
+                folder.expunge();
+                it.remove();
+            } catch (final MessagingException e) {
+                throw new GmailException("Failed expunging folder " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes all cached folders, cancelling scheduled flushes.
+     * Cache can be used again afterwards.
+     */
+    public synchronized void close() {
+        setFlushInterval(0);
+        final List<Folder> open = new ArrayList<Folder>(folders.values());
+        folders.clear();
+        holders.clear();
+        for (final Folder folder : open) {
+            close(folder, pendingExpunge.remove(folder.getFullName()));
+        }
+    }
+
+    /**
+     * Forgets all cached folders without talking to the server. Used when
+     * the store connection has already been lost.
+     */
+    synchronized void clear() {
+        folders.clear();
+        users.clear();
+        holders.clear();
+    }
+
+    /**
+     * Gets a cached folder that is still open on the store
+     *
+     * @param store connected Gmail {@link Store}
+     * @param name full name of the folder
+     * @return open folder or null if there is none
+     */
+    private Folder getOpenFolder(final Store store, final String name) {
+        final Folder folder = folders.get(name);
+        if (folder != null && (!folder.isOpen() || folder.getStore() != store)) {
+            folders.remove(name);
+            holders.remove(folder);
+            return null;
+        }
+        return folder;
+    }
+
+    /**
+     * Tells if messages read from a folder are still reachable, forgetting
+     * the collected ones
+     *
+     * @param folder cached folder
+     * @return true if folder is held by its messages
+     */
+    private boolean isHeld(final Folder folder) {
+        final List<WeakReference<Object>> refs = holders.get(folder);
+        if (refs == null) {
+            return false;
+        }
+        final Iterator<WeakReference<Object>> it = refs.iterator();
+        while (it.hasNext()) {
+            if (it.next().get() == null) {
+                it.remove();
+            }
+        }
+        if (refs.isEmpty()) {
+            holders.remove(folder);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes least recently used folders that are not in use or held until
+     * there is room for given number of folders. While all folders are in
+     * use or held, more than {@link #maxOpenFolders} may stay open.
+     *
+     * @param room number of folders to make room for
+     */
+    private void evictUnused(final int room) {
+        final Iterator<Map.Entry<String, Folder>> it =
+                folders.entrySet().iterator();
+        while (folders.size() + room > maxOpenFolders && it.hasNext()) {
+            final Folder folder = it.next().getValue();
+            if (users.containsKey(folder) || isHeld(folder)) {
+                continue;
+            }
+            it.remove();
+            close(folder, pendingExpunge.remove(folder.getFullName()));
+        }
+    }
+
+    /**
+     * Closes a folder, logging failures
+     *
+     * @param folder folder to close
+     * @param expunge true to expunge deleted messages
+     */
+    private void close(final Folder folder, final boolean expunge) {
+        try {
+            if (folder.isOpen()) {
+                folder.close(expunge && folder.getMode() == Folder.READ_WRITE);
+            }
+        } catch (final Exception e) {
+            log.warn("Cannot close folder : " + folder.getName(), e);
+        }
+    }
+}
@@ -16,24 +16,23 @@
  */
 package com.googlecode.gmail4j.javamail;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Store;
 import javax.mail.Transport;
+import javax.mail.UIDFolder;
 import javax.mail.search.FlagTerm;
-import javax.mail.search.SubjectTerm;
-import javax.mail.search.RecipientStringTerm;
-import javax.mail.search.SearchTerm;
-import javax.mail.search.FromStringTerm;
-import javax.mail.search.SentDateTerm;
-import javax.mail.search.BodyTerm;
 
 import com.googlecode.gmail4j.GmailClient;
 import com.googlecode.gmail4j.GmailException;
@@ -43,6 +42,8 @@ import com.googlecode.gmail4j.GmailMessageList;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.sun.mail.imap.IMAPMessage;
+
 /**
  * JavaMail IMAP based {@link GmailClient}
  * <p>
@@ -130,6 +131,85 @@ import org.apache.commons.logging.LogFactory;
  *     // now get a GmailMessage item and pass it's message number
  *     client.removeStar(message.getMessageNumber());
  * </pre></blockquote></p>
+ * Example of marking many messages as read with a single IMAP command:
+ * <p><blockquote><pre>
+ *     GmailConnection conn = new ImapGmailConnection();
+ *     //configure connection
+ *     ImapGmailClient client = new ImapGmailClient();
+ *     client.setConnection(conn);
+ *     client.markAsRead(new int[] {1, 2, 3, 720, 900});
+ * </pre></blockquote></p>
+ * Example of prefetching message attributes for the whole result in one 
+ * IMAP command:
+ * <p><blockquote><pre>
+ *     ImapGmailClient client = new ImapGmailClient();
+ *     //configure connection
+ *     FetchProfile profile = new FetchProfile();
+ *     profile.add(FetchProfile.Item.ENVELOPE);
+ *     profile.add(FetchProfile.Item.FLAGS);
+ *     profile.add(FetchProfile.Item.CONTENT_INFO); // BODYSTRUCTURE
+ *     profile.add(IMAPFolder.FetchProfileItem.SIZE);
+ *     profile.add("X-Mailer");
+ *     GmailMessageList messages = client.getMessagesBy(
+ *             EmailSearchStrategy.FROM, "j.smith@example.com", profile);
+ * </pre></blockquote></p>
+ * Example of acting on messages by UID, which, unlike the message number, 
+ * does not change when other messages are expunged:
+ * <p><blockquote><pre>
+ *     ImapGmailClient client = new ImapGmailClient();
+ *     //configure connection
+ *     JavaMailGmailMessage message = (JavaMailGmailMessage) 
+ *             client.getUnreadMessages().get(0);
+ *     long uid = message.getUid();
+ *     long uidValidity = message.getUidValidity();
+ *     // later, possibly after other messages were deleted
+ *     if (client.getUidValidity() == uidValidity) {
+ *         client.markAsReadByUid(new long[] {uid});
+ *         client.moveToByUid(ImapGmailLabel.SPAM, new long[] {uid});
+ *     }
+ * </pre></blockquote></p>
+ * Example of processing a large search result with bounded memory, or a
+ * page of it:
+ * <p><blockquote><pre>
+ *     ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.ALL_MAIL);
+ *     //configure connection
+ *     ImapSearchQuery query = ImapSearchQuery.where(
+ *             EmailSearchStrategy.DATE_GT, "2010-01-01 00:00:00");
+ *     ImapMessageIterator it = client.iterateMessagesBy(query);
+ *     try {
+ *         while (it.hasNext()) {
+ *             GmailMessage message = it.next();
+ *         }
+ *     } finally {
+ *         it.close();
+ *     }
+ *     GmailMessageList third = client.getMessagesPage(query, 100, 50);
+ * </pre></blockquote></p>
+ * Example of getting new messages pushed by the server instead of polling:
+ * <p><blockquote><pre>
+ *     ImapGmailClient client = new ImapGmailClient();
+ *     //configure connection
+ *     client.addNewMessageListener(new NewMessageListener() {
+ *         public void messagesArrived(GmailMessageList messages) {
+ *             // process new messages
+ *         }
+ *     });
+ *     // on shutdown
+ *     client.disconnect();
+ * </pre></blockquote></p>
+ * Example of reading messages by UID through a local cache, so content
+ * that was read once is not downloaded again, even after a restart:
+ * <p><blockquote><pre>
+ *     ImapGmailClient client = new ImapGmailClient();
+ *     //configure connection
+ *     FileImapMessageCache disk = new FileImapMessageCache(
+ *             new File("messages"), 1024L * 1024 * 1024);
+ *     client.setMessageCache(new TieredImapMessageCache(
+ *             new MemoryImapMessageCache(64 * 1024 * 1024), disk));
+ *     GmailMessageList messages = client.getMessagesByUid(uids);
+ *     // keeps flags of cached messages current
+ *     client.sync(stateStore);
+ * </pre></blockquote></p>
  * Example of message move to destination folder:
  * <p><blockquote><pre>
  *     // Constructor with the source folder name 
@@ -153,6 +233,59 @@ public class ImapGmailClient extends GmailClient {
      */
     private final String srcFolder;
 
+    /**
+     * Attributes fetched in bulk for all messages returned by searches
+     * 
+     * @see #setFetchProfile(FetchProfile)
+     */
+    private FetchProfile fetchProfile = createDefaultFetchProfile();
+
+    /**
+     * Pool to borrow the dedicated IMAP IDLE connection from, can be null
+     * 
+     * @see #setConnectionPool(ImapConnectionPool)
+     */
+    private ImapConnectionPool connectionPool;
+
+    /**
+     * Cache of attachment data given to fetched messages, can be null
+     * 
+     * @see #setAttachmentCache(ImapAttachmentCache)
+     */
+    private ImapAttachmentCache attachmentCache;
+
+    /**
+     * Cache of message content and flags read by UID, can be null
+     * 
+     * @see #setMessageCache(ImapMessageCache)
+     */
+    private ImapMessageCache messageCache;
+
+    /**
+     * Maximum number of messages downloaded with one command on a cache 
+     * miss
+     */
+    private static final int CACHE_FETCH_BATCH = 100;
+
+    /**
+     * Maximum total {@code RFC822.SIZE} of messages downloaded with one 
+     * command on a cache miss. Larger messages are downloaded alone, in 
+     * parts of this size.
+     */
+    private static final int CACHE_FETCH_BATCH_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Listeners of new messages in the source folder
+     */
+    private final List<NewMessageListener> newMessageListeners = 
+            new CopyOnWriteArrayList<NewMessageListener>();
+
+    /**
+     * Watcher of the source folder, running while there are 
+     * {@link #newMessageListeners}
+     */
+    private ImapIdleWatcher idleWatcher;
+
     /**
      * Constructor that defaults to {@code ImapGmailLabel.INBOX.getName()} 
      * as source {@link Folder} name.
@@ -178,66 +311,451 @@ public class ImapGmailClient extends GmailClient {
      */
     private static final Log LOG = LogFactory.getLog(ImapGmailClient.class);
 
+    /**
+     * Gets {@link #fetchProfile}
+     * 
+     * @return profile used to prefetch search results, can be null
+     * @since 0.5
+     */
+    public FetchProfile getFetchProfile() {
+        return fetchProfile;
+    }
+
+    /**
+     * Sets {@link #fetchProfile}, which is used by {@link #getUnreadMessages()},
+     * {@link #getMessagesBy(EmailSearchStrategy, String)} and
+     * {@link #getPriorityMessages(boolean)} to fetch message attributes 
+     * for the whole result in one IMAP command instead of one command per
+     * message when they are first read. Defaults to 
+     * {@link FetchProfile.Item#ENVELOPE}, {@link FetchProfile.Item#FLAGS}
+     * and {@link UIDFolder.FetchProfileItem#UID}.
+     * 
+     * @param fetchProfile profile to use or null to fetch nothing in advance
+     * @since 0.5
+     */
+    public void setFetchProfile(final FetchProfile fetchProfile) {
+        this.fetchProfile = fetchProfile;
+    }
+
+    /**
+     * Sets {@link #connectionPool}. When set, the dedicated connection used 
+     * by {@link #addNewMessageListener(NewMessageListener)} is borrowed from
+     * the pool, otherwise a copy of the client's connection is opened.
+     * 
+     * @param connectionPool pool of the same Gmail account, can be null
+     * @since 0.5
+     */
+    public void setConnectionPool(final ImapConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /**
+     * Gets {@link #attachmentCache}
+     * 
+     * @return cache of attachment data, can be null
+     * @since 0.5
+     */
+    public ImapAttachmentCache getAttachmentCache() {
+        return attachmentCache;
+    }
+
+    /**
+     * Sets {@link #attachmentCache}. Attachments of messages fetched by the
+     * client after this are read from the cache, and downloaded into it 
+     * when they are not there, so an attachment is downloaded once however
+     * many times it is read.
+     * 
+     * @param attachmentCache cache of attachment data, null for none
+     * @see JavaMailGmailMessage#setAttachmentCache(ImapAttachmentCache)
+     * @since 0.5
+     */
+    public void setAttachmentCache(final ImapAttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
+    /**
+     * Gets {@link #messageCache}
+     * 
+     * @return cache of messages read by UID, can be null
+     * @since 0.5
+     */
+    public ImapMessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * Sets {@link #messageCache}. {@link #getMessagesByUid(long[])} then 
+     * asks the server only for UIDs, flags and sizes of cached messages, 
+     * and downloads whole messages that are not cached with their flags 
+     * into the cache. Message content never changes; flags are refreshed 
+     * on every read and updated by {@link #sync(ImapSyncStateStore)} and 
+     * the flag and move methods of this client. Entries are keyed by account, folder, 
+     * UIDVALIDITY and UID, so they are not used after UIDVALIDITY changes.
+     * <p>
+     * Cached messages are not attached to a folder: use the 
+     * <code>*ByUid</code> methods with their {@link JavaMailGmailMessage#getUid()}
+     * to act on them.
+     * 
+     * @param messageCache cache of messages, null for none
+     * @see FileImapMessageCache
+     * @see TieredImapMessageCache
+     * @since 0.5
+     */
+    public void setMessageCache(final ImapMessageCache messageCache) {
+        this.messageCache = messageCache;
+    }
+
+    /**
+     * Adds a listener that is notified when new messages arrive to the 
+     * source folder. The first listener starts watching the folder with IMAP
+     * IDLE on a dedicated connection, which is re-issued every 29 minutes
+     * and reconnected when it drops.
+     * 
+     * @param listener listener to add
+     * @throws GmailException if connection is not ImapGmailConnection
+     * @see #setConnectionPool(ImapConnectionPool)
+     * @since 0.5
+     */
+    public synchronized void addNewMessageListener(
+            final NewMessageListener listener) {
+        if (!(connection instanceof ImapGmailConnection)) {
+            throw new GmailException("ImapGmailClient requires ImapGmailConnection!");
+        }
+        newMessageListeners.add(listener);
+        if (idleWatcher == null) {
+            idleWatcher = new ImapIdleWatcher((ImapGmailConnection) connection,
+                    connectionPool, this.srcFolder, newMessageListeners, 
+                    fetchProfile);
+            idleWatcher.start();
+        }
+    }
+
+    /**
+     * Removes a listener added with 
+     * {@link #addNewMessageListener(NewMessageListener)}. Removing the last
+     * listener stops watching the source folder.
+     * 
+     * @param listener listener to remove
+     * @since 0.5
+     */
+    public synchronized void removeNewMessageListener(
+            final NewMessageListener listener) {
+        newMessageListeners.remove(listener);
+        if (newMessageListeners.isEmpty()) {
+            stopIdleWatcher();
+        }
+    }
+
+    /**
+     * Stops {@link #idleWatcher} if it is running
+     */
+    private synchronized void stopIdleWatcher() {
+        if (idleWatcher != null) {
+            idleWatcher.stop();
+            idleWatcher = null;
+        }
+    }
+
     @Override
     public List<GmailMessage> getUnreadMessages() {
-        return getMessagesBy(EmailSearchStrategy.UNREAD,"");
+        return getUnreadMessages(fetchProfile);
+    }
+
+    /**
+     * Returns list of unread {@link GmailMessage} objects, prefetching given
+     * attributes
+     * 
+     * @param profile attributes to prefetch, can be null
+     * @return List of unread messages
+     * @since 0.5
+     */
+    public List<GmailMessage> getUnreadMessages(final FetchProfile profile) {
+        return getMessagesBy(EmailSearchStrategy.UNREAD, "", profile);
     }
 
     @Override
     public GmailMessageList getMessagesBy(EmailSearchStrategy strategy, String value)
     {
-        SearchTerm seekStrategy = null;
-        switch(strategy)
-        {
-            case SUBJECT:
-                seekStrategy =  new SubjectTerm(value);
-                LOG.debug("Fetching emails with a subject of \"" + value + "\"");
-                break;
-            case TO:
-                seekStrategy = new RecipientStringTerm(Message.RecipientType.TO,value);
-                LOG.debug("Fetching emails sent to \"" + value + "\"");
-                break;
-            case FROM:
-                seekStrategy = new FromStringTerm(value);
-                LOG.debug("Fetching emails sent from \"" + value + "\"");
-                break;
-            case CC:
-                seekStrategy = new RecipientStringTerm(Message.RecipientType.CC,value);
-                LOG.debug("Fetching emails CC'd to \"" + value + "\"");
-                break;
-            case DATE_GT:
-                seekStrategy = new SentDateTerm(SentDateTerm.GT, parseDate(value));
-                LOG.debug("Fetching emails with a send date newer than \"" + value + "\"");
-                break;
-            case DATE_LT:
-                seekStrategy = new SentDateTerm(SentDateTerm.LT, parseDate(value));
-                LOG.debug("Fetching emails with a send date newer than \"" + value + "\"");
-                break;
-            case DATE_EQ:
-                seekStrategy = new SentDateTerm(SentDateTerm.EQ,parseDate(value));
-                LOG.debug("Fetching emails with a send date newer than \"" + value + "\"");
-                break;
-            case KEYWORD:
-                seekStrategy = new BodyTerm(value);
-                LOG.debug("Fetching emails containing the keyword \"" + value + "\"");
-                break;
-            case UNREAD:
-                seekStrategy = new FlagTerm(new Flags(Flags.Flag.SEEN), false);
-                LOG.debug("Fetching all unread emails");
-                break;
+        return getMessagesBy(strategy, value, fetchProfile);
+    }
+
+    /**
+     * Returns list of matching {@link GmailMessage} objects, prefetching 
+     * given attributes of all of them with a single IMAP command.
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @param profile attributes to prefetch, can be null
+     * @return matching messages
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesBy(final EmailSearchStrategy strategy,
+            final String value, final FetchProfile profile) {
+        return getMessagesBy(ImapSearchQuery.where(strategy, value), profile);
+    }
+
+    /**
+     * Returns list of {@link GmailMessage} objects matching a compound 
+     * query. The whole query is evaluated by Gmail in one IMAP SEARCH.
+     *
+     * @param query search query
+     * @return matching messages
+     * @see ImapSearchQuery
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesBy(final ImapSearchQuery query) {
+        return getMessagesBy(query, fetchProfile);
+    }
+
+    /**
+     * Returns list of {@link GmailMessage} objects matching a compound 
+     * query, prefetching given attributes of all of them with a single IMAP
+     * command.
+     *
+     * @param query search query
+     * @param profile attributes to prefetch, can be null
+     * @return matching messages
+     * @see ImapSearchQuery
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesBy(final ImapSearchQuery query,
+            final FetchProfile profile) {
+        if (query == null) {
+            throw new GmailException("ImapGmailClient requires ImapSearchQuery");
         }
+        LOG.debug("Fetching emails matching " + query);
+        Folder folder = null;
         try {
-            final GmailMessageList found = new GmailMessageList();
-            final Store store = openGmailStore();
-            final Folder folder = getFolder(this.srcFolder,store);
-            folder.open(Folder.READ_ONLY);
-            for (final Message msg : folder.search(seekStrategy)) {
-                found.add(new JavaMailGmailMessage(msg));
-            }
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            final Message[] messages = folder.search(query.getSearchTerm());
+            final GmailMessageList found = fetch(folder, messages, profile,
+                    attachmentCache);
             LOG.debug("Found " + found.size() + " emails");
-            return found;
+            return holdFolder(folder, found);
+        } catch (final Exception e) {
+            throw new GmailException("Failed getting messages matching " 
+                    + query, e);
+        } finally {
+            releaseReturnedFolder(folder);
+        }
+    }
+
+    /**
+     * Returns an iterator over messages matching a compound query, fetching
+     * them {@link ImapMessageIterator#DEFAULT_CHUNK_SIZE} at a time with 
+     * the {@link #getFetchProfile() fetch profile} of the client. Unlike 
+     * {@link #getMessagesBy(ImapSearchQuery)}, memory use does not grow 
+     * with the number of matches. The iterator must be closed if it is 
+     * not read to the end.
+     *
+     * @param query search query
+     * @return iterator over matching messages in ascending order
+     * @see ImapMessageIterator
+     * @since 0.5
+     */
+    public ImapMessageIterator iterateMessagesBy(final ImapSearchQuery query) {
+        return iterateMessagesBy(query, fetchProfile, 
+                ImapMessageIterator.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Returns an iterator over messages matching a compound query, fetching
+     * them in chunks of given size.
+     *
+     * @param query search query
+     * @param profile attributes to prefetch, can be null
+     * @param chunkSize number of messages to fetch with one IMAP command
+     * @return iterator over matching messages in ascending order
+     * @see #iterateMessagesBy(ImapSearchQuery)
+     * @since 0.5
+     */
+    public ImapMessageIterator iterateMessagesBy(final ImapSearchQuery query,
+            final FetchProfile profile, final int chunkSize) {
+        final long[] uids = searchUids(query);
+        return new ImapMessageIterator((ImapGmailConnection) connection, 
+                connectionPool, this.srcFolder, uids, profile, chunkSize,
+                attachmentCache);
+    }
+
+    /**
+     * Returns one page of messages matching a compound query. Only 
+     * message numbers of all matches are downloaded, and only messages of 
+     * the page are fetched.
+     *
+     * @param query search query
+     * @param offset index of the first message, starting from 0
+     * @param size maximum number of messages on the page
+     * @return messages of the page in ascending order, empty past the end
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesPage(final ImapSearchQuery query,
+            final int offset, final int size) {
+        return getMessagesPage(query, offset, size, fetchProfile);
+    }
+
+    /**
+     * Returns one page of messages matching a compound query, prefetching 
+     * given attributes.
+     *
+     * @param query search query
+     * @param offset index of the first message, starting from 0
+     * @param size maximum number of messages on the page
+     * @param profile attributes to prefetch, can be null
+     * @return messages of the page in ascending order, empty past the end
+     * @see #getMessagesPage(ImapSearchQuery, int, int)
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesPage(final ImapSearchQuery query,
+            final int offset, final int size, final FetchProfile profile) {
+        if (query == null) {
+            throw new GmailException("ImapGmailClient requires ImapSearchQuery");
+        }
+        if (offset < 0 || size < 1) {
+            throw new GmailException("Invalid page: offset " + offset 
+                    + ", size " + size);
+        }
+        LOG.debug("Fetching page " + offset + "+" + size + " of emails "
+                + "matching " + query);
+        Folder folder = null;
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            final int[] found = ImapCommands.search(folder, 
+                    query.getSearchTerm());
+            if (offset >= found.length) {
+                return new GmailMessageList();
+            }
+            final int[] page = new int[Math.min(size, found.length - offset)];
+            System.arraycopy(found, offset, page, 0, page.length);
+            return holdFolder(folder, fetch(folder, folder.getMessages(page), 
+                    profile, attachmentCache));
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("Failed getting messages matching " 
+                    + query, e);
+        } finally {
+            releaseReturnedFolder(folder);
+        }
+    }
+
+    /**
+     * Gets UIDs of messages in the source folder matching a query without
+     * loading the messages
+     *
+     * @param query search query
+     * @return UIDs of matching messages in ascending order
+     */
+    private long[] searchUids(final ImapSearchQuery query) {
+        if (query == null) {
+            throw new GmailException("ImapGmailClient requires ImapSearchQuery");
+        }
+        Folder folder = null;
+
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            final int[] numbers = ImapCommands.search(folder, 
+                    query.getSearchTerm());
+            final long[] uids = new long[numbers.length];
+            int count = 0;
+            // FETCH responses are held in memory, so ask for a slice at a time
+            for (int i = 0; i < numbers.length; 
+                    i += ImapMessageIterator.MESSAGES_PER_FOLDER) {
+                final int[] slice = new int[Math.min(numbers.length - i, 
+                        ImapMessageIterator.MESSAGES_PER_FOLDER)];
+                System.arraycopy(numbers, i, slice, 0, slice.length);
+                for (final long uid : ImapCommands.fetchUids(folder, slice)) {
+                    if (uid > 0) {
+                        uids[count++] = uid;
+                    }
+                }
+            }
+            final long[] result = new long[count];
+            System.arraycopy(uids, 0, result, 0, count);
+            LOG.debug("Found " + count + " emails matching " + query);
+            return result;
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("Failed searching messages matching " 
+                    + query, e);
+        } finally {
+            releaseFolder(folder, false);
+        }
+    }
+
+    /**
+     * Searches the source folder with Gmail query syntax using the 
+     * {@code X-GM-RAW} IMAP extension. The query is evaluated by Gmail's 
+     * own index, which is much faster than IMAP SEARCH for body text 
+     * ({@link EmailSearchStrategy#KEYWORD}) on large mailboxes.
+     * <p>
+     * Example:
+     * <p><blockquote><pre>
+     *     GmailMessageList messages = client.searchRaw(
+     *             "has:attachment larger:5M newer_than:2d");
+     * </pre></blockquote></p>
+     *
+     * @param query Gmail query, as typed in the Gmail search box
+     * @return matching messages in ascending UID order
+     * @throws GmailException if search fails or is not supported
+     * @since 0.5
+     */
+    public GmailMessageList searchRaw(final String query) {
+        return searchRaw(query, fetchProfile);
+    }
+
+    /**
+     * Searches the source folder with Gmail query syntax, prefetching given
+     * attributes of matching messages.
+     *
+     * @param query Gmail query, as typed in the Gmail search box
+     * @param profile attributes to prefetch, can be null
+     * @return matching messages in ascending UID order
+     * @throws GmailException if search fails or is not supported
+     * @see #searchRaw(String)
+     * @since 0.5
+     */
+    public GmailMessageList searchRaw(final String query, 
+            final FetchProfile profile) {
+        final long[] uids = searchRawUids(query);
+        if (uids.length == 0) {
+            return new GmailMessageList();
+        }
+        return getMessagesByUid(uids, profile);
+    }
+
+    /**
+     * Searches the source folder with Gmail query syntax, returning only 
+     * UIDs of matching messages. Nothing else is downloaded.
+     *
+     * @param query Gmail query, as typed in the Gmail search box
+     * @return UIDs of matching messages in ascending order
+     * @throws GmailException if search fails or is not supported
+     * @see #searchRaw(String)
+     * @since 0.5
+     */
+    public long[] searchRawUids(final String query) {
+        if (query == null || query.trim().length() == 0) {
+            throw new GmailException("ImapGmailClient requires Gmail query");
+        }
+        LOG.debug("Fetching emails matching X-GM-RAW \"" + query + "\"");
+        Folder folder = null;
+
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            if (!ImapCommands.hasCapability(folder, "X-GM-EXT-1")) {
+                throw new GmailException("Server does not support X-GM-RAW");
+            }
+            final long[] uids = ImapCommands.uidSearchRaw(folder, query);
+            LOG.debug("Found " + uids.length + " emails");
+            return uids;
+        } catch (final GmailException e) {
+            throw e;
         } catch (final Exception e) {
-            throw new GmailException("Failed getting unread messages", e);
+            throw new GmailException("ImapGmailClient failed searching for \"" 
+                    + query + "\"", e);
+        } finally {
+            releaseFolder(folder, false);
         }
     }
 
@@ -298,6 +816,10 @@ public class ImapGmailClient extends GmailClient {
 
     /**
      * Moves given {@link GmailMessage}'s to {@link ImapGmailLabel.TRASH} folder.
+     * <p>
+     * All messages are moved with one {@code UID MOVE} command when the 
+     * server supports it, otherwise with one {@code UID COPY}, one 
+     * {@code UID STORE} and, with {@code UIDPLUS}, one {@code UID EXPUNGE}.
      *
      * @param gmailMessages {@link GmailMessage} message(s)
      * @throws GmailException if unable to move {@link GmailMessage}'s to
@@ -309,40 +831,35 @@ public class ImapGmailClient extends GmailClient {
                     + " to move messages to trash folder");
             return;
         }
+        if (ImapGmailLabel.TRASH.getName().equals(this.srcFolder)) {
+            LOG.warn("ImapGmailClient trying to move GmailMessage(s) within"
+                    + " same folder(ImapGmailLabel.TRASH.getName())");
+            return;
+        }
         Folder folder = null;
+        boolean expunge = false;
         
         try {
-            final Store store = openGmailStore();
-            folder = getFolder(this.srcFolder,store);
-            if(!folder.isOpen())
-            {
-                folder.open(Folder.READ_WRITE);                
-            }
-            
-            List<Message> markedMsgList = new ArrayList<Message>();
-            for (GmailMessage gmailMessage : gmailMessages) {
-                // get only messages that match to the specified message number
-                Message message = folder.getMessage(gmailMessage.getMessageNumber());
-                message.setFlag(Flags.Flag.SEEN, true);
-                // mark message as delete
-                message.setFlag(Flags.Flag.DELETED, true);
-                markedMsgList.add(message);
-            }
-
-            Folder trash = getFolder(ImapGmailLabel.TRASH.getName(),store);
-            if(folder.getURLName().equals(trash.getURLName())){
-                LOG.warn("ImapGmailClient trying to move GmailMessage(s) within"
-                        + " same folder(ImapGmailLabel.TRASH.getName())");
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
+            final int[] numbers = new int[gmailMessages.length];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = gmailMessages[i].getMessageNumber();
             }
-            // move the marked messages to trash folder
-            if (!markedMsgList.isEmpty()) {
-                folder.copyMessages(markedMsgList.toArray(new Message[0]), trash);
+            // get only messages that match to the specified message numbers
+            final Message[] messages = folder.getMessages(numbers);
+            final FetchProfile uidProfile = new FetchProfile();
+            uidProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(messages, uidProfile);
+            final long[] uids = new long[messages.length];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = ((UIDFolder) folder).getUID(messages[i]);
             }
+            expunge = trash(folder, uids);
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed moving GmailMessage(s)"
                     + " to trash folder: " + e);
         } finally {
-            closeFolder(folder);
+            releaseFolder(folder, expunge);
         }
     }
     
@@ -360,18 +877,18 @@ public class ImapGmailClient extends GmailClient {
         Folder folder = null;
         
         try {
-            final Store store = openGmailStore();
-            folder = getFolder(this.srcFolder, store);
-            folder.open(Folder.READ_WRITE);
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
             Message message = folder.getMessage(messageNumber);
             if (!message.isSet(Flags.Flag.SEEN)) {
                 message.setFlag(Flags.Flag.SEEN, true);
             }
+            updateCachedFlags(folder, new Message[] {message}, 
+                    Flags.Flag.SEEN, true);
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed marking"
                     + " GmailMessage as read : " + messageNumber, e);
         } finally {
-            closeFolder(folder);
+            releaseFolder(folder, false);
         }
     }
     
@@ -384,18 +901,18 @@ public class ImapGmailClient extends GmailClient {
         Folder folder = null;
 
         try {
-            final Store store = openGmailStore();
-            folder = getFolder(this.srcFolder, store);
-            folder.open(Folder.READ_WRITE);
-            for (final Message message : folder.search(new FlagTerm(
-                    new Flags(Flags.Flag.SEEN), false))) {
-                message.setFlag(Flags.Flag.SEEN, true);
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
+            final Message[] unread = folder.search(new FlagTerm(
+                    new Flags(Flags.Flag.SEEN), false));
+            if (unread.length > 0) {
+                folder.setFlags(unread, new Flags(Flags.Flag.SEEN), true);
+                updateCachedFlags(folder, unread, Flags.Flag.SEEN, true);
             }
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed marking"
                     + " all GmailMessage as read" , e);
         } finally {
-            closeFolder(folder);
+            releaseFolder(folder, false);
         }
     }
     
@@ -413,18 +930,18 @@ public class ImapGmailClient extends GmailClient {
         Folder folder = null;
 
         try {
-            final Store store = openGmailStore();
-            folder = getFolder(this.srcFolder, store);
-            folder.open(Folder.READ_WRITE);
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
             Message message = folder.getMessage(messageNumber);
             if (message.isSet(Flags.Flag.SEEN)) {
                 message.setFlag(Flags.Flag.SEEN, false);
             }
+            updateCachedFlags(folder, new Message[] {message}, 
+                    Flags.Flag.SEEN, false);
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed marking"
                     + " GmailMessage as unread : " + messageNumber , e);
         } finally {
-            closeFolder(folder);
+            releaseFolder(folder, false);
         }
     }
     
@@ -442,18 +959,18 @@ public class ImapGmailClient extends GmailClient {
         Folder folder = null;
 
         try {
-            final Store store = openGmailStore();
-            folder = getFolder(this.srcFolder, store);
-            folder.open(Folder.READ_WRITE);
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
             Message message = folder.getMessage(messageNumber);
             if (!message.isSet(Flags.Flag.FLAGGED)) {
                 message.setFlag(Flags.Flag.FLAGGED, true);
             }
+            updateCachedFlags(folder, new Message[] {message}, 
+                    Flags.Flag.FLAGGED, true);
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed flagging"
                     + " GmailMessage as starred : " + messageNumber ,e);
         } finally {
-            closeFolder(folder);
+            releaseFolder(folder, false);
         }        
     }
     
@@ -471,23 +988,114 @@ public class ImapGmailClient extends GmailClient {
         Folder folder = null;
 
         try {
-            final Store store = openGmailStore();
-            folder = getFolder(ImapGmailLabel.STARRED.getName(), store);
-            folder.open(Folder.READ_WRITE);
+            folder = openFolder(ImapGmailLabel.STARRED.getName(), Folder.READ_WRITE);
             Message message = folder.getMessage(messageNumber);
             if (message.isSet(Flags.Flag.FLAGGED)) {
                 message.setFlag(Flags.Flag.FLAGGED, false);
             }
+            updateCachedFlags(folder, new Message[] {message}, 
+                    Flags.Flag.FLAGGED, false);
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed removing"
                     + " GmailMessage star flag : " + messageNumber , e);
         } finally {
-            closeFolder(folder);
+            releaseFolder(folder, false);
         }                
     }
         
+    /**
+     * Mark given {@link GmailMessage}s as read with a single IMAP command.
+     *
+     * @param messageNumbers the message numbers ex:{@code gmailMessage.getMessageNumber()}
+     * @throws GmailException if unable to mark {@link GmailMessage}s as read
+     * @since 0.5
+     */
+    public void markAsRead(final int[] messageNumbers) {
+        setFlags(this.srcFolder, messageNumbers, Flags.Flag.SEEN, true);
+    }
+
+    /**
+     * Mark given {@link GmailMessage}s as unread with a single IMAP command.
+     *
+     * @param messageNumbers the message numbers ex:{@code gmailMessage.getMessageNumber()}
+     * @throws GmailException if unable to mark {@link GmailMessage}s as unread
+     * @since 0.5
+     */
+    public void markAsUnread(final int[] messageNumbers) {
+        setFlags(this.srcFolder, messageNumbers, Flags.Flag.SEEN, false);
+    }
+
+    /**
+     * Flag given {@link GmailMessage}s as Starred with a single IMAP command.
+     *
+     * @param messageNumbers the message numbers ex:{@code gmailMessage.getMessageNumber()}
+     * @throws GmailException if unable to flag {@link GmailMessage}s as starred
+     * @since 0.5
+     */
+    public void addStar(final int[] messageNumbers) {
+        setFlags(this.srcFolder, messageNumbers, Flags.Flag.FLAGGED, true);
+    }
+
+    /**
+     * Removes Star Flag of given Starred {@link GmailMessage}s with a single
+     * IMAP command. Like {@link #removeStar(int)}, message numbers refer to
+     * the {@code [Gmail]/Starred} folder.
+     *
+     * @param messageNumbers the message numbers ex:{@code gmailMessage.getMessageNumber()}
+     * @throws GmailException if unable to remove star flag from {@link GmailMessage}s
+     * @since 0.5
+     */
+    public void removeStar(final int[] messageNumbers) {
+        setFlags(ImapGmailLabel.STARRED.getName(), messageNumbers,
+                Flags.Flag.FLAGGED, false);
+    }
+
+    /**
+     * Sets or clears a flag of many messages at once.
+     * <p>
+     * Message numbers are sorted, so the IMAP folder can send them as one
+     * STORE command with a compact sequence set, i.e. {@code 1:500,720}.
+     *
+     * @param folderName the name of the folder messages are in
+     * @param messageNumbers the message numbers
+     * @param flag flag to change
+     * @param value true to set the flag, false to clear it
+     * @throws GmailException if message numbers are invalid or command fails
+     */
+    private void setFlags(final String folderName, final int[] messageNumbers,
+            final Flags.Flag flag, final boolean value) {
+        if (messageNumbers == null || messageNumbers.length == 0) {
+            throw new GmailException("ImapGmailClient requires "
+                    + "GmailMessage number(s)");
+        }
+        final int[] sorted = messageNumbers.clone();
+        Arrays.sort(sorted);
+        if (sorted[0] <= 0) {
+            throw new GmailException("ImapGmailClient invalid "
+                    + "GmailMessage number");
+        }
+        Folder folder = null;
+
+        try {
+            folder = openFolder(folderName, Folder.READ_WRITE);
+            final Message[] messages = folder.getMessages(sorted);
+            folder.setFlags(messages, new Flags(flag), value);
+            updateCachedFlags(folder, messages, flag, value);
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed " 
+                    + (value ? "setting" : "clearing") + " " + flag 
+                    + " flag of " + sorted.length + " GmailMessage(s)", e);
+        } finally {
+            releaseFolder(folder, false);
+        }
+    }
+
     /**
      * Move {@link GmailMessage} to a given destination folder.
+     * <p>
+     * Gmail folders are labels, so when possible the message is moved by
+     * adding the destination label and removing the source label, without
+     * copying it.
      *
      * @param destFolder the destination {@link Folder} name.See {@see ImapGmailLabel}
      * @param messageNumber the message number ex:{@code gmailMessage.getMessageNumber()}
@@ -498,67 +1106,952 @@ public class ImapGmailClient extends GmailClient {
         if (messageNumber <= 0) {
             throw new GmailException("ImapGmailClient invalid GmailMessage number");
         }
-
+        checkMoveDestination(destFolder);
         Folder fromFolder = null;
-        Folder toFolder = null;
+        boolean expunge = false;
 
         try {
-            final Store store = openGmailStore();
-            fromFolder = getFolder(this.srcFolder, store);
-            fromFolder.open(Folder.READ_WRITE);
-            Message message = fromFolder.getMessage(messageNumber);
-
-            if (message != null) {
-                toFolder = getFolder(destFolder.getName(), store);
-
-                if (fromFolder.getURLName().equals(toFolder.getURLName())) {
-                    throw new GmailException("ImapGmailClient cannot move "
-                            + "GmailMessage within same folder "
-                            + "(from " + fromFolder.getFullName() + " to "
-                            + toFolder.getFullName() + ")");
-                }
-                // copy from source folder to destination folder
-                fromFolder.copyMessages(new Message[]{message}, toFolder);
-                // move the copied message to trash folder
-                moveToTrash(new GmailMessage[]{new JavaMailGmailMessage(message)});
-            }
+            fromFolder = openFolder(this.srcFolder, Folder.READ_WRITE);
+            final long uid = ((UIDFolder) fromFolder).getUID(
+                    fromFolder.getMessage(messageNumber));
+            expunge = move(fromFolder, destFolder, new long[] {uid});
         } catch (GmailException ge) {
             throw ge;
         } catch (Exception e) {
             throw new GmailException("ImapGmailClient failed moving"
-                    + " GmailMessage from " + fromFolder.getFullName(), e);
+                    + " GmailMessage from " + this.srcFolder, e);
         } finally {
-            closeFolder(fromFolder);
+            releaseFolder(fromFolder, expunge);
         }
     }
     
     /**
-     * Returns list of unread/read priority {@link GmailMessage} objects 
-     * based on the {@code unreadOnly} value
-     * 
-     * @param unreadOnly {@code true} to unread priority {@link GmailMessage} 
-     * objects only, {@code false} to read priority {@link GmailMessage} 
-     * objects only
-     * @return List of unread/read priority messages
-     * @throws GmailException if unable to get unread/read priority messages
+     * Gets the UIDVALIDITY of the source folder. UIDs taken with 
+     * {@link JavaMailGmailMessage#getUid()} can be used with the 
+     * <code>*ByUid</code> methods only while it stays the same.
+     *
+     * @return source folder UID validity
+     * @throws GmailException if unable to get UID validity
+     * @since 0.5
      */
-    public List<GmailMessage> getPriorityMessages(boolean unreadOnly){
-        try {
-            final List<GmailMessage> priorityMessages = new ArrayList<GmailMessage>();
-            final Store store = openGmailStore();
-            Folder folder = getFolder(ImapGmailLabel.IMPORTANT.getName(),store);
-            folder.open(Folder.READ_ONLY); 
-            for (final Message msg : folder.search(new FlagTerm(
-                    new Flags(Flags.Flag.SEEN), !unreadOnly))) {
-                priorityMessages.add(new JavaMailGmailMessage(msg));
+    public long getUidValidity() {
+        Folder folder = null;
+
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            return ((UIDFolder) folder).getUIDValidity();
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed getting"
+                    + " UID validity of " + this.srcFolder, e);
+        } finally {
+            releaseFolder(folder, false);
+        }
+    }
+
+    /**
+     * Gets a {@link GmailMessage} from the source folder by its UID.
+     *
+     * @param uid the message UID ex:{@code javaMailGmailMessage.getUid()}
+     * @return message or null if there is no message with given UID
+     * @throws GmailException if unable to get the message
+     * @since 0.5
+     */
+    public GmailMessage getMessageByUid(final long uid) {
+        final GmailMessageList messages = getMessagesByUid(new long[] {uid});
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Gets {@link GmailMessage}s from the source folder by their UIDs, 
+     * prefetching attributes set with {@link #setFetchProfile(FetchProfile)}.
+     * UIDs that no longer exist are skipped.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @return messages in ascending UID order
+     * @throws GmailException if unable to get the messages
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesByUid(final long[] uids) {
+        return getMessagesByUid(uids, fetchProfile);
+    }
+
+    /**
+     * Gets {@link GmailMessage}s from the source folder by their UIDs, 
+     * prefetching given attributes. UIDs that no longer exist are skipped.
+     * With a {@link #setMessageCache(ImapMessageCache) message cache}, 
+     * messages are read from the cache and the profile is not used.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @param profile attributes to prefetch, can be null
+     * @return messages in ascending UID order
+     * @throws GmailException if unable to get the messages
+     * @since 0.5
+     */
+    public GmailMessageList getMessagesByUid(final long[] uids,
+            final FetchProfile profile) {
+        if (uids == null || uids.length == 0) {
+            throw new GmailException("ImapGmailClient requires message UID(s)");
+        }
+        final long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        if (messageCache != null) {
+            return getCachedMessagesByUid(sorted);
+        }
+        Folder folder = null;
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            final Message[] byUid = ((UIDFolder) folder).getMessagesByUID(sorted);
+            final List<Message> messages = new ArrayList<Message>(byUid.length);
+            for (final Message msg : byUid) {
+                if (msg != null) {
+                    messages.add(msg);
+                }
             }
-            
-            return priorityMessages;
+            return holdFolder(folder, fetch(folder, 
+                    messages.toArray(new Message[0]), profile, attachmentCache));
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed getting"
+                    + " GmailMessage(s) by UID", e);
+        } finally {
+            releaseReturnedFolder(folder);
+        }
+    }
+
+    /**
+     * Gets messages by UID from {@link #messageCache}, downloading the ones
+     * that are not cached. UIDs, flags and sizes of all messages are 
+     * fetched first with one command, so cached messages that no longer 
+     * exist are removed and skipped, and cached flags are brought up to 
+     * date, including changes made by other clients.
+     *
+     * @param uids the message UIDs in ascending order
+     * @return messages in ascending UID order
+     * @throws GmailException if unable to get the messages
+     */
+    private GmailMessageList getCachedMessagesByUid(final long[] uids) {
+        final Map<Long, byte[]> values = new HashMap<Long, byte[]>();
+        Folder folder = null;
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            final long uidValidity = ((UIDFolder) folder).getUIDValidity();
+            final Map<Long, Flags> flags = new HashMap<Long, Flags>();
+            final Map<Long, Integer> sizes = 
+                    ImapCommands.uidFetchSizes(folder, uids, flags);
+            final long[] missing = new long[uids.length];
+            int count = 0;
+            for (final long uid : uids) {
+                final Long key = Long.valueOf(uid);
+                final String cacheKey = getCacheKey(this.srcFolder, 
+                        uidValidity, uid);
+                final byte[] cached = messageCache.get(cacheKey);
+                if (!sizes.containsKey(key)) {
+                    if (cached != null) {
+                        // expunged or moved by this or another client
+                        messageCache.remove(cacheKey);
+                    }
+                } else if (cached == null) {
+                    missing[count++] = uid;
+                } else if (!flags.get(key).equals(
+                        CachedImapMessage.getFlags(cached))) {
+                    final byte[] value = CachedImapMessage.withFlags(cached, 
+                            flags.get(key));
+                    messageCache.put(cacheKey, value);
+                    values.put(key, value);
+                } else {
+                    values.put(key, cached);
+                }
+            }
+            if (count > 0) {
+                final long[] download = new long[count];
+                System.arraycopy(missing, 0, download, 0, count);
+                downloadCached(folder, uidValidity, download, sizes, flags, 
+                        values);
+            }
+            LOG.debug("Downloaded " + count + " uncached messages of " 
+                    + uids.length);
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed getting"
+                    + " GmailMessage(s) by UID", e);
+        } finally {
+            releaseFolder(folder, false);
+        }
+        final GmailMessageList messages = new GmailMessageList(values.size());
+        for (final long uid : uids) {
+            final byte[] value = values.get(Long.valueOf(uid));
+            if (value != null) {
+                messages.add(CachedImapMessage.toMessage(value, uid));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Downloads messages of the source folder into {@link #messageCache},
+     * so that a batch holds at most {@link #CACHE_FETCH_BATCH} messages 
+     * and {@link #CACHE_FETCH_BATCH_SIZE} bytes; larger messages are 
+     * fetched in parts.
+     *
+     * @param folder open source folder
+     * @param uidValidity UIDVALIDITY of the source folder
+     * @param uids UIDs of the messages to download
+     * @param sizes RFC 822 sizes of the messages by UID
+     * @param flags flags of the messages by UID
+     * @param found receives cached values by UID
+     * @throws MessagingException if messages cannot be fetched
+     */
+    private void downloadCached(final Folder folder, final long uidValidity,
+            final long[] uids, final Map<Long, Integer> sizes, 
+            final Map<Long, Flags> flags, final Map<Long, byte[]> found) 
+            throws MessagingException {
+        final long[] batch = new long[CACHE_FETCH_BATCH];
+        int count = 0;
+        long batchSize = 0;
+        for (final long uid : uids) {
+            final Integer size = sizes.get(Long.valueOf(uid));
+            if (size == null) {
+                // deleted meanwhile
+                continue;
+            }
+            if (size.intValue() > CACHE_FETCH_BATCH_SIZE) {
+                putCached(uidValidity, Long.valueOf(uid), 
+                        flags.get(Long.valueOf(uid)), 
+                        ImapCommands.uidFetchMessage(folder, uid, 
+                                size.intValue(), CACHE_FETCH_BATCH_SIZE), 
+                        found);
+                continue;
+            }
+            if (count == batch.length 
+                    || batchSize + size.intValue() > CACHE_FETCH_BATCH_SIZE) {
+                fetchBatch(folder, uidValidity, batch, count, found);
+                count = 0;
+                batchSize = 0;
+            }
+            batch[count++] = uid;
+            batchSize += size.intValue();
+        }
+        if (count > 0) {
+            fetchBatch(folder, uidValidity, batch, count, found);
+        }
+    }
+
+    /**
+     * Fetches a batch of messages with one command and stores them in 
+     * {@link #messageCache}
+     *
+     * @param folder open source folder
+     * @param uidValidity UIDVALIDITY of the source folder
+     * @param batch array with the message UIDs at the start
+     * @param count number of UIDs in the batch
+     * @param found receives cached values by UID
+     * @throws MessagingException if messages cannot be fetched
+     */
+    private void fetchBatch(final Folder folder, final long uidValidity, 
+            final long[] batch, final int count, 
+            final Map<Long, byte[]> found) throws MessagingException {
+        final long[] uids = new long[count];
+        System.arraycopy(batch, 0, uids, 0, count);
+        final Map<Long, Flags> flags = new HashMap<Long, Flags>();
+        final Map<Long, byte[]> contents = 
+                ImapCommands.uidFetchMessages(folder, uids, flags);
+        for (final Map.Entry<Long, byte[]> entry : contents.entrySet()) {
+            putCached(uidValidity, entry.getKey(), flags.get(entry.getKey()), 
+                    entry.getValue(), found);
+        }
+    }
+
+    /**
+     * Encodes a downloaded message and stores it in 
+     * {@link #messageCache}
+     *
+     * @param uidValidity UIDVALIDITY of the source folder
+     * @param uid the message UID
+     * @param flags flags of the message
+     * @param content RFC 822 content of the message
+     * @param found receives the cached value by UID
+     */
+    private void putCached(final long uidValidity, final Long uid, 
+            final Flags flags, final byte[] content, 
+            final Map<Long, byte[]> found) {
+        final byte[] value = CachedImapMessage.encode(flags, content);
+        messageCache.put(getCacheKey(this.srcFolder, uidValidity, 
+                uid.longValue()), value);
+        found.put(uid, value);
+    }
+
+    /**
+     * Changes flags of cached messages after they were changed on the 
+     * server
+     *
+     * @param folderName the name of the folder messages are in
+     * @param uidValidity UIDVALIDITY of the folder
+     * @param uids the message UIDs
+     * @param flags flags that changed
+     * @param value true if flags were set, false if cleared
+     */
+    private void updateCachedFlags(final String folderName, 
+            final long uidValidity, final long[] uids, final Flags flags, 
+            final boolean value) {
+        for (final long uid : uids) {
+            final String key = getCacheKey(folderName, uidValidity, uid);
+            final byte[] cached = messageCache.get(key);
+            if (cached != null) {
+                final Flags current = CachedImapMessage.getFlags(cached);
+                if (value) {
+                    current.add(flags);
+                } else {
+                    current.remove(flags);
+                }
+                messageCache.put(key, CachedImapMessage.withFlags(cached, 
+                        current));
+            }
+        }
+    }
+
+    /**
+     * Changes a flag of cached messages after it was changed on the server
+     * by message number
+     *
+     * @param folder open folder of the messages
+     * @param messages messages whose flag changed
+     * @param flag flag that changed
+     * @param value true if flag was set, false if cleared
+     * @throws MessagingException if UIDs cannot be fetched
+     */
+    private void updateCachedFlags(final Folder folder, 
+            final Message[] messages, final Flags.Flag flag, 
+            final boolean value) throws MessagingException {
+        if (messageCache == null) {
+            return;
+        }
+        final FetchProfile uidProfile = new FetchProfile();
+        uidProfile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, uidProfile);
+        final long[] uids = new long[messages.length];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = ((UIDFolder) folder).getUID(messages[i]);
+        }
+        updateCachedFlags(folder.getFullName(), 
+                ((UIDFolder) folder).getUIDValidity(), uids, new Flags(flag),
+                value);
+    }
+
+    /**
+     * Removes messages that left a folder from {@link #messageCache}
+     *
+     * @param folder folder messages were in
+     * @param uids the message UIDs
+     * @throws MessagingException if UIDVALIDITY cannot be read
+     */
+    private void removeCached(final Folder folder, final long[] uids) 
+            throws MessagingException {
+        if (messageCache == null) {
+            return;
+        }
+        final long uidValidity = ((UIDFolder) folder).getUIDValidity();
+        for (final long uid : uids) {
+            messageCache.remove(getCacheKey(folder.getFullName(), 
+                    uidValidity, uid));
+        }
+    }
+
+    /**
+     * Gets the {@link #messageCache} key of a message
+     *
+     * @param folderName the name of the folder
+     * @param uidValidity UIDVALIDITY of the folder
+     * @param uid message UID
+     * @return key, i.e. {@code john@gmail.com/INBOX/1234/567}
+     */
+    private String getCacheKey(final String folderName, 
+            final long uidValidity, final long uid) {
+        return getAccountKey(folderName) + "/" + uidValidity + "/" + uid;
+    }
+
+    /**
+     * Mark {@link GmailMessage}s with given UIDs as read.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @throws GmailException if unable to mark {@link GmailMessage}s as read
+     * @since 0.5
+     */
+    public void markAsReadByUid(final long[] uids) {
+        storeFlagsByUid(this.srcFolder, uids, new Flags(Flags.Flag.SEEN), true);
+    }
+
+    /**
+     * Mark {@link GmailMessage}s with given UIDs as unread.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @throws GmailException if unable to mark {@link GmailMessage}s as unread
+     * @since 0.5
+     */
+    public void markAsUnreadByUid(final long[] uids) {
+        storeFlagsByUid(this.srcFolder, uids, new Flags(Flags.Flag.SEEN), false);
+    }
+
+    /**
+     * Flag {@link GmailMessage}s with given UIDs as Starred.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @throws GmailException if unable to flag {@link GmailMessage}s as starred
+     * @since 0.5
+     */
+    public void addStarByUid(final long[] uids) {
+        storeFlagsByUid(this.srcFolder, uids, new Flags(Flags.Flag.FLAGGED), true);
+    }
+
+    /**
+     * Removes Star Flag of {@link GmailMessage}s with given UIDs. Unlike 
+     * {@link #removeStar(int)}, UIDs refer to the source folder.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @throws GmailException if unable to remove star flag from {@link GmailMessage}s
+     * @since 0.5
+     */
+    public void removeStarByUid(final long[] uids) {
+        storeFlagsByUid(this.srcFolder, uids, new Flags(Flags.Flag.FLAGGED), false);
+    }
+
+    /**
+     * Sets or clears flags of messages with a single {@code UID STORE} command
+     *
+     * @param folderName the name of the folder messages are in
+     * @param uids the message UIDs
+     * @param flags flags to change
+     * @param value true to set the flags, false to clear them
+     * @throws GmailException if UIDs are missing or command fails
+     */
+    private void storeFlagsByUid(final String folderName, final long[] uids,
+            final Flags flags, final boolean value) {
+        Folder folder = null;
+
+        try {
+            folder = openFolder(folderName, Folder.READ_WRITE);
+            ImapCommands.uidStore(folder, uids, flags, value);
+            if (messageCache != null) {
+                updateCachedFlags(folderName, 
+                        ((UIDFolder) folder).getUIDValidity(), uids, flags, 
+                        value);
+            }
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed "
+                    + (value ? "setting" : "clearing") + " flags of "
+                    + uids.length + " GmailMessage(s) by UID", e);
+        } finally {
+            releaseFolder(folder, false);
+        }
+    }
+
+    /**
+     * Moves {@link GmailMessage}s with given UIDs to a destination folder.
+     * Like {@link #moveTo(ImapGmailLabel, int)}, it changes labels when
+     * possible, with one command for all messages.
+     *
+     * @param destFolder the destination {@link Folder} name.See {@see ImapGmailLabel}
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @throws GmailException if it fails to move {@link GmailMessage}s to the
+     * destination folder
+     * @since 0.5
+     */
+    public void moveToByUid(final ImapGmailLabel destFolder, final long[] uids) {
+        checkMoveDestination(destFolder);
+        Folder folder = null;
+        boolean expunge = false;
+
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
+            expunge = move(folder, destFolder, uids);
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed moving "
+                    + "GmailMessage(s) to " + destFolder.getName(), e);
+        } finally {
+            releaseFolder(folder, expunge);
+        }
+    }
+
+    /**
+     * Adds Gmail labels to {@link GmailMessage}s with given UIDs, with one 
+     * command for all messages. Adding a label puts the messages into the 
+     * folder of that label as well.
+     * <p>
+     * Example:
+     * <p><blockquote><pre>
+     *     client.addLabels(uids, "Work/Projects", 
+     *             ImapGmailLabel.IMPORTANT.getGmailLabel());
+     * </pre></blockquote></p>
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @param labels label names, system labels start with a backslash, 
+     * see {@link ImapGmailLabel#getGmailLabel()}
+     * @throws GmailException if labels cannot be added
+     * @since 0.5
+     */
+    public void addLabels(final long[] uids, final String... labels) {
+        storeLabels(uids, labels, true);
+    }
+
+    /**
+     * Removes Gmail labels from {@link GmailMessage}s with given UIDs, with
+     * one command for all messages. Removing the label of the source folder
+     * removes the messages from it.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @param labels label names, system labels start with a backslash, 
+     * see {@link ImapGmailLabel#getGmailLabel()}
+     * @throws GmailException if labels cannot be removed
+     * @since 0.5
+     */
+    public void removeLabels(final long[] uids, final String... labels) {
+        storeLabels(uids, labels, false);
+    }
+
+    /**
+     * Adds or removes labels with a single {@code UID STORE} command
+     *
+     * @param uids the message UIDs
+     * @param labels label names
+     * @param add true to add, false to remove the labels
+     * @throws GmailException if labels are not supported or command fails
+     */
+    private void storeLabels(final long[] uids, final String[] labels,
+            final boolean add) {
+        Folder folder = null;
+
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
+            if (!ImapCommands.hasCapability(folder, "X-GM-EXT-1")) {
+                throw new GmailException("Server does not support X-GM-LABELS");
+            }
+            ImapCommands.uidStoreLabels(folder, uids, labels, add);
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed " 
+                    + (add ? "adding" : "removing") + " labels " 
+                    + Arrays.toString(labels), e);
+        } finally {
+            releaseFolder(folder, false);
+        }
+    }
+
+    /**
+     * Checks that messages can be moved from the source folder to the 
+     * destination
+     *
+     * @param destFolder the destination folder
+     * @throws GmailException if destination is missing or is the source 
+     * folder
+     */
+    private void checkMoveDestination(final ImapGmailLabel destFolder) {
+        if (destFolder == null) {
+            throw new GmailException("ImapGmailClient requires destination "
+                    + "folder");
+        }
+        if (destFolder.getName().equals(this.srcFolder)) {
+            throw new GmailException("ImapGmailClient cannot move "
+                    + "GmailMessage within same folder "
+                    + "(from " + this.srcFolder + " to "
+                    + destFolder.getName() + ")");
+        }
+    }
+
+    /**
+     * Moves messages out of an open folder.
+     * <p>
+     * When both folders are labels (or the destination is All Mail, where 
+     * every message is anyway), the destination label is added and the 
+     * source label is removed. Otherwise the messages are moved with 
+     * {@link #transfer(Folder, long[], String)}. Moved messages are removed
+     * from {@link #messageCache}.
+     *
+     * @param folder source folder open in read/write mode
+     * @param destFolder the destination folder
+     * @param uids the message UIDs
+     * @return true if messages were marked deleted and need expunge
+     * @throws MessagingException if commands fail
+     */
+    private boolean move(final Folder folder, final ImapGmailLabel destFolder,
+            final long[] uids) throws MessagingException {
+        removeCached(folder, uids);
+        final ImapGmailLabel source = ImapGmailLabel.forName(folder.getFullName());
+        if (source != null && source.getGmailLabel() != null
+                && (destFolder.getGmailLabel() != null 
+                        || destFolder == ImapGmailLabel.ALL_MAIL)
+                && ImapCommands.hasCapability(folder, "X-GM-EXT-1")) {
+            if (destFolder.getGmailLabel() != null) {
+                ImapCommands.uidStoreLabels(folder, uids, 
+                        new String[] {destFolder.getGmailLabel()}, true);
+            }
+            ImapCommands.uidStoreLabels(folder, uids, 
+                    new String[] {source.getGmailLabel()}, false);
+            return false;
+        }
+        return transfer(folder, uids, destFolder.getName());
+    }
+
+    /**
+     * Moves {@link GmailMessage}s with given UIDs to 
+     * {@link ImapGmailLabel#TRASH} folder.
+     *
+     * @param uids the message UIDs ex:{@code javaMailGmailMessage.getUid()}
+     * @throws GmailException if unable to move {@link GmailMessage}s to
+     * the Trash Folder
+     * @since 0.5
+     */
+    public void moveToTrashByUid(final long[] uids) {
+        if (ImapGmailLabel.TRASH.getName().equals(this.srcFolder)) {
+            throw new GmailException("ImapGmailClient cannot move "
+                    + "GmailMessage(s) within same folder " + this.srcFolder);
+        }
+        Folder folder = null;
+        boolean expunge = false;
+
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_WRITE);
+            expunge = trash(folder, uids);
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed moving "
+                    + "GmailMessage(s) to trash folder", e);
+        } finally {
+            releaseFolder(folder, expunge);
+        }
+    }
+
+    /**
+     * Marks messages as read and moves them to the Trash folder, removing 
+     * them from {@link #messageCache}
+     *
+     * @param folder source folder open in read/write mode
+     * @param uids the message UIDs
+     * @return true if messages were marked deleted and need expunge
+     * @throws MessagingException if commands fail
+     */
+    private boolean trash(final Folder folder, final long[] uids) 
+            throws MessagingException {
+        removeCached(folder, uids);
+        ImapCommands.uidStore(folder, uids, new Flags(Flags.Flag.SEEN), true);
+        return transfer(folder, uids, ImapGmailLabel.TRASH.getName());
+    }
+
+    /**
+     * Moves messages to another folder with a single {@code UID MOVE} if the
+     * server supports it. Otherwise messages are copied with 
+     * {@code UID COPY}, marked deleted and, if the server supports 
+     * {@code UIDPLUS}, expunged with {@code UID EXPUNGE}, which leaves other
+     * deleted messages alone.
+     *
+     * @param folder source folder open in read/write mode
+     * @param uids the message UIDs
+     * @param destination full name of destination folder
+     * @return true if messages were marked deleted and need expunge
+     * @throws MessagingException if commands fail
+     */
+    private boolean transfer(final Folder folder, final long[] uids,
+            final String destination) throws MessagingException {
+        if (ImapCommands.hasCapability(folder, "MOVE")) {
+            ImapCommands.uidMove(folder, uids, destination);
+            return false;
+        }
+        ImapCommands.uidCopy(folder, uids, destination);
+        ImapCommands.uidStore(folder, uids, new Flags(Flags.Flag.DELETED), true);
+        if (ImapCommands.hasCapability(folder, "UIDPLUS")) {
+            ImapCommands.uidExpunge(folder, uids);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the changes in the source folder since the previous sync with the
+     * same {@link ImapSyncStateStore}: messages that arrived and, if the 
+     * server supports CONDSTORE, current flags of messages whose flags 
+     * changed. Only the changes are downloaded, so it is cheap to call often.
+     * <p>
+     * The first sync and a sync after UIDVALIDITY of the folder changed only
+     * save the state and return a result with 
+     * {@link ImapSyncResult#isFullSync()} set.
+     * <p>
+     * Example of polling for new mail:
+     * <p><blockquote><pre>
+     *     ImapSyncStateStore state = new FileImapSyncStateStore(
+     *             new File("gmail-sync.properties"));
+     *     while (running) {
+     *         ImapSyncResult result = client.sync(state);
+     *         for (GmailMessage message : result.getNewMessages()) {
+     *             // process new message
+     *         }
+     *         Thread.sleep(5000);
+     *     }
+     * </pre></blockquote></p>
+     *
+     * @param stateStore store of the previous sync state
+     * @return changes since the previous sync
+     * @throws GmailException if sync fails
+     * @since 0.5
+     */
+    public ImapSyncResult sync(final ImapSyncStateStore stateStore) {
+        if (stateStore == null) {
+            throw new GmailException("ImapGmailClient requires "
+                    + "ImapSyncStateStore to sync");
+        }
+        Folder folder = null;
+        try {
+            folder = openFolder(this.srcFolder, Folder.READ_ONLY);
+            final String key = getSyncKey();
+            final ImapSyncState previous = stateStore.load(key);
+            final boolean condstore = 
+                    ImapCommands.hasCapability(folder, "CONDSTORE");
+            // STATUS goes over the store connection, where the folder is not
+            // selected; new messages are then read from the selected folder
+            // after a NOOP, so none below UIDNEXT are missed
+            final Folder unselected = folder.getStore().getFolder(
+                    this.srcFolder);
+            final Map<String, Long> status = condstore 
+                    ? ImapCommands.status(unselected, "UIDVALIDITY", "UIDNEXT", 
+                            "HIGHESTMODSEQ")
+                    : ImapCommands.status(unselected, "UIDVALIDITY", "UIDNEXT");
+            final ImapSyncState state = new ImapSyncState(
+                    statusValue(status, "UIDVALIDITY"), 
+                    statusValue(status, "UIDNEXT"),
+                    statusValue(status, "HIGHESTMODSEQ"));
+            final GmailMessageList newMessages = new GmailMessageList();
+            final Map<Long, Flags> changedFlags = new LinkedHashMap<Long, Flags>();
+            final boolean fullSync = previous == null 
+                    || previous.getUidValidity() != state.getUidValidity();
+            if (!fullSync) {
+                if (state.getUidNext() > previous.getUidNext()) {
+                    fetchNewMessages(folder, previous.getUidNext(), 
+                            state.getUidNext(), newMessages);
+                }
+                if (previous.getHighestModSeq() > 0 
+                        && state.getHighestModSeq() > previous.getHighestModSeq()
+                        && previous.getUidNext() > 1) {
+                    changedFlags.putAll(ImapCommands.uidFetchFlagsChangedSince(
+                            folder, "1:" + (previous.getUidNext() - 1), 
+                            previous.getHighestModSeq()));
+                }
+            }
+            if (messageCache != null) {
+                for (final Map.Entry<Long, Flags> entry 
+                        : changedFlags.entrySet()) {
+                    final String cacheKey = getCacheKey(this.srcFolder, 
+                            state.getUidValidity(), 
+                            entry.getKey().longValue());
+                    final byte[] cached = messageCache.get(cacheKey);
+                    if (cached != null) {
+                        messageCache.put(cacheKey, CachedImapMessage.withFlags(
+                                cached, entry.getValue()));
+                    }
+                }
+            }
+            stateStore.save(key, state);
+            LOG.debug("Synced " + key + ": " + newMessages.size() 
+                    + " new messages, " + changedFlags.size() 
+                    + " flag changes, full sync: " + fullSync);
+            return new ImapSyncResult(holdFolder(folder, newMessages), 
+                    changedFlags, fullSync, state);
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("ImapGmailClient failed syncing " 
+                    + this.srcFolder, e);
+        } finally {
+            releaseReturnedFolder(folder);
+        }
+    }
+
+    /**
+     * Reads messages with UIDs from {@code fromUid} to {@code toUid - 1},
+     * prefetching attributes set with {@link #setFetchProfile(FetchProfile)}
+     *
+     * @param folder open source folder
+     * @param fromUid first UID to read
+     * @param toUid UIDNEXT of the folder
+     * @param found list to add messages to
+     * @throws MessagingException if messages cannot be read
+     */
+    private void fetchNewMessages(final Folder folder, final long fromUid,
+            final long toUid, final GmailMessageList found) 
+            throws MessagingException {
+        // lets the folder learn about messages that arrived since it was 
+        // opened; getMessageCount() skips the NOOP if the connection was 
+        // used less than a second ago
+        ImapCommands.noop(folder);
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final List<Message> messages = new ArrayList<Message>();
+        for (final Message msg : uidFolder.getMessagesByUID(fromUid, toUid - 1)) {
+            // "n:m" matches the last message when there are none in range
+            if (msg != null && uidFolder.getUID(msg) >= fromUid) {
+                messages.add(msg);
+            }
+        }
+        found.addAll(fetch(folder, messages.toArray(new Message[0]), 
+                fetchProfile, attachmentCache));
+    }
+
+    /**
+     * Gets the {@link ImapSyncStateStore} key of the source folder
+     *
+     * @return account and folder name, i.e. {@code john@gmail.com/INBOX}
+     */
+    private String getSyncKey() {
+        return getAccountKey(this.srcFolder);
+    }
+
+    /**
+     * Gets the account and name of a folder
+     *
+     * @param folderName the name of the folder
+     * @return account and folder name, i.e. {@code john@gmail.com/INBOX}
+     */
+    private String getAccountKey(final String folderName) {
+        final String username = connection.getLoginCredentials() == null 
+                ? null : connection.getLoginCredentials().getUsername();
+        return username + "/" + folderName;
+    }
+
+    /**
+     * Gets a value of a {@code STATUS} response
+     *
+     * @param status status values by item name
+     * @param item item name
+     * @return item value or 0 if server did not return it
+     */
+    private static long statusValue(final Map<String, Long> status, 
+            final String item) {
+        final Long value = status.get(item);
+        return value == null ? 0 : value.longValue();
+    }
+
+    /**
+     * Returns list of unread/read priority {@link GmailMessage} objects 
+     * based on the {@code unreadOnly} value
+     * 
+     * @param unreadOnly {@code true} to unread priority {@link GmailMessage} 
+     * objects only, {@code false} to read priority {@link GmailMessage} 
+     * objects only
+     * @return List of unread/read priority messages
+     * @throws GmailException if unable to get unread/read priority messages
+     */
+    public List<GmailMessage> getPriorityMessages(boolean unreadOnly){
+        return getPriorityMessages(unreadOnly, fetchProfile);
+    }
+
+    /**
+     * Returns list of unread/read priority {@link GmailMessage} objects 
+     * based on the {@code unreadOnly} value, prefetching given attributes
+     * 
+     * @param unreadOnly {@code true} to unread priority {@link GmailMessage} 
+     * objects only, {@code false} to read priority {@link GmailMessage} 
+     * objects only
+     * @param profile attributes to prefetch, can be null
+     * @return List of unread/read priority messages
+     * @throws GmailException if unable to get unread/read priority messages
+     * @since 0.5
+     */
+    public List<GmailMessage> getPriorityMessages(final boolean unreadOnly,
+            final FetchProfile profile) {
+        Folder folder = null;
+        try {
+            folder = openFolder(ImapGmailLabel.IMPORTANT.getName(), 
+                    Folder.READ_ONLY);
+            final Message[] messages = folder.search(new FlagTerm(
+                    new Flags(Flags.Flag.SEEN), !unreadOnly));
+            return new ArrayList<GmailMessage>(holdFolder(folder, 
+                    fetch(folder, messages, profile, attachmentCache)));
         } catch (final Exception e) {
             throw new GmailException("Failed getting priority messages", e);
+        } finally {
+            releaseReturnedFolder(folder);
         }
     }
 
+    /**
+     * Wraps messages into {@link JavaMailGmailMessage}s, fetching attributes
+     * of all of them with one IMAP FETCH command, plus one more for 
+     * {@link GmailFetchProfileItem}s if the profile has any
+     * 
+     * @param folder open folder of the messages
+     * @param messages messages to prefetch
+     * @param profile attributes to fetch, nothing is fetched if null
+     * @return wrapped messages
+     * @throws MessagingException if fetch fails
+     */
+    static GmailMessageList fetch(final Folder folder, final Message[] messages,
+            final FetchProfile profile) throws MessagingException {
+        return fetch(folder, messages, profile, null);
+    }
+
+    /**
+     * Wraps messages like {@link #fetch(Folder, Message[], FetchProfile)} 
+     * and gives them a cache of attachment data
+     * 
+     * @param folder open folder of the messages
+     * @param messages messages to prefetch
+     * @param profile attributes to fetch, nothing is fetched if null
+     * @param attachmentCache cache of attachment data, can be null
+     * @return wrapped messages
+     * @throws MessagingException if fetch fails
+     */
+    static GmailMessageList fetch(final Folder folder, final Message[] messages,
+            final FetchProfile profile, 
+            final ImapAttachmentCache attachmentCache) 
+            throws MessagingException {
+        final GmailMessageList found = new GmailMessageList(messages.length);
+        if (messages.length == 0) {
+            return found;
+        }
+        final FetchProfile standard = ImapCommands.standardItems(profile);
+        if (standard != null) {
+            folder.fetch(messages, standard);
+        }
+        final List<JavaMailGmailMessage> wrapped = 
+                new ArrayList<JavaMailGmailMessage>(messages.length);
+        for (final Message msg : messages) {
+            if (msg instanceof IMAPMessage) {
+                // cached folders are read/write, reading content must not
+                // mark the message as seen
+                ((IMAPMessage) msg).setPeek(true);
+            }
+            final JavaMailGmailMessage message = new JavaMailGmailMessage(msg);
+            message.setAttachmentCache(attachmentCache);
+            wrapped.add(message);
+        }
+        final GmailFetchProfileItem[] gmailItems = 
+                ImapCommands.gmailItems(profile);
+        if (gmailItems.length > 0) {
+            if (ImapCommands.hasCapability(folder, "X-GM-EXT-1")) {
+                ImapCommands.fetchGmailAttributes(folder, wrapped, gmailItems);
+            } else {
+                LOG.debug("Server does not support Gmail fetch items");
+            }
+        }
+        found.addAll(wrapped);
+        return found;
+    }
+
+    /**
+     * Creates the default {@link #fetchProfile} with the envelope (from, to,
+     * cc, subject, send date, Message-ID), flags and UID
+     * 
+     * @return new default profile
+     */
+    private static FetchProfile createDefaultFetchProfile() {
+        final FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        return profile;
+    }
+
      /**
      * Return the {@link Folder} object corresponding to the given 
      * {@link ImapGmailLabel} name. 
@@ -586,6 +2079,116 @@ public class ImapGmailClient extends GmailClient {
         throw new GmailException("ImapGmailClient Folder name cannot be null");
     }
     
+    /**
+     * Opens the named {@link Folder} in the given mode. 
+     * <p>
+     * With a persistent store the folder is taken from the connection's
+     * {@link ImapFolderCache} and stays open after the operation. The 
+     * folder must be released with {@link #releaseFolder(Folder, boolean)}
+     * or {@link #releaseReturnedFolder(Folder)}.
+     * 
+     * @param name the name of the folder
+     * @param mode {@link Folder#READ_ONLY} or {@link Folder#READ_WRITE}
+     * @return open folder
+     * @throws MessagingException if folder cannot be opened
+     * @see #releaseFolder(Folder, boolean)
+     */
+    private Folder openFolder(final String name, final int mode) 
+            throws MessagingException {
+        final Store store = openGmailStore();
+        if (isPersistentStore()) {
+            return ((ImapGmailConnection) connection).getFolderCache()
+                    .getFolder(store, name, mode);
+        }
+        final Folder folder = getFolder(name, store);
+        folder.open(mode);
+        return folder;
+    }
+
+    /**
+     * Releases a {@link Folder} taken with {@link #openFolder(String, int)}.
+     * <p>
+     * Cached folders stay open and deleted messages are expunged on the next
+     * {@link ImapFolderCache#flush()}, other folders are closed.
+     * 
+     * @param folder folder to release, can be null
+     * @param expunge true if folder has deleted messages to expunge
+     */
+    private void releaseFolder(final Folder folder, final boolean expunge) {
+        if (folder == null) {
+            return;
+        }
+        if (isPersistentStore()) {
+            final ImapFolderCache cache = 
+                    ((ImapGmailConnection) connection).getFolderCache();
+            if (expunge) {
+                cache.markForExpunge(folder.getFullName());
+            }
+            cache.releaseFolder(folder);
+        } else {
+            closeFolder(folder);
+        }
+    }
+
+    /**
+     * Releases a {@link Folder} taken with {@link #openFolder(String, int)}
+     * whose messages are returned to the caller. Cached folders are 
+     * released, other folders stay open so the messages can still load 
+     * their content.
+     * 
+     * @param folder folder to release, can be null
+     */
+    private void releaseReturnedFolder(final Folder folder) {
+        if (folder != null && isPersistentStore()) {
+            ((ImapGmailConnection) connection).getFolderCache()
+                    .releaseFolder(folder);
+        }
+    }
+
+    /**
+     * Keeps a cached {@link Folder} open while messages read from it are 
+     * reachable, so that they can load their content after the folder is
+     * released
+     * 
+     * @param folder folder taken with {@link #openFolder(String, int)}
+     * @param messages messages returned to the caller
+     * @return the messages
+     * @see ImapFolderCache#holdFolder(Folder, java.util.Collection)
+     */
+    private GmailMessageList holdFolder(final Folder folder, 
+            final GmailMessageList messages) {
+        if (isPersistentStore()) {
+            ((ImapGmailConnection) connection).getFolderCache()
+                    .holdFolder(folder, messages);
+        }
+        return messages;
+    }
+
+    /**
+     * Expunges messages deleted by earlier operations. Needed only in 
+     * persistent store mode, where expunge is deferred until this call, 
+     * a scheduled flush or {@link #disconnect()}.
+     *
+     * @throws GmailException if expunge fails
+     * @see ImapFolderCache#flush()
+     * @since 0.5
+     */
+    public void flush() {
+        if (isPersistentStore()) {
+            ((ImapGmailConnection) connection).getFolderCache().flush();
+        }
+    }
+
+    /**
+     * Tells if the {@link #connection} keeps its {@link Store} alive
+     * 
+     * @return true if connection is in persistent store mode
+     */
+    private boolean isPersistentStore() {
+        return connection instanceof ImapGmailConnection
+                && ((ImapGmailConnection) connection).isPersistentStore();
+    }
+    
     /**
      * Close any {@link Folder} that contain {@link Message} and are in open state.
      *
@@ -605,23 +2208,9 @@ public class ImapGmailClient extends GmailClient {
         }
     }
     
-    /**
-     * Parse a date in "yyyy-MM-dd HH:mm:ss" format
-     * 
-     * @param date
-     * @return
-     */
-    private Date parseDate(String date) {
-        try {
-            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(date);
-        } catch (ParseException e) {
-            LOG.error("Bad date format in " + date + ". Use yyyy-MM-dd HH:mm:ss");
-            return new Date();
-        }
-    }
-    
     @Override
     public void disconnect() {
+        stopIdleWatcher();
         if (connection != null) {
             connection.disconnect();
         }
@@ -55,6 +55,14 @@ import com.googlecode.gmail4j.util.Constants;
  *     GmailClient client = new ImapGmailClient();
  *     client.setConnection(conn);
  * </pre></blockquote></p>
+ * By default every call of {@link #openGmailStore()} reconnects to Gmail. 
+ * When the connection is used for many operations, enable the persistent 
+ * store mode to keep one authenticated {@link Store} alive:
+ * <p><blockquote><pre>
+ *     ImapGmailConnection conn = new ImapGmailConnection("user", 
+ *         "pass".toCharArray());
+ *     conn.setPersistentStore(true);
+ * </pre></blockquote></p>
  * 
  * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
  * @since 0.3
@@ -137,6 +145,22 @@ public class ImapGmailConnection extends GmailConnection implements ProxyAware {
      */
     private boolean connected = false;
     
+    /**
+     * Keep the {@link #store} connected between {@link #openGmailStore()}
+     * calls instead of reconnecting each time.
+     * 
+     * @see #isPersistentStore()
+     * @see #setPersistentStore(boolean)
+     */
+    private boolean persistentStore = false;
+    
+    /**
+     * Open folders of the persistent {@link #store}
+     * 
+     * @see #getFolderCache()
+     */
+    private final ImapFolderCache folderCache = new ImapFolderCache();
+    
     /**
      * Argless constructor.
      */
@@ -247,18 +271,77 @@ public class ImapGmailConnection extends GmailConnection implements ProxyAware {
         return gmailImapPort;
     }
 
+    /**
+     * Is the persistent store mode enabled?
+     * 
+     * @return true if {@link #openGmailStore()} reuses a live {@link Store}
+     * @since 0.5
+     */
+    public boolean isPersistentStore() {
+        return persistentStore;
+    }
+
+    /**
+     * Sets {@link #persistentStore}.
+     * <p>
+     * When enabled, {@link #openGmailStore()} keeps one authenticated 
+     * {@link Store} alive and only checks it with a NOOP before handing it 
+     * out again. The store is reconnected transparently if the check fails.
+     * When disabled (the default), every call opens a fresh connection.
+     * 
+     * @param persistentStore true to reuse the store between calls
+     * @since 0.5
+     */
+    public void setPersistentStore(final boolean persistentStore) {
+        this.persistentStore = persistentStore;
+    }
+
+    /**
+     * Gets {@link #folderCache}. Folders are cached only in persistent store
+     * mode.
+     * 
+     * @return cache of open folders
+     * @since 0.5
+     */
+    public ImapFolderCache getFolderCache() {
+        return folderCache;
+    }
+
+    /**
+     * Creates a new, not yet connected, connection with the same credentials,
+     * hosts and proxy settings as this one, in persistent store mode.
+     * 
+     * @return configured copy of this connection
+     * @since 0.5
+     */
+    ImapGmailConnection copy() {
+        final ImapGmailConnection copy = new ImapGmailConnection(loginCredentials);
+        copy.gmailImapHost = gmailImapHost;
+        copy.gmailImapPort = gmailImapPort;
+        copy.gmailSmtpHost = gmailSmtpHost;
+        copy.gmailSmtpPort = gmailSmtpPort;
+        copy.proxy = proxy;
+        copy.proxyCredentials = proxyCredentials;
+        copy.persistentStore = true;
+        return copy;
+    }
+
     /**
      * Opens Gmail {@link Store}
      * 
      * @return singleton instance of Gmail {@link Store}
      */
-    public Store openGmailStore() {
+    public synchronized Store openGmailStore() {
+        if (persistentStore && isStoreAlive()) {
+            return store;
+        }
         try {
             // if stort object instance is not null and the service connection state
             // is connected then close this service and terminate its connection.
             // Note : due to security concerns gmail imap only allow max 10 
             // connections because of this reason any existing connection that 
-            // is open should terminate.
+            // is open should terminate. Use ImapConnectionPool to share
+            // connections between threads within that limit.
             if (isConnected()) {
                 disconnect();
             }            
@@ -276,6 +359,27 @@ public class ImapGmailConnection extends GmailConnection implements ProxyAware {
         return store;
     }
 
+    /**
+     * Checks if the current {@link #store} can be reused. 
+     * <p>
+     * {@link Store#isConnected()} of the IMAP store sends a NOOP, so a
+     * connection dropped by Gmail is noticed here instead of failing the
+     * next command.
+     * 
+     * @return true if the store is connected and responding
+     */
+    private boolean isStoreAlive() {
+        if (store == null || !isConnected()) {
+            return false;
+        }
+        if (store.isConnected()) {
+            return true;
+        }
+        log.debug("Gmail IMAP store is no longer connected, reconnecting");
+        folderCache.clear();
+        disconnect();
+        return false;
+    }
 
     /**
      * Gets Gmail {@link Transport}
@@ -333,13 +437,16 @@ public class ImapGmailConnection extends GmailConnection implements ProxyAware {
     }
 
     @Override
-    public void disconnect() {
+    public synchronized void disconnect() {
         try {
             if (isConnected()) {
+                folderCache.close();
                 store.close();
             }
         } catch (final Exception e) {
             log.warn("Failed closing Gmail IMAP store", e);
+        } finally {
+            setConnected(false);
         }
     }
 
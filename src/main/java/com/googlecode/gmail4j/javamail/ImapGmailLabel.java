@@ -41,48 +41,56 @@ public enum ImapGmailLabel {
     /**
      * Imap Gmail folder label name for {@code [Gmail]/All Mail}
      */
-    ALL_MAIL("[Gmail]/All Mail"),
+    ALL_MAIL("[Gmail]/All Mail", null),
     /**
      * Imap Gmail folder label name for {@code [Gmail]/Drafts}
      */
-    DRAFTS("[Gmail]/Drafts"),
+    DRAFTS("[Gmail]/Drafts", "\\Draft"),
     /**
      * Imap Gmail folder label name for {@code [Gmail]/Sent Mail}
      */
-    SENT_MAIL("[Gmail]/Sent Mail"),
+    SENT_MAIL("[Gmail]/Sent Mail", "\\Sent"),
     /**
      * Imap Gmail folder label name for {@code [Gmail]/Spam}
      */
-    SPAM("[Gmail]/Spam"),
+    SPAM("[Gmail]/Spam", null),
     /**
      * Imap Gmail folder label name for {@code [Gmail]/Starred}
      */
-    STARRED("[Gmail]/Starred"),
+    STARRED("[Gmail]/Starred", "\\Starred"),
     /**
      * Imap Gmail folder label name for {@code INBOX}
      */
-    INBOX("INBOX"),
+    INBOX("INBOX", "\\Inbox"),
     /**
      * Imap Gmail folder label name for {@code [Gmail]/Trash}
      */
-    TRASH("[Gmail]/Trash"),
+    TRASH("[Gmail]/Trash", null),
     /**
      * Imap Gmail folder label name for {@code [Gmail]/Important}
      */
-    IMPORTANT("[Gmail]/Important");
+    IMPORTANT("[Gmail]/Important", "\\Important");
    
     /**
      * Imap Gmail folder label name
      */
     private String name;
 
+    /**
+     * Gmail system label used with {@code X-GM-LABELS}, null if the folder
+     * cannot be changed as a label
+     */
+    private String gmailLabel;
+
     /**
      * Constructor with Imap Gmail label name
      *
      * @param name Gmail Imap folder label name
+     * @param gmailLabel Gmail system label, can be null
      */
-    private ImapGmailLabel(String name) {
+    private ImapGmailLabel(String name, String gmailLabel) {
         this.name = name;
+        this.gmailLabel = gmailLabel;
     }
 
     /**
@@ -94,6 +102,34 @@ public enum ImapGmailLabel {
         return name;
     }
 
+    /**
+     * Gets the {@link #gmailLabel}
+     *
+     * @return Gmail system label, i.e. {@code \Inbox}, or null for 
+     * {@link #ALL_MAIL}, {@link #SPAM} and {@link #TRASH}, which are not 
+     * labels that can be added or removed
+     * @since 0.5
+     */
+    public String getGmailLabel() {
+        return gmailLabel;
+    }
+
+    /**
+     * Finds the label of a folder
+     *
+     * @param name full name of the folder
+     * @return label or null if the folder is not a default Gmail folder
+     * @since 0.5
+     */
+    public static ImapGmailLabel forName(final String name) {
+        for (final ImapGmailLabel label : values()) {
+            if (label.name.equals(name)) {
+                return label;
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return name;
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailMessageList;
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * Watches a Gmail folder with IMAP IDLE on a dedicated connection and 
+ * notifies {@link NewMessageListener}s about new messages.
+ * <p>
+ * Servers end IDLE after about 30 minutes, so it is re-issued every 
+ * {@link #REFRESH_INTERVAL}. When the connection drops, the watcher 
+ * reconnects, waiting longer after each failed attempt, up to 
+ * {@link #MAX_RECONNECT_DELAY}.
+ *
+ * @see ImapGmailClient#addNewMessageListener(NewMessageListener)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+class ImapIdleWatcher implements Runnable {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapIdleWatcher.class);
+
+    /**
+     * How often IDLE is re-issued, in milliseconds
+     */
+    static final long REFRESH_INTERVAL = 29 * 60 * 1000;
+
+    /**
+     * First delay before reconnecting, in milliseconds
+     */
+    static final long MIN_RECONNECT_DELAY = 1000;
+
+    /**
+     * Longest delay before reconnecting, in milliseconds
+     */
+    static final long MAX_RECONNECT_DELAY = 5 * 60 * 1000;
+
+    /**
+     * Connection the watched client uses, copied when there is no 
+     * {@link #pool}
+     */
+    private final ImapGmailConnection template;
+
+    /**
+     * Pool to borrow the dedicated connection from, can be null
+     */
+    private final ImapConnectionPool pool;
+
+    /**
+     * Full name of the watched folder
+     */
+    private final String folderName;
+
+    /**
+     * Listeners to notify, shared with the client
+     */
+    private final List<NewMessageListener> listeners;
+
+    /**
+     * Attributes to prefetch for new messages, can be null
+     */
+    private final FetchProfile fetchProfile;
+
+    /**
+     * Timer that interrupts IDLE for a refresh
+     */
+    private final Timer refreshTimer;
+
+    /**
+     * Thread running the watcher
+     */
+    private final Thread thread;
+
+    /**
+     * Dedicated connection, null while disconnected
+     */
+    private ImapGmailConnection connection;
+
+    /**
+     * Watched folder, null while disconnected
+     */
+    private volatile Folder folder;
+
+    /**
+     * Cleared by {@link #stop()}
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Constructor
+     *
+     * @param template connection of the client
+     * @param pool pool to borrow a connection from, can be null
+     * @param folderName full name of the folder to watch
+     * @param listeners listeners to notify
+     * @param fetchProfile attributes to prefetch, can be null
+     */
+    ImapIdleWatcher(final ImapGmailConnection template,
+            final ImapConnectionPool pool, final String folderName,
+            final List<NewMessageListener> listeners,
+            final FetchProfile fetchProfile) {
+        this.template = template;
+        this.pool = pool;
+        this.folderName = folderName;
+        this.listeners = listeners;
+        this.fetchProfile = fetchProfile;
+        this.refreshTimer = new Timer("ImapIdleWatcher-refresh", true);
+        this.thread = new Thread(this, "ImapIdleWatcher-" + folderName);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching in a background thread
+     */
+    void start() {
+        refreshTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, REFRESH_INTERVAL, REFRESH_INTERVAL);
+        thread.start();
+    }
+
+    /**
+     * Stops watching and releases the dedicated connection
+     */
+    void stop() {
+        running = false;
+        refreshTimer.cancel();
+        thread.interrupt();
+        // closing the folder ends IDLE
+        closeFolder();
+    }
+
+    public void run() {
+        long delay = MIN_RECONNECT_DELAY;
+        while (running) {
+            try {
+                final IMAPFolder f = connect();
+                delay = MIN_RECONNECT_DELAY;
+                while (running && f.isOpen()) {
+                    f.idle();
+                }
+                if (running) {
+                    log.debug(folderName + " was closed, reconnecting");
+                    disconnect(false);
+                }
+            } catch (final Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.warn("IDLE on " + folderName + " failed, reconnecting in "
+                        + delay + " ms", e);
+                disconnect(false);
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException ie) {
+                    break;
+                }
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+            }
+        }
+        disconnect(true);
+        log.debug("Stopped watching " + folderName);
+    }
+
+    /**
+     * Opens the dedicated connection and the watched folder
+     *
+     * @return watched folder
+     * @throws Exception if connecting fails
+     */
+    private IMAPFolder connect() throws Exception {
+        final ImapGmailConnection conn;
+        if (pool != null) {
+            conn = pool.borrowConnection();
+        } else {
+            conn = template.copy();
+        }
+        synchronized (this) {
+            connection = conn;
+        }
+        final IMAPFolder f = ImapCommands.imap(
+                conn.openGmailStore().getFolder(folderName));
+        f.open(Folder.READ_ONLY);
+        f.addMessageCountListener(new MessageCountAdapter() {
+            @Override
+            public void messagesAdded(final MessageCountEvent e) {
+                notifyListeners(f, e.getMessages());
+            }
+        });
+        folder = f;
+        log.debug("Watching " + folderName + " with IDLE");
+        return f;
+    }
+
+    /**
+     * Ends the current IDLE, so it is re-issued before the server drops it.
+     * Any folder command makes JavaMail end IDLE.
+     */
+    private void refresh() {
+        final Folder f = folder;
+        if (f != null && f.isOpen()) {
+            try {
+                f.getMessageCount();
+            } catch (final Exception e) {
+                log.debug("IDLE refresh of " + folderName + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Prefetches new messages and passes them to the listeners
+     *
+     * @param f watched folder
+     * @param messages new messages
+     */
+    private void notifyListeners(final Folder f, final Message[] messages) {
+        GmailMessageList arrived;
+        try {
+            arrived = ImapGmailClient.fetch(f, messages, fetchProfile);
+        } catch (final Exception e) {
+            log.warn("Failed prefetching new messages of " + folderName, e);
+            arrived = new GmailMessageList(messages.length);
+            for (final Message msg : messages) {
+                arrived.add(new JavaMailGmailMessage(msg));
+            }
+        }
+        for (final NewMessageListener listener : listeners) {
+            try {
+                listener.messagesArrived(arrived);
+            } catch (final RuntimeException e) {
+                log.error("NewMessageListener failed: " + listener, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the watched folder, ignoring errors
+     */
+    private void closeFolder() {
+        final Folder f = folder;
+        folder = null;
+        if (f != null && f.isOpen()) {
+            try {
+                f.close(false);
+            } catch (final Exception e) {
+                log.debug("Cannot close folder : " + folderName, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the folder and releases the dedicated connection
+     *
+     * @param healthy true if the connection can be reused by the pool
+     */
+    private void disconnect(final boolean healthy) {
+        closeFolder();
+        final ImapGmailConnection conn;
+        synchronized (this) {
+            conn = connection;
+            connection = null;
+        }
+        if (conn == null) {
+            return;
+        }
+        if (pool == null) {
+            conn.disconnect();
+        } else if (healthy) {
+            pool.returnConnection(conn);
+        } else {
+            pool.invalidateConnection(conn);
+        }
+    }
+}
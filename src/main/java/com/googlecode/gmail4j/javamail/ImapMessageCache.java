@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+/**
+ * Local storage of message content in front of 
+ * {@link ImapGmailClient#getMessagesByUid(long[])}. Implement it to keep 
+ * messages in another place, i.e. a database or a shared cache.
+ * <p>
+ * Keys are made of the account, folder, UIDVALIDITY and UID of a message, 
+ * i.e. {@code john@gmail.com/INBOX/1234/567}, and never change meaning: 
+ * a new UIDVALIDITY gives new keys. Values are the message content with 
+ * its flags. Implementations may drop any entry at any time, the client
+ * fetches it again.
+ *
+ * @see MemoryImapMessageCache
+ * @see FileImapMessageCache
+ * @see TieredImapMessageCache
+ * @see ImapGmailClient#setMessageCache(ImapMessageCache)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public interface ImapMessageCache {
+
+    /**
+     * Gets an entry
+     *
+     * @param key message key
+     * @return stored value or null if there is none
+     */
+    byte[] get(String key);
+
+    /**
+     * Stores an entry, replacing the previous one. The value must not be 
+     * changed afterwards.
+     *
+     * @param key message key
+     * @param value value to store
+     */
+    void put(String key, byte[] value);
+
+    /**
+     * Removes an entry if it exists
+     *
+     * @param key message key
+     */
+    void remove(String key);
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.UIDFolder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailException;
+import com.googlecode.gmail4j.GmailMessage;
+import com.googlecode.gmail4j.GmailMessageList;
+
+/**
+ * Iterates over search results in chunks, so that any number of messages
+ * can be processed with bounded memory.
+ * <p>
+ * The search is done once and only UIDs of matching messages are kept.
+ * Messages are fetched {@link #getChunkSize()} at a time with one IMAP
+ * command per chunk, and the next chunk is prefetched on a background
+ * thread while the current one is processed. The iterator uses its own
+ * connection (borrowed from the {@link ImapConnectionPool} of the client if
+ * it has one), so the client can be used while iterating.
+ * <p>
+ * JavaMail keeps every message it has loaded for as long as the folder is
+ * open, so the folder is reopened after every {@link #MESSAGES_PER_FOLDER}
+ * messages. Prefetched attributes of messages returned before stay
+ * readable, but anything else (i.e. the content) must be read before the
+ * iterator moves that far ahead, or must be in the fetch profile. The
+ * old folder is closed before the new one is opened, so the chunk after
+ * a reopen is not prefetched, and the iterator never holds more than the
+ * store and one folder connection.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     ImapMessageIterator it = client.iterateMessagesBy(
+ *             ImapSearchQuery.where(EmailSearchStrategy.FROM, "boss"));
+ *     try {
+ *         while (it.hasNext()) {
+ *             process(it.next());
+ *         }
+ *     } finally {
+ *         it.close();
+ *     }
+ * </pre></blockquote></p>
+ * Iterator is closed automatically when {@link #hasNext()} returns false,
+ * so the last message stays readable until then.
+ *
+ * @see ImapGmailClient#iterateMessagesBy(ImapSearchQuery)
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class ImapMessageIterator implements Iterator<GmailMessage>, Closeable {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapMessageIterator.class);
+
+    /**
+     * Default number of messages fetched with one IMAP command
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /**
+     * Number of messages after which the folder is reopened to let JavaMail
+     * drop loaded messages
+     */
+    public static final int MESSAGES_PER_FOLDER = 10000;
+
+    /**
+     * How long {@link #close()} waits for a running prefetch, in 
+     * milliseconds
+     */
+    private static final long PREFETCH_TIMEOUT = 60 * 1000;
+
+    /**
+     * Connection of the client, copied when there is no {@link #pool}
+     */
+    private final ImapGmailConnection template;
+
+    /**
+     * Pool to borrow the dedicated connection from, can be null
+     */
+    private final ImapConnectionPool pool;
+
+    /**
+     * Full name of the searched folder
+     */
+    private final String folderName;
+
+    /**
+     * UIDs of matching messages in ascending order
+     */
+    private final long[] uids;
+
+    /**
+     * Attributes to prefetch, can be null
+     */
+    private final FetchProfile fetchProfile;
+
+    /**
+     * Cache of attachment data given to fetched messages, can be null
+     */
+    private final ImapAttachmentCache attachmentCache;
+
+    /**
+     * Number of messages per chunk
+     */
+    private final int chunkSize;
+
+    /**
+     * Fetches the next chunk in background
+     */
+    private final ExecutorService prefetcher;
+
+    /**
+     * Guards {@link #connection}. The prefetch thread never locks the 
+     * iterator itself, which waits for it.
+     */
+    private final Object connectionLock = new Object();
+
+    /**
+     * Dedicated connection, null until first fetch and after close
+     */
+    private ImapGmailConnection connection;
+
+    /**
+     * Folder the next chunk is fetched from
+     */
+    private Folder fetchFolder;
+
+    /**
+     * Index of the first message fetched from {@link #fetchFolder}
+     */
+    private int fetchFolderStart;
+
+    /**
+     * Folder of the {@link #current} chunk
+     */
+    private Folder currentFolder;
+
+    /**
+     * Messages of the chunk being iterated
+     */
+    private GmailMessage[] current = new GmailMessage[0];
+
+    /**
+     * Position in {@link #current}
+     */
+    private int position;
+
+    /**
+     * Index in {@link #uids} of the next chunk to fetch
+     */
+    private int nextChunkStart;
+
+    /**
+     * Next chunk being fetched in background, can be null
+     */
+    private Future<Chunk> pending;
+
+    /**
+     * Set by {@link #close()}
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param template connection of the client
+     * @param pool pool to borrow a connection from, can be null
+     * @param folderName full name of the searched folder
+     * @param uids UIDs of matching messages in ascending order
+     * @param fetchProfile attributes to prefetch, can be null
+     * @param chunkSize number of messages per chunk
+     * @param attachmentCache cache of attachment data, can be null
+     */
+    ImapMessageIterator(final ImapGmailConnection template,
+            final ImapConnectionPool pool, final String folderName,
+            final long[] uids, final FetchProfile fetchProfile,
+            final int chunkSize, final ImapAttachmentCache attachmentCache) {
+        if (chunkSize < 1) {
+            throw new GmailException("ImapMessageIterator chunk size must be "
+                    + "positive");
+        }
+        this.template = template;
+        this.pool = pool;
+        this.folderName = folderName;
+        this.uids = uids;
+        this.fetchProfile = fetchProfile;
+        this.chunkSize = chunkSize;
+        this.attachmentCache = attachmentCache;
+        this.prefetcher = Executors.newSingleThreadExecutor(
+                new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "ImapMessageIterator-"
+                        + folderName);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (uids.length == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Gets the number of messages that matched the search
+     *
+     * @return total number of messages
+     */
+    public int getTotalCount() {
+        return uids.length;
+    }
+
+    /**
+     * Gets the number of messages fetched with one IMAP command
+     *
+     * @return chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized boolean hasNext() {
+        while (position >= current.length) {
+            if (closed || nextChunkStart >= uids.length && pending == null) {
+                close();
+                return false;
+            }
+            nextChunk();
+        }
+        return true;
+    }
+
+    public synchronized GmailMessage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final GmailMessage msg = current[position];
+        // forget the message, so that it can be collected after use
+        current[position++] = null;
+        return msg;
+    }
+
+    /**
+     * Not supported
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public void remove() {
+        throw new UnsupportedOperationException(
+                "ImapMessageIterator does not support remove()");
+    }
+
+    /**
+     * Stops fetching, closes folders and releases the dedicated connection.
+     * Messages returned before keep their prefetched attributes.
+     */
+    public synchronized void close() {
+        if (closed && prefetcher.isTerminated()) {
+            return;
+        }
+        closed = true;
+        prefetcher.shutdown();
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        try {
+            // a running fetch still uses the folder
+            prefetcher.awaitTermination(PREFETCH_TIMEOUT, 
+                    TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current = new GmailMessage[0];
+        position = 0;
+        closeFolder(currentFolder);
+        if (fetchFolder != currentFolder) {
+            closeFolder(fetchFolder);
+        }
+        currentFolder = null;
+        fetchFolder = null;
+        final ImapGmailConnection conn;
+        synchronized (connectionLock) {
+            conn = connection;
+            connection = null;
+        }
+        if (conn == null) {
+            return;
+        }
+        if (pool == null) {
+            conn.disconnect();
+        } else {
+            pool.returnConnection(conn);
+        }
+    }
+
+    /**
+     * Makes the next chunk current and starts prefetching the one after it
+     */
+    private void nextChunk() {
+        final Chunk chunk;
+        try {
+            if (pending != null) {
+                chunk = pending.get();
+                pending = null;
+            } else {
+                if (needsNewFolder(nextChunkStart)) {
+                    // all its messages have been returned and processed
+                    closeFolder(currentFolder);
+                }
+                chunk = fetchChunk(nextChunkStart);
+            }
+        } catch (final ExecutionException e) {
+            close();
+            throw new GmailException("Failed fetching messages of "
+                    + folderName, e.getCause());
+        } catch (final InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new GmailException("Interrupted fetching messages of "
+                    + folderName, e);
+        } catch (final RuntimeException e) {
+            close();
+            throw e;
+        }
+        nextChunkStart = chunk.end;
+        if (currentFolder != null && currentFolder != chunk.folder) {
+            // the messages of the old folder have all been returned
+            closeFolder(currentFolder);
+        }
+        currentFolder = chunk.folder;
+        current = chunk.messages.toArray(
+                new GmailMessage[chunk.messages.size()]);
+        position = 0;
+        if (nextChunkStart < uids.length && !needsNewFolder(nextChunkStart)) {
+            final int start = nextChunkStart;
+            pending = prefetcher.submit(new Callable<Chunk>() {
+                public Chunk call() {
+                    return fetchChunk(start);
+                }
+            });
+        }
+    }
+
+    /**
+     * Tells if fetching from a message needs a new folder. Must not be 
+     * called while a prefetch is pending.
+     *
+     * @param start index in {@link #uids} of the first message to fetch
+     * @return true if {@link #fetchFolder} cannot be used
+     */
+    private boolean needsNewFolder(final int start) {
+        return fetchFolder == null 
+                || start - fetchFolderStart >= MESSAGES_PER_FOLDER;
+    }
+
+    /**
+     * Fetches a chunk of messages, opening a new folder when the current
+     * one has been used for {@link #MESSAGES_PER_FOLDER} messages
+     *
+     * @param start index in {@link #uids} of the first message
+     * @return fetched chunk
+     * @throws GmailException if fetch fails
+     */
+    private Chunk fetchChunk(final int start) {
+        final int end = Math.min(start + chunkSize, uids.length);
+        try {
+            final Folder folder = getFetchFolder(start);
+            final long[] chunkUids = new long[end - start];
+            System.arraycopy(uids, start, chunkUids, 0, chunkUids.length);
+            final Message[] loaded =
+                    ((UIDFolder) folder).getMessagesByUID(chunkUids);
+            final List<Message> existing =
+                    new ArrayList<Message>(loaded.length);
+            for (final Message msg : loaded) {
+                // messages expunged after the search are skipped
+                if (msg != null) {
+                    existing.add(msg);
+                }
+            }
+            final GmailMessageList messages = ImapGmailClient.fetch(folder,
+                    existing.toArray(new Message[existing.size()]),
+                    fetchProfile, attachmentCache);
+            log.debug("Fetched messages " + start + "-" + end + " of "
+                    + uids.length + " from " + folderName);
+            return new Chunk(folder, messages, end);
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("Failed fetching messages of "
+                    + folderName, e);
+        }
+    }
+
+    /**
+     * Gets the folder to fetch from, connecting on first use
+     *
+     * @param start index in {@link #uids} of the first message to fetch
+     * @return open folder
+     * @throws Exception if folder cannot be opened
+     */
+    private Folder getFetchFolder(final int start) throws Exception {
+        final ImapGmailConnection conn;
+        synchronized (connectionLock) {
+            if (closed) {
+                throw new GmailException("ImapMessageIterator is closed");
+            }
+            if (connection == null) {
+                connection = pool != null ? pool.borrowConnection()
+                        : template.copy();
+            }
+            conn = connection;
+        }
+        if (!needsNewFolder(start)) {
+            return fetchFolder;
+        }
+        final Folder folder = conn.openGmailStore().getFolder(folderName);
+        folder.open(Folder.READ_ONLY);
+        // the previous folder was closed by nextChunk()
+        fetchFolder = folder;
+        fetchFolderStart = start;
+        return folder;
+    }
+
+    /**
+     * Closes a folder, ignoring errors
+     *
+     * @param folder folder to close, can be null
+     */
+    private void closeFolder(final Folder folder) {
+        if (folder != null && folder.isOpen()) {
+            try {
+                folder.close(false);
+            } catch (final Exception e) {
+                log.debug("Cannot close folder : " + folderName, e);
+            }
+        }
+    }
+
+    /**
+     * Fetched messages and the folder they came from
+     */
+    private static class Chunk {
+
+        /**
+         * Folder of the messages
+         */
+        final Folder folder;
+
+        /**
+         * Fetched messages
+         */
+        final GmailMessageList messages;
+
+        /**
+         * Index in {@link ImapMessageIterator#uids} after the last message
+         */
+        final int end;
+
+        /**
+         * Constructor
+         *
+         * @param folder folder of the messages
+         * @param messages fetched messages
+         * @param end index after the last message
+         */
+        Chunk(final Folder folder, final GmailMessageList messages,
+                final int end) {
+            this.folder = folder;
+            this.messages = messages;
+            this.end = end;
+        }
+    }
+}
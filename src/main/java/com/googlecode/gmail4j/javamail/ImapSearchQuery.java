@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import javax.mail.search.SubjectTerm;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailClient.EmailSearchStrategy;
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * Compound search query for 
+ * {@link ImapGmailClient#getMessagesBy(ImapSearchQuery)}. Criteria are 
+ * combined with AND, OR and NOT into one JavaMail {@link SearchTerm}, so the
+ * whole query is evaluated by Gmail with a single IMAP SEARCH and only 
+ * matching messages are downloaded.
+ * <p>
+ * Example: unread messages from j.smith, sent after 2012-01-01, that are 
+ * not about lunch:
+ * <p><blockquote><pre>
+ *     ImapSearchQuery query = ImapSearchQuery
+ *             .where(EmailSearchStrategy.UNREAD, "")
+ *             .and(EmailSearchStrategy.FROM, "j.smith@example.com")
+ *             .and(EmailSearchStrategy.DATE_GT, "2012-01-01 00:00:00")
+ *             .and(ImapSearchQuery.not(EmailSearchStrategy.SUBJECT, "lunch"));
+ *     GmailMessageList messages = client.getMessagesBy(query);
+ * </pre></blockquote></p>
+ * Example: messages from either of two senders:
+ * <p><blockquote><pre>
+ *     ImapSearchQuery query = ImapSearchQuery.or(
+ *             ImapSearchQuery.where(EmailSearchStrategy.FROM, "alice"),
+ *             ImapSearchQuery.where(EmailSearchStrategy.FROM, "bob"));
+ * </pre></blockquote></p>
+ * Queries are immutable, every combining method returns a new query.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public final class ImapSearchQuery {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(ImapSearchQuery.class);
+
+    /**
+     * JavaMail search term of the query
+     */
+    private final SearchTerm term;
+
+    /**
+     * Human readable form of the query for logging
+     */
+    private final String description;
+
+    /**
+     * Constructor with the term and its description
+     *
+     * @param term JavaMail search term
+     * @param description human readable query
+     */
+    private ImapSearchQuery(final SearchTerm term, final String description) {
+        this.term = term;
+        this.description = description;
+    }
+
+    /**
+     * Creates a query with a single criterion
+     *
+     * @param strategy search strategy
+     * @param value the value to look for, ignored by 
+     * {@link EmailSearchStrategy#UNREAD}. Dates are in 
+     * {@code yyyy-MM-dd HH:mm:ss} format.
+     * @return new query
+     */
+    public static ImapSearchQuery where(final EmailSearchStrategy strategy,
+            final String value) {
+        return new ImapSearchQuery(toSearchTerm(strategy, value), 
+                strategy == EmailSearchStrategy.UNREAD 
+                        ? strategy.name() : strategy + " \"" + value + "\"");
+    }
+
+    /**
+     * Creates a query from any JavaMail {@link SearchTerm}
+     *
+     * @param term search term
+     * @return new query
+     * @throws GmailException if term is null
+     */
+    public static ImapSearchQuery where(final SearchTerm term) {
+        if (term == null) {
+            throw new GmailException("ImapSearchQuery requires a SearchTerm");
+        }
+        return new ImapSearchQuery(term, term.getClass().getSimpleName());
+    }
+
+    /**
+     * Creates a query that matches messages matching all given queries
+     *
+     * @param queries queries to combine
+     * @return new query
+     * @throws GmailException if less than two queries are given
+     */
+    public static ImapSearchQuery and(final ImapSearchQuery... queries) {
+        checkCombined(queries);
+        final SearchTerm[] terms = new SearchTerm[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            terms[i] = queries[i].term;
+        }
+        return new ImapSearchQuery(new AndTerm(terms), join(queries, " AND "));
+    }
+
+    /**
+     * Creates a query that matches messages matching any of given queries
+     *
+     * @param queries queries to combine
+     * @return new query
+     * @throws GmailException if less than two queries are given
+     */
+    public static ImapSearchQuery or(final ImapSearchQuery... queries) {
+        checkCombined(queries);
+        final SearchTerm[] terms = new SearchTerm[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            terms[i] = queries[i].term;
+        }
+        return new ImapSearchQuery(new OrTerm(terms), join(queries, " OR "));
+    }
+
+    /**
+     * Creates a query that matches messages not matching given query
+     *
+     * @param query query to negate
+     * @return new query
+     */
+    public static ImapSearchQuery not(final ImapSearchQuery query) {
+        return new ImapSearchQuery(new NotTerm(query.term), 
+                "NOT " + query.description);
+    }
+
+    /**
+     * Creates a query that matches messages not matching given criterion
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return new query
+     */
+    public static ImapSearchQuery not(final EmailSearchStrategy strategy,
+            final String value) {
+        return not(where(strategy, value));
+    }
+
+    /**
+     * Combines this query with another one using AND
+     *
+     * @param query query to add
+     * @return new query
+     */
+    public ImapSearchQuery and(final ImapSearchQuery query) {
+        return and(new ImapSearchQuery[] {this, query});
+    }
+
+    /**
+     * Combines this query with a criterion using AND
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return new query
+     */
+    public ImapSearchQuery and(final EmailSearchStrategy strategy,
+            final String value) {
+        return and(where(strategy, value));
+    }
+
+    /**
+     * Combines this query with another one using OR
+     *
+     * @param query query to add
+     * @return new query
+     */
+    public ImapSearchQuery or(final ImapSearchQuery query) {
+        return or(new ImapSearchQuery[] {this, query});
+    }
+
+    /**
+     * Combines this query with a criterion using OR
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return new query
+     */
+    public ImapSearchQuery or(final EmailSearchStrategy strategy,
+            final String value) {
+        return or(where(strategy, value));
+    }
+
+    /**
+     * Gets the JavaMail {@link SearchTerm} of the query
+     *
+     * @return search term
+     */
+    public SearchTerm getSearchTerm() {
+        return term;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Maps a single {@link EmailSearchStrategy} criterion to a 
+     * {@link SearchTerm}
+     *
+     * @param strategy search strategy
+     * @param value the value to look for
+     * @return search term
+     * @throws GmailException if strategy is null
+     */
+    static SearchTerm toSearchTerm(final EmailSearchStrategy strategy,
+            final String value) {
+        if (strategy == null) {
+            throw new GmailException("ImapSearchQuery requires "
+                    + "EmailSearchStrategy");
+        }
+        switch (strategy) {
+            case SUBJECT:
+                return new SubjectTerm(value);
+            case TO:
+                return new RecipientStringTerm(Message.RecipientType.TO, value);
+            case FROM:
+                return new FromStringTerm(value);
+            case CC:
+                return new RecipientStringTerm(Message.RecipientType.CC, value);
+            case DATE_GT:
+                return new SentDateTerm(SentDateTerm.GT, parseDate(value));
+            case DATE_LT:
+                return new SentDateTerm(SentDateTerm.LT, parseDate(value));
+            case DATE_EQ:
+                return new SentDateTerm(SentDateTerm.EQ, parseDate(value));
+            case KEYWORD:
+                return new BodyTerm(value);
+            case UNREAD:
+                return new FlagTerm(new Flags(Flags.Flag.SEEN), false);
+            default:
+                throw new GmailException("Unsupported search strategy: " 
+                        + strategy);
+        }
+    }
+
+    /**
+     * Parse a date in "yyyy-MM-dd HH:mm:ss" format
+     * 
+     * @param date date string
+     * @return parsed date or current date if format is wrong
+     */
+    static Date parseDate(final String date) {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(date);
+        } catch (ParseException e) {
+            log.error("Bad date format in " + date + ". Use yyyy-MM-dd HH:mm:ss");
+            return new Date();
+        }
+    }
+
+    /**
+     * Checks that there are enough queries to combine
+     *
+     * @param queries queries to combine
+     * @throws GmailException if less than two queries are given
+     */
+    private static void checkCombined(final ImapSearchQuery[] queries) {
+        if (queries == null || queries.length < 2) {
+            throw new GmailException("ImapSearchQuery needs at least two "
+                    + "queries to combine");
+        }
+        for (final ImapSearchQuery query : queries) {
+            if (query == null) {
+                throw new GmailException("ImapSearchQuery cannot combine "
+                        + "null query");
+            }
+        }
+    }
+
+    /**
+     * Joins query descriptions in parentheses
+     *
+     * @param queries queries to join
+     * @param operator operator between queries, i.e. {@code " AND "}
+     * @return joined description
+     */
+    private static String join(final ImapSearchQuery[] queries,
+            final String operator) {
+        final StringBuilder joined = new StringBuilder("(");
+        for (int i = 0; i < queries.length; i++) {
+            if (i > 0) {
+                joined.append(operator);
+            }
+            joined.append(queries[i].description);
+        }
+        return joined.append(')').toString();
+    }
+}
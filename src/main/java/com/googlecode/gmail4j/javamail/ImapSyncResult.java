@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.mail.Flags;
+
+import com.googlecode.gmail4j.GmailMessageList;
+
+/**
+ * Changes in a Gmail folder since the previous 
+ * {@link ImapGmailClient#sync(ImapSyncStateStore)}.
+ * <p>
+ * When {@link #isFullSync()} is true there was no usable previous state 
+ * (first sync, or UIDVALIDITY changed and all stored UIDs became invalid). 
+ * No changes are reported then: the caller should drop whatever it has 
+ * cached for the folder and read it again.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class ImapSyncResult {
+
+    /**
+     * Messages that arrived since the previous sync
+     */
+    private final GmailMessageList newMessages;
+
+    /**
+     * Current flags of old messages whose flags changed since the previous
+     * sync, by UID
+     */
+    private final Map<Long, Flags> changedFlags;
+
+    /**
+     * True if previous state could not be used
+     */
+    private final boolean fullSync;
+
+    /**
+     * State saved by this sync
+     */
+    private final ImapSyncState state;
+
+    /**
+     * Constructor with all values
+     *
+     * @param newMessages messages that arrived since the previous sync
+     * @param changedFlags current flags of changed messages by UID
+     * @param fullSync true if previous state could not be used
+     * @param state state saved by this sync
+     */
+    public ImapSyncResult(final GmailMessageList newMessages,
+            final Map<Long, Flags> changedFlags, final boolean fullSync,
+            final ImapSyncState state) {
+        this.newMessages = newMessages;
+        this.changedFlags = Collections.unmodifiableMap(changedFlags);
+        this.fullSync = fullSync;
+        this.state = state;
+    }
+
+    /**
+     * Gets {@link #newMessages}
+     *
+     * @return new messages in ascending UID order
+     */
+    public GmailMessageList getNewMessages() {
+        return newMessages;
+    }
+
+    /**
+     * Gets {@link #changedFlags}. Empty if the server does not support
+     * CONDSTORE.
+     *
+     * @return current flags of changed messages by UID
+     */
+    public Map<Long, Flags> getChangedFlags() {
+        return changedFlags;
+    }
+
+    /**
+     * Gets {@link #fullSync}
+     *
+     * @return true if cached folder data should be discarded
+     */
+    public boolean isFullSync() {
+        return fullSync;
+    }
+
+    /**
+     * Gets {@link #state}
+     *
+     * @return state saved by this sync
+     */
+    public ImapSyncState getState() {
+        return state;
+    }
+}
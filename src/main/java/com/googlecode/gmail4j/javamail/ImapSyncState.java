@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.Serializable;
+
+/**
+ * Position of the last {@link ImapGmailClient#sync(ImapSyncStateStore)} in 
+ * a Gmail folder: the UIDVALIDITY of the folder, the UIDNEXT (the UID the 
+ * next new message will get) and, if the server supports CONDSTORE, the
+ * HIGHESTMODSEQ (which grows with every flag change).
+ *
+ * @see ImapSyncStateStore
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public final class ImapSyncState implements Serializable {
+
+    /**
+     * Serial version
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * UIDVALIDITY of the folder
+     */
+    private final long uidValidity;
+
+    /**
+     * UIDNEXT of the folder
+     */
+    private final long uidNext;
+
+    /**
+     * HIGHESTMODSEQ of the folder, 0 if not supported
+     */
+    private final long highestModSeq;
+
+    /**
+     * Constructor with all values
+     *
+     * @param uidValidity UIDVALIDITY of the folder
+     * @param uidNext UIDNEXT of the folder
+     * @param highestModSeq HIGHESTMODSEQ of the folder, 0 if not supported
+     */
+    public ImapSyncState(final long uidValidity, final long uidNext,
+            final long highestModSeq) {
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+    }
+
+    /**
+     * Gets {@link #uidValidity}
+     *
+     * @return UIDVALIDITY of the folder
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * Gets {@link #uidNext}
+     *
+     * @return UIDNEXT of the folder
+     */
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    /**
+     * Gets {@link #highestModSeq}
+     *
+     * @return HIGHESTMODSEQ of the folder, 0 if not supported
+     */
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return "ImapSyncState:{uidValidity:" + uidValidity + ";uidNext:" 
+                + uidNext + ";highestModSeq:" + highestModSeq + ";}";
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+/**
+ * Storage of {@link ImapSyncState} between calls of 
+ * {@link ImapGmailClient#sync(ImapSyncStateStore)}. Implement it to keep 
+ * the state in a database or another place that survives restarts.
+ *
+ * @see MemoryImapSyncStateStore
+ * @see FileImapSyncStateStore
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public interface ImapSyncStateStore {
+
+    /**
+     * Loads the state saved under given key
+     *
+     * @param key account and folder name, i.e. {@code john@gmail.com/INBOX}
+     * @return saved state or null if there is none
+     */
+    ImapSyncState load(String key);
+
+    /**
+     * Saves the state under given key, replacing the previous one
+     *
+     * @param key account and folder name, i.e. {@code john@gmail.com/INBOX}
+     * @param state state to save
+     */
+    void save(String key, ImapSyncState state);
+}
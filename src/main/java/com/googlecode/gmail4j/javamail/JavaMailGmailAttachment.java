@@ -0,0 +1,589 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.googlecode.gmail4j.GmailAttachment;
+import com.googlecode.gmail4j.GmailException;
+import com.googlecode.gmail4j.util.Constants;
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.imap.IMAPMessage;
+
+/**
+ * <a href="http://java.sun.com/products/javamail/">JavaMail</a> IMAP
+ * implementation of {@link GmailAttachment}.
+ * <p>
+ * Name, type, size, encoding and part path come from the
+ * {@code BODYSTRUCTURE} of the message, so listing attachments does not
+ * download them. Data is fetched only when {@link #getData()} or 
+ * {@code transferTo()} is called, in blocks of 
+ * {@link Constants#ATTACHMENT_FETCH_SIZE} bytes with {@code BODY.PEEK}, 
+ * and is decoded while it is read.
+ * <p>
+ * {@code transferTo()} fetches blocks by UID, so it works even if the 
+ * folder of the message was closed meanwhile (it is opened for reading 
+ * while the data is transferred, the store must still be connected). 
+ * Memory use is bounded by the block size whatever the attachment size is,
+ * and a download to a file can be resumed:
+ * <p><blockquote><pre>
+ *     for (GmailAttachment attachment : message.getAttachements()) {
+ *         File file = new File(dir, attachment.getFileName());
+ *         attachment.transferTo(file, true);
+ *     }
+ * </pre></blockquote></p>
+ * A resumed download fetches only the rest of a part that is not encoded, 
+ * or base64 encoded in lines of the same length (as mail clients write 
+ * it). Other parts are fetched again from the start, writing only the 
+ * missing bytes.
+ * <p>
+ * With an {@link ImapAttachmentCache} set on the client or message, data
+ * is read from the cache, and a part that is not there is downloaded into
+ * it once.
+ *
+ * @see JavaMailGmailMessage#getAttachements()
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class JavaMailGmailAttachment extends GmailAttachment {
+
+    /**
+     * Logger
+     */
+    private static final Log log = LogFactory.getLog(JavaMailGmailAttachment.class);
+
+    /**
+     * Bytes fetched to find the line length of base64 data
+     */
+    private static final int LINE_PROBE_SIZE = 1024;
+
+    /**
+     * Message of the attachment
+     */
+    private final IMAPMessage message;
+
+    /**
+     * UID of the message, -1 if unknown
+     */
+    private final long uid;
+
+    /**
+     * Cache to read data from, can be null
+     */
+    private final ImapAttachmentCache cache;
+
+    /**
+     * Gmail message id of the message, used as cache key
+     */
+    private final long gmailMessageId;
+
+    /**
+     * Constructor
+     *
+     * @param message message of the attachment
+     * @param uid UID of the message, -1 if unknown
+     * @param partPath IMAP section of the part, i.e. {@code 2.1}
+     * @param fileName file name, can be null
+     * @param contentType MIME type
+     * @param size size in bytes in transfer encoding, -1 if unknown
+     * @param encoding transfer encoding, can be null
+     * @param cache cache to read data from, can be null
+     * @param gmailMessageId Gmail message id, needed with cache only
+     */
+    JavaMailGmailAttachment(final IMAPMessage message, final long uid, 
+            final String partPath, final String fileName, 
+            final String contentType, final long size, final String encoding,
+            final ImapAttachmentCache cache, final long gmailMessageId) {
+        super(partPath, fileName, contentType, size, encoding);
+        this.message = message;
+        this.uid = uid;
+        this.cache = cache;
+        this.gmailMessageId = gmailMessageId;
+    }
+
+    /**
+     * Gets the message of the attachment
+     *
+     * @return JavaMail message
+     */
+    public IMAPMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Opens a stream that fetches and decodes the part as it is read. The
+     * folder of the message must be open while the stream is read. With an
+     * {@link ImapAttachmentCache}, the part is read from the cache, and is
+     * downloaded into it first if it is not there.
+     *
+     * @return data stream
+     */
+    @Override
+    protected InputStream openData() {
+        try {
+            if (cache != null) {
+                return openCached(message.getFolder());
+            }
+            return decode(new PartInputStream(message.getFolder(), 0));
+        } catch (final IOException e) {
+            throw new GmailException("Failed opening attachment "
+                    + getPartPath(), e);
+        } catch (final MessagingException e) {
+            throw new GmailException("Failed opening attachment "
+                    + getPartPath(), e);
+        }
+    }
+
+    /**
+     * Fetches the part block by block and writes decoded blocks to the 
+     * channel. Unencoded blocks are written straight from the response 
+     * buffer.
+     *
+     * @param channel channel to write to, left open
+     * @param skip number of decoded bytes to leave out
+     * @return number of bytes written
+     * @throws IOException if data cannot be fetched or written
+     */
+    @Override
+    public long transferTo(final WritableByteChannel channel, 
+            final long skip) throws IOException {
+        final Folder folder = message.getFolder();
+        boolean opened = false;
+        try {
+            if (cache != null) {
+                final FileInputStream cached = cache.open(gmailMessageId, 
+                        getPartPath());
+                if (cached != null) {
+                    return copyFile(cached, channel, skip);
+                }
+            }
+            if (folder == null) {
+                throw new IOException("Message has no folder");
+            }
+            if (!folder.isOpen()) {
+                if (uid <= 0) {
+                    throw new IOException("Folder of the message is closed "
+                            + "and message UID is not known");
+                }
+                folder.open(Folder.READ_ONLY);
+                opened = true;
+            }
+            return transferTo(folder, channel, skip);
+        } catch (final MessagingException e) {
+            throw toIOException("Failed fetching attachment " + getPartPath(),
+                    e);
+        } finally {
+            if (opened) {
+                try {
+                    folder.close(false);
+                } catch (final MessagingException e) {
+                    log.warn("Failed closing folder " + folder, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the part from a folder, which can be opened on another 
+     * connection than the one the message was read with
+     *
+     * @param folder open folder with the message
+     * @param channel channel to write to, left open
+     * @param skip number of decoded bytes to leave out
+     * @return number of bytes written
+     * @throws MessagingException if data cannot be fetched
+     * @throws IOException if data cannot be written
+     */
+    long transferTo(final Folder folder, final WritableByteChannel channel, 
+            final long skip) throws MessagingException, IOException {
+        if (cache != null) {
+            return copyFile(openCached(folder), channel, skip);
+        }
+        if (isIdentity()) {
+            return copyRaw(folder, channel, skip);
+        }
+        final long[] start = "base64".equalsIgnoreCase(getEncoding()) 
+                ? findBase64Start(folder, skip) : new long[] {0, 0};
+        return copyDecoded(decode(new PartInputStream(folder, start[0])),
+                channel, skip - start[1]);
+    }
+
+    /**
+     * Gets the UID of the message
+     *
+     * @return UID, -1 if unknown
+     */
+    long getUid() {
+        return uid;
+    }
+
+    /**
+     * Opens the data of the part from {@link #cache}, downloading the 
+     * part into the cache if it is not there
+     *
+     * @param folder open folder with the message
+     * @return data stream, which keeps the data in the cache until closed
+     * @throws MessagingException if part cannot be fetched
+     * @throws IOException if folder is closed
+     */
+    private FileInputStream openCached(final Folder folder) 
+            throws MessagingException, IOException {
+        final FileInputStream cached = cache.open(gmailMessageId, 
+                getPartPath());
+        if (cached != null) {
+            return cached;
+        }
+        if (folder == null || !folder.isOpen()) {
+            throw new IOException("Folder of the message is closed");
+        }
+        return cache.putAndOpen(gmailMessageId, getPartPath(), 
+                decode(new PartInputStream(folder, 0)));
+    }
+
+    /**
+     * Writes cached data to a channel and closes the data stream
+     *
+     * @param in cached data stream
+     * @param channel channel to write to
+     * @param skip number of bytes at the start to leave out
+     * @return number of bytes written
+     * @throws IOException if data cannot be read or channel written
+     */
+    private static long copyFile(final FileInputStream in, 
+            final WritableByteChannel channel, final long skip) 
+            throws IOException {
+        try {
+            final FileChannel source = in.getChannel();
+            final long size = source.size();
+            long position = skip;
+            while (position < size) {
+                position += source.transferTo(position, size - position, 
+                        channel);
+            }
+            return Math.max(0, size - skip);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Tells if the part is stored without transfer encoding
+     *
+     * @return true if encoded bytes are the data
+     */
+    private boolean isIdentity() {
+        final String encoding = getEncoding();
+        return encoding == null || "7bit".equalsIgnoreCase(encoding) 
+                || "8bit".equalsIgnoreCase(encoding) 
+                || "binary".equalsIgnoreCase(encoding);
+    }
+
+    /**
+     * Wraps a stream of the encoded part into a decoding stream
+     *
+     * @param raw encoded part
+     * @return decoded part
+     * @throws MessagingException if encoding is not known
+     */
+    private InputStream decode(final InputStream raw) 
+            throws MessagingException {
+        return isIdentity() ? raw : MimeUtility.decode(raw, getEncoding());
+    }
+
+    /**
+     * Writes unencoded blocks as they are fetched
+     *
+     * @param folder open folder of the message
+     * @param channel channel to write to
+     * @param offset offset of the first byte to write
+     * @return number of bytes written
+     * @throws MessagingException if fetch fails
+     * @throws IOException if write fails
+     */
+    private long copyRaw(final Folder folder, final WritableByteChannel channel,
+            final long offset) throws MessagingException, IOException {
+        long position = offset;
+        int count;
+        do {
+            final ByteArray block = fetch(folder, position, 
+                    Constants.ATTACHMENT_FETCH_SIZE);
+            count = block.getCount();
+            write(channel, ByteBuffer.wrap(block.getBytes(), block.getStart(),
+                    count));
+            position += count;
+        } while (count == Constants.ATTACHMENT_FETCH_SIZE);
+        return position - offset;
+    }
+
+    /**
+     * Writes decoded data through a buffer of one block
+     *
+     * @param in decoded data
+     * @param channel channel to write to
+     * @param skip number of bytes at the start of data to leave out
+     * @return number of bytes written
+     * @throws IOException if data cannot be read or written
+     */
+    private static long copyDecoded(final InputStream in, 
+            final WritableByteChannel channel, final long skip) 
+            throws IOException {
+        try {
+            final byte[] buffer = new byte[Constants.ATTACHMENT_FETCH_SIZE];
+            long skipped = 0;
+            long written = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int from = 0;
+                if (skipped < skip) {
+                    from = (int) Math.min(read, skip - skipped);
+                    skipped += from;
+                }
+                write(channel, ByteBuffer.wrap(buffer, from, read - from));
+                written += read - from;
+            }
+            return written;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a whole buffer to a channel
+     *
+     * @param channel channel to write to
+     * @param buffer bytes to write
+     * @throws IOException if write fails
+     */
+    private static void write(final WritableByteChannel channel, 
+            final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Finds where decoding of base64 data can start to get the data after
+     * given number of bytes. Data is assumed to be in lines of the same 
+     * length, which is checked at the line found.
+     *
+     * @param folder open folder of the message
+     * @param skip number of decoded bytes to leave out
+     * @return offset in the encoded part and the matching offset in decoded
+     * data, not greater than skip; zeros if decoding must start at the 
+     * beginning
+     * @throws MessagingException if fetch fails
+     */
+    private long[] findBase64Start(final Folder folder, final long skip) 
+            throws MessagingException {
+        final long[] start = {0, 0};
+        if (skip <= 0) {
+            return start;
+        }
+        final ByteArray probe = fetch(folder, 0, LINE_PROBE_SIZE);
+        final byte[] bytes = probe.getBytes();
+        int length = -1;
+        for (int i = 0; i < probe.getCount(); i++) {
+            final byte b = bytes[probe.getStart() + i];
+            if (b == '\r' || b == '\n') {
+                length = i;
+                break;
+            }
+        }
+        if (length <= 0 || length % 4 != 0) {
+            return start;
+        }
+        final String separator = length + 1 < probe.getCount() 
+                && bytes[probe.getStart() + length] == '\r' 
+                && bytes[probe.getStart() + length + 1] == '\n' 
+                ? "\r\n" : String.valueOf((char) bytes[probe.getStart() + length]);
+        final long perLine = length / 4 * 3;
+        final long line = skip / perLine;
+        if (line == 0) {
+            return start;
+        }
+        final long offset = line * (length + separator.length());
+        // the line must follow a line separator
+        final ByteArray check = fetch(folder, offset - separator.length(), 
+                separator.length() + 1);
+        boolean aligned = check.getCount() == separator.length() + 1;
+        for (int i = 0; aligned && i <= separator.length(); i++) {
+            final byte b = check.getBytes()[check.getStart() + i];
+            aligned = i < separator.length() ? b == separator.charAt(i) 
+                    : b != '\r' && b != '\n';
+        }
+        if (aligned) {
+            start[0] = offset;
+            start[1] = line * perLine;
+        } else {
+            log.debug("Base64 lines of attachment " + getPartPath() 
+                    + " differ in length, fetching it from the start");
+        }
+        return start;
+    }
+
+    /**
+     * Fetches a range of the encoded part, by UID if it is known
+     *
+     * @param folder open folder of the message
+     * @param offset offset of the first byte
+     * @param size maximum number of bytes
+     * @return fetched bytes
+     * @throws MessagingException if fetch fails
+     */
+    private ByteArray fetch(final Folder folder, final long offset, 
+            final int size) throws MessagingException {
+        if (uid > 0) {
+            return ImapCommands.uidPeekBody(folder, uid, getPartPath(), 
+                    offset, size);
+        }
+        final byte[] bytes = ImapCommands.peekBody(folder, 
+                message.getMessageNumber(), getPartPath(), (int) offset, size);
+        return new ByteArray(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Creates an {@link IOException} with a cause
+     *
+     * @param message error message
+     * @param cause cause
+     * @return exception
+     */
+    private static IOException toIOException(final String message, 
+            final Exception cause) {
+        final IOException error = new IOException(message);
+        error.initCause(cause);
+        return error;
+    }
+
+    /**
+     * Stream of the encoded part that fetches one block at a time
+     */
+    private final class PartInputStream extends InputStream {
+
+        /**
+         * Folder of the message
+         */
+        private final Folder folder;
+
+        /**
+         * Current block
+         */
+        private ByteArray block = new ByteArray(new byte[0], 0, 0);
+
+        /**
+         * Position in {@link #block}
+         */
+        private int position;
+
+        /**
+         * Offset of the next block in the part
+         */
+        private long offset;
+
+        /**
+         * True when the last block has been fetched
+         */
+        private boolean last;
+
+        /**
+         * Constructor
+         *
+         * @param folder folder of the message
+         * @param offset offset of the first byte to read
+         */
+        PartInputStream(final Folder folder, final long offset) {
+            this.folder = folder;
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block.getBytes()[block.getStart() + position++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int start, final int length)
+                throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int count = Math.min(length, block.getCount() - position);
+            System.arraycopy(block.getBytes(), block.getStart() + position, 
+                    buffer, start, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return block.getCount() - position;
+        }
+
+        @Override
+        public void close() {
+            last = true;
+            block = new ByteArray(new byte[0], 0, 0);
+            position = 0;
+        }
+
+        /**
+         * Fetches the next block if the current one has been read
+         *
+         * @return false at the end of the part
+         * @throws IOException if fetch fails
+         */
+        private boolean fill() throws IOException {
+            while (position >= block.getCount()) {
+                if (last) {
+                    return false;
+                }
+                if (folder == null || !folder.isOpen()) {
+                    throw new IOException("Folder of the message is closed");
+                }
+                try {
+                    block = fetch(folder, offset, 
+                            Constants.ATTACHMENT_FETCH_SIZE);
+                } catch (final MessagingException e) {
+                    throw toIOException("Failed fetching attachment " 
+                            + getPartPath(), e);
+                }
+                position = 0;
+                offset += block.getCount();
+                last = block.getCount() < Constants.ATTACHMENT_FETCH_SIZE;
+            }
+            return true;
+        }
+    }
+}
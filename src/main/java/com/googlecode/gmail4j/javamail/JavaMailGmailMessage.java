@@ -16,9 +16,13 @@
  */
 package com.googlecode.gmail4j.javamail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -31,6 +35,7 @@ import javax.activation.DataSource;
 import javax.activation.FileDataSource;
 import javax.mail.Address;
 import javax.mail.BodyPart;
+import javax.mail.Folder;
 import javax.mail.Header;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
@@ -38,10 +43,13 @@ import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
+import javax.mail.UIDFolder;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -51,6 +59,8 @@ import com.googlecode.gmail4j.GmailAttachment;
 import com.googlecode.gmail4j.GmailException;
 import com.googlecode.gmail4j.GmailMessage;
 import com.googlecode.gmail4j.util.Constants;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.BODYSTRUCTURE;
 /**
  * <a href="http://java.sun.com/products/javamail/">JavaMail</a> implementation 
  * of {@link GmailMessage}
@@ -89,11 +99,63 @@ public class JavaMailGmailMessage extends GmailMessage {
     /**
      * Cache for {@link #toString()}
      */
-    private StringBuilder toString;
+    private volatile String toString;
     /**
      * Sender's email address
      */
-    private EmailAddress from;
+    private volatile EmailAddress from;
+    /**
+     * Cache for {@link #getTo()}
+     */
+    private volatile List<EmailAddress> to;
+    /**
+     * Cache for {@link #getCc()}
+     */
+    private volatile List<EmailAddress> cc;
+    /**
+     * Cache for {@link #getSubject()}, which can be null
+     */
+    private volatile Memo<String> subject;
+    /**
+     * Cache for {@link #getSendDate()}, which can be null
+     */
+    private volatile Memo<Date> sendDate;
+    /**
+     * Cache for {@link #getContentText()}
+     */
+    private volatile String contentText;
+    /**
+     * Cache for {@link #getPreview()}
+     */
+    private volatile String preview;
+    /**
+     * Cache for {@link #getMessageHeaderInfo()}, which can be null
+     */
+    private volatile Memo<MessageHeaderInfo> headerInfo;
+    /**
+     * Cache for the IMAP {@code BODYSTRUCTURE} of the message
+     */
+    private volatile BODYSTRUCTURE structure;
+    /**
+     * Cache of attachment data, can be null
+     */
+    private volatile ImapAttachmentCache attachmentCache;
+    /**
+     * Cache for {@link #getUid()}, -1 if not known yet
+     */
+    private volatile long uid = -1;
+    /**
+     * Gmail message id ({@code X-GM-MSGID}), -1 if not fetched yet
+     */
+    private volatile long gmailMessageId = -1;
+    /**
+     * Gmail thread id ({@code X-GM-THRID}), -1 if not fetched yet
+     */
+    private volatile long gmailThreadId = -1;
+    /**
+     * Gmail labels ({@code X-GM-LABELS}), null if not fetched yet
+     */
+    private volatile List<String> gmailLabels;
 
     /**
      * Constructor with source {@link Message}
@@ -123,11 +185,28 @@ public class JavaMailGmailMessage extends GmailMessage {
     /**
      * Gets plain text version of the content. Has some limitations - won't 
      * handle nested attachments well.
+     * <p>
+     * Like other parsed fields of the message, the text is read once and 
+     * remembered until it is changed with a setter.
      * 
      * @return String representation of the message
      */
     @Override
     public String getContentText() {
+        String text = contentText;
+        if (text == null) {
+            text = readContentText();
+            contentText = text;
+        }
+        return text;
+    }
+
+    /**
+     * Reads plain text version of the content from the {@link #source}
+     * 
+     * @return String representation of the message
+     */
+    private String readContentText() {
         try {
             Object content = source.getContent();
             StringBuilder result = new StringBuilder();
@@ -162,42 +241,73 @@ public class JavaMailGmailMessage extends GmailMessage {
             }
         } catch (final Exception e) {
             throw new GmailException("Failed adding To recipient", e);
+        } finally {
+            this.to = null;
+            this.toString = null;
         }
     }
 
+    /**
+     * Gets TO recipients. Recipients are read from the message once, every
+     * call returns a new copy of them; use {@link #addTo(EmailAddress)} to
+     * add recipients to the message.
+     * 
+     * @return list of recipients, empty if there are none
+     */
     @Override
     public List<EmailAddress> getTo() {
-        try {
-            return getAddresses(RecipientType.TO);
-        } catch (final Exception e) {
-            throw new GmailException("Failed getting List of To recipients", e);
+        List<EmailAddress> addresses = to;
+        if (addresses == null) {
+            try {
+                addresses = getAddresses(RecipientType.TO);
+            } catch (final Exception e) {
+                throw new GmailException("Failed getting List of To recipients", e);
+            }
+            to = addresses;
         }
+        return new ArrayList<EmailAddress>(addresses);
     }
 
+    /**
+     * Gets CC recipients. Recipients are read from the message once, every
+     * call returns a new copy of them.
+     * 
+     * @return list of recipients, empty if there are none
+     */
     @Override
     public List<EmailAddress> getCc() {
-        try {
-            return getAddresses(RecipientType.CC);
-        } catch (final Exception e) {
-            throw new GmailException("Failed getting List of Cc recipients", e);
+        List<EmailAddress> addresses = cc;
+        if (addresses == null) {
+            try {
+                addresses = getAddresses(RecipientType.CC);
+            } catch (final Exception e) {
+                throw new GmailException("Failed getting List of Cc recipients", e);
+            }
+            cc = addresses;
         }
+        return new ArrayList<EmailAddress>(addresses);
     }
 
     /**
      * Gets a {@link List} of {@link EmailAddress} by {@link RecipientType}
      * 
      * @param type Recipient type
-     * @return List of Addresses
+     * @return unmodifiable List of Addresses
      * @throws MessagingException in case something is wrong
      */
     private List<EmailAddress> getAddresses(final RecipientType type)
             throws MessagingException {
-        final List<EmailAddress> addresses = new ArrayList<EmailAddress>();
-        for (final Address addr : source.getRecipients(type)) {
+        final Address[] recipients = source.getRecipients(type);
+        if (recipients == null) {
+            return Collections.emptyList();
+        }
+        final List<EmailAddress> addresses = 
+                new ArrayList<EmailAddress>(recipients.length);
+        for (final Address addr : recipients) {
             final InternetAddress temp = (InternetAddress) addr;
             addresses.add(new EmailAddress(temp.getPersonal(), temp.getAddress()));
         }
-        return addresses;
+        return Collections.unmodifiableList(addresses);
     }
 
     @Override
@@ -211,29 +321,45 @@ public class JavaMailGmailMessage extends GmailMessage {
             }
         } catch (final Exception e) {
             throw new GmailException("Failed setting from address", e);
+        } finally {
+            this.from = null;
+            this.toString = null;
         }
     }
 
     @Override
     public EmailAddress getFrom() {
-        if (from == null) {
+        EmailAddress sender = from;
+        if (sender == null) {
             try {
                 final InternetAddress f = (InternetAddress) source.getFrom()[0];
-                from = new EmailAddress(f.getPersonal(), f.getAddress());
+                sender = new EmailAddress(f.getPersonal(), f.getAddress());
             } catch (final Exception e) {
                 throw new GmailException("Failed getting from address", e);
             }
+            from = sender;
         }
-        return from;
+        return sender;
     }
 
+    /**
+     * Gets the send date. The date is read once, and a copy is returned, 
+     * so changing it does not change the message.
+     * 
+     * @return send date, can be null
+     */
     @Override
     public Date getSendDate() {
-        try {
-            return source.getSentDate();
-        } catch (final Exception e) {
-            throw new GmailException("Failed getting send date", e);
+        Memo<Date> date = sendDate;
+        if (date == null) {
+            try {
+                date = new Memo<Date>(source.getSentDate());
+            } catch (final Exception e) {
+                throw new GmailException("Failed getting send date", e);
+            }
+            sendDate = date;
         }
+        return date.value == null ? null : new Date(date.value.getTime());
     }
 
     @Override
@@ -242,16 +368,25 @@ public class JavaMailGmailMessage extends GmailMessage {
             source.setSubject(subject);
         } catch (final Exception e) {
             throw new GmailException("Failed setting subject", e);
+        } finally {
+            this.subject = null;
+            this.headerInfo = null;
+            this.toString = null;
         }
     }
 
     @Override
     public String getSubject() {
-        try {
-            return source.getSubject();
-        } catch (final Exception e) {
-            throw new GmailException("Failed getting message subject", e);
+        Memo<String> text = subject;
+        if (text == null) {
+            try {
+                text = new Memo<String>(source.getSubject());
+            } catch (final Exception e) {
+                throw new GmailException("Failed getting message subject", e);
+            }
+            subject = text;
         }
+        return text.value;
     }
 
     @Override
@@ -260,32 +395,194 @@ public class JavaMailGmailMessage extends GmailMessage {
             source.setText(contentText);
         } catch (final Exception e) {
             throw new GmailException("Failed settting content text", e);
+        } finally {
+            contentChanged();
         }
     }
 
+    /**
+     * Gets the first {@link Constants#PREVIEW_LENGTH} characters of the 
+     * content.
+     * <p>
+     * For a message in an open IMAP folder whose content has not been read
+     * yet, only the first {@link Constants#PREVIEW_FETCH_SIZE} bytes of the
+     * first text part are downloaded, with {@code BODY.PEEK}, so the 
+     * message is not marked as read. Otherwise, or if that fails, the 
+     * preview is cut from {@link #getContentText()}.
+     * 
+     * @return preview text
+     */
     @Override
     public String getPreview() {
-        String text = getContentText();
+        String text = preview;
+        if (text == null) {
+            if (contentText == null && source instanceof IMAPMessage) {
+                text = fetchPreview();
+            }
+            if (text == null) {
+                text = cutPreview(getContentText(), false);
+            }
+            preview = text;
+        }
+        return text;
+    }
+
+    /**
+     * Fetches the start of the first text part and makes a preview of it
+     * 
+     * @return preview, or null if it cannot be made from the fetched part
+     */
+    private String fetchPreview() {
+        final Folder folder = source.getFolder();
+        if (folder == null || !folder.isOpen()) {
+            return null;
+        }
+        try {
+            final int number = source.getMessageNumber();
+            final BODYSTRUCTURE[] found = new BODYSTRUCTURE[1];
+            final BODYSTRUCTURE structure = getBodyStructure();
+            String section = findTextPart(structure, "", true, found);
+            if (section == null) {
+                section = findTextPart(structure, "", false, found);
+            }
+            if (section == null) {
+                return null;
+            }
+            final byte[] data = ImapCommands.peekBody(folder, number, section,
+                    0, Constants.PREVIEW_FETCH_SIZE);
+            final boolean truncated = data.length >= Constants.PREVIEW_FETCH_SIZE;
+            final String charset = found[0].cParams == null 
+                    ? null : found[0].cParams.get("charset");
+            return cutPreview(decodePartial(data, truncated, found[0].encoding,
+                    charset), truncated);
+        } catch (final Exception e) {
+            log.debug("Failed fetching message preview, reading content", e);
+            return null;
+        }
+    }
+
+    /**
+     * Finds the first text part of a message, depth first, skipping 
+     * attachments and attached messages
+     * 
+     * @param part part to look in
+     * @param section IMAP section of the part, empty for the message
+     * @param plainOnly true to look for {@code text/plain} only
+     * @param found receives the structure of the found part
+     * @return IMAP section of the found part, or null
+     */
+    private static String findTextPart(final BODYSTRUCTURE part, 
+            final String section, final boolean plainOnly, 
+            final BODYSTRUCTURE[] found) {
+        if (part.isMulti()) {
+            for (int i = 0; i < part.bodies.length; i++) {
+                final String result = findTextPart(part.bodies[i], 
+                        section.length() == 0 ? String.valueOf(i + 1) 
+                                : section + "." + (i + 1), plainOnly, found);
+                if (result != null) {
+                    return result;
+                }
+            }
+            return null;
+        }
+        if (!"text".equalsIgnoreCase(part.type)
+                || (plainOnly && !"plain".equalsIgnoreCase(part.subtype))
+                || Part.ATTACHMENT.equalsIgnoreCase(part.disposition)) {
+            return null;
+        }
+        found[0] = part;
+        // the body of a single part message is part 1
+        return section.length() == 0 ? "1" : section;
+    }
+
+    /**
+     * Decodes the start of a part that may have been cut in the middle of 
+     * an encoded character
+     * 
+     * @param data fetched bytes in transfer encoding
+     * @param truncated true if the part is longer than the fetched bytes
+     * @param encoding transfer encoding, can be null
+     * @param charset charset of the part, can be null
+     * @return decoded text
+     * @throws Exception if text cannot be decoded
+     */
+    private static String decodePartial(final byte[] data, 
+            final boolean truncated, final String encoding, 
+            final String charset) throws Exception {
+        int length = data.length;
+        if (truncated && "base64".equalsIgnoreCase(encoding)) {
+            // keep whole groups of 4 characters only
+            length = 0;
+            int significant = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != '\r' && data[i] != '\n' && data[i] != ' ') {
+                    if (++significant % 4 == 0) {
+                        length = i + 1;
+                    }
+                }
+            }
+        } else if (truncated && "quoted-printable".equalsIgnoreCase(encoding)) {
+            // drop an escape sequence that was cut
+            for (int i = Math.max(0, data.length - 2); i < data.length; i++) {
+                if (data[i] == '=') {
+                    length = i;
+                    break;
+                }
+            }
+        }
+        final InputStream in = encoding == null 
+                ? new ByteArrayInputStream(data, 0, length)
+                : MimeUtility.decode(new ByteArrayInputStream(data, 0, length), 
+                        encoding);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), charset == null 
+                ? "us-ascii" : MimeUtility.javaCharset(charset));
+    }
+
+    /**
+     * Cuts a preview from text
+     * 
+     * @param text start of the content
+     * @param truncated true if text is only the start of a longer text
+     * @return preview, or null if truncated text is too short to tell
+     */
+    private static String cutPreview(final String text, final boolean truncated) {
         if (text.length() > Constants.PREVIEW_LENGTH) {
             return text.substring(0, Constants.PREVIEW_LENGTH - 3) + "...";
         }
-        return text;
+        return truncated ? null : text;
+    }
+
+    /**
+     * Forgets cached values that depend on the content
+     */
+    private void contentChanged() {
+        this.contentText = null;
+        this.preview = null;
+        this.structure = null;
+        this.toString = null;
     }
 
     @Override
     public String toString() {
-        if (toString != null) {
-            return toString.toString();
+        String text = toString;
+        if (text != null) {
+            return text;
         }
         try {
-            toString = new StringBuilder();
-            toString.append("MailMessage:{from:").append(getFrom())
+            text = new StringBuilder("MailMessage:{from:").append(getFrom())
                     .append(";sendDate:").append(getSendDate())
                     .append(";subject:").append(getSubject())
-                    .append(";preview:").append(getPreview()).append(";}");
-            return toString.toString();
+                    .append(";preview:").append(getPreview()).append(";}")
+                    .toString();
+            toString = text;
+            return text;
         } catch (final Exception e) {
-            toString = null;
             return super.toString().concat("(e:").concat(e.getMessage())
                     .concat(")");
         }
@@ -300,8 +597,204 @@ public class JavaMailGmailMessage extends GmailMessage {
         }
     }
 
+    /**
+     * Gets the IMAP UID of the message. Unlike {@link #getMessageNumber()},
+     * the UID does not change when other messages are expunged, so it can be
+     * stored and used with the <code>*ByUid</code> methods of
+     * {@link ImapGmailClient} for as long as {@link #getUidValidity()} of
+     * the folder stays the same.
+     * <p>
+     * The UID is fetched with the message when {@link UIDFolder.FetchProfileItem#UID}
+     * is in the client's fetch profile, otherwise it costs a round trip.
+     *
+     * @return message UID
+     * @throws GmailException if message does not come from an IMAP folder
+     * @since 0.5
+     */
+    public long getUid() {
+        if (uid == -1) {
+            try {
+                uid = getUidFolder().getUID(source);
+            } catch (final GmailException e) {
+                throw e;
+            } catch (final Exception e) {
+                throw new GmailException("Failed getting message UID", e);
+            }
+        }
+        return uid;
+    }
+
+    /**
+     * Sets the UID of a message that is not read from its folder, i.e. one
+     * restored from an {@link ImapMessageCache}
+     *
+     * @param uid message UID
+     */
+    void setUid(final long uid) {
+        this.uid = uid;
+    }
+
+    /**
+     * Gets the UIDVALIDITY of the folder the message was read from. UIDs
+     * stored earlier are valid only while it stays the same.
+     *
+     * @return folder UID validity
+     * @throws GmailException if message does not come from an IMAP folder
+     * @since 0.5
+     */
+    public long getUidValidity() {
+        try {
+            return getUidFolder().getUIDValidity();
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("Failed getting folder UID validity", e);
+        }
+    }
+
+    /**
+     * Gets the Gmail message id ({@code X-GM-MSGID}). Unlike the message 
+     * number and UID, it is unique in the whole account and the same in 
+     * every label the message has, so it can be used to recognize a message
+     * seen in several folders.
+     * <p>
+     * Prefetched with {@link GmailFetchProfileItem#MSGID}, otherwise it 
+     * costs a round trip.
+     *
+     * @return Gmail message id
+     * @throws GmailException if it cannot be fetched
+     * @since 0.5
+     */
+    public long getGmailMessageId() {
+        if (gmailMessageId == -1) {
+            fetchGmailAttribute(GmailFetchProfileItem.MSGID);
+        }
+        return gmailMessageId;
+    }
+
+    /**
+     * Gets the Gmail thread id ({@code X-GM-THRID}), which is shared by all
+     * messages of a conversation.
+     * <p>
+     * Prefetched with {@link GmailFetchProfileItem#THRID}, otherwise it 
+     * costs a round trip.
+     *
+     * @return Gmail thread id
+     * @throws GmailException if it cannot be fetched
+     * @since 0.5
+     */
+    public long getGmailThreadId() {
+        if (gmailThreadId == -1) {
+            fetchGmailAttribute(GmailFetchProfileItem.THRID);
+        }
+        return gmailThreadId;
+    }
+
+    /**
+     * Gets the Gmail labels ({@code X-GM-LABELS}) of the message. System 
+     * labels start with a backslash, i.e. {@code \Important}; the label of
+     * the folder the message was read from is not included.
+     * <p>
+     * Prefetched with {@link GmailFetchProfileItem#LABELS}, otherwise it 
+     * costs a round trip.
+     *
+     * @return unmodifiable list of labels
+     * @throws GmailException if they cannot be fetched
+     * @since 0.5
+     */
+    public List<String> getGmailLabels() {
+        if (gmailLabels == null) {
+            fetchGmailAttribute(GmailFetchProfileItem.LABELS);
+        }
+        return gmailLabels == null 
+                ? Collections.<String>emptyList() : gmailLabels;
+    }
+
+    /**
+     * Sets {@link #gmailMessageId}
+     *
+     * @param gmailMessageId fetched message id
+     */
+    void setGmailMessageId(final long gmailMessageId) {
+        this.gmailMessageId = gmailMessageId;
+    }
+
+    /**
+     * Sets {@link #gmailThreadId}
+     *
+     * @param gmailThreadId fetched thread id
+     */
+    void setGmailThreadId(final long gmailThreadId) {
+        this.gmailThreadId = gmailThreadId;
+    }
+
+    /**
+     * Sets {@link #gmailLabels}
+     *
+     * @param gmailLabels fetched labels
+     */
+    void setGmailLabels(final List<String> gmailLabels) {
+        this.gmailLabels = Collections.unmodifiableList(gmailLabels);
+    }
+
+    /**
+     * Fetches a Gmail extension attribute of this message alone
+     *
+     * @param item attribute to fetch
+     * @throws GmailException if message is not in an open IMAP folder or 
+     * fetch fails
+     */
+    private void fetchGmailAttribute(final GmailFetchProfileItem item) {
+        final Folder folder = source.getFolder();
+        if (folder == null || !folder.isOpen()) {
+            throw new GmailException("Message does not belong to an open "
+                    + "IMAP folder");
+        }
+        try {
+            ImapCommands.fetchGmailAttributes(folder, 
+                    Collections.singletonList(this), 
+                    new GmailFetchProfileItem[] {item});
+        } catch (final MessagingException e) {
+            throw new GmailException("Failed fetching " + item.getImapName(), e);
+        }
+    }
+
+    /**
+     * Gets the {@link UIDFolder} of the {@link #source} message
+     *
+     * @return message folder
+     * @throws GmailException if message has no UID folder
+     */
+    private UIDFolder getUidFolder() {
+        final Folder folder = source.getFolder();
+        if (folder instanceof UIDFolder) {
+            return (UIDFolder) folder;
+        }
+        throw new GmailException("Message does not belong to an IMAP folder");
+    }
+
+    /**
+     * Gets Message-ID, Subject, In-Reply-To and References headers. They are
+     * read once, later calls return the same object.
+     * 
+     * @return header information, null if message has no Message-ID
+     */
     @Override
     public MessageHeaderInfo getMessageHeaderInfo() {
+        Memo<MessageHeaderInfo> info = headerInfo;
+        if (info == null) {
+            info = new Memo<MessageHeaderInfo>(readMessageHeaderInfo());
+            headerInfo = info;
+        }
+        return info.value;
+    }
+
+    /**
+     * Reads header information from the {@link #source}
+     * 
+     * @return header information, null if message has no Message-ID
+     */
+    private MessageHeaderInfo readMessageHeaderInfo() {
         MessageHeaderInfo headerInfo = null;
         try {
             Map<String, String> registry = new HashMap<String, String>();
@@ -388,14 +881,31 @@ public class JavaMailGmailMessage extends GmailMessage {
             multipart.addBodyPart(attachementPart);
         } catch (Exception e) {
             throw new GmailException("Failed to add attachement", e);
+        } finally {
+            contentChanged();
         }
     }
 
+    /**
+     * Gets attachments of the message.
+     * <p>
+     * For a message in an open IMAP folder, the list is made from the 
+     * {@code BODYSTRUCTURE} of the message, including attachments in nested
+     * multiparts, and no attachment data is downloaded until 
+     * {@link GmailAttachment#getData()} is called. 
+     * 
+     * @return list of attachments
+     * @see JavaMailGmailAttachment
+     */
     @Override
     public List<GmailAttachment> getAttachements() {
         List<GmailAttachment> result = new ArrayList<GmailAttachment>(); 
         
         try {
+            if (isImapOpen()) {
+                addAttachments(getBodyStructure(), "", result);
+                return result;
+            }
             Object content = this.source.getContent();
              if (content instanceof Multipart) {
                  Multipart multipart = (Multipart)content;
@@ -420,6 +930,9 @@ public class JavaMailGmailMessage extends GmailMessage {
         GmailAttachment result = null;
         
         try {
+            if (isImapOpen()) {
+                return getAttachment(String.valueOf(partIndex + 1));
+            }
             Object content = this.source.getContent();
              if (content instanceof Multipart) {
                  Multipart multipart = (Multipart)content;
@@ -433,11 +946,191 @@ public class JavaMailGmailMessage extends GmailMessage {
              else {
                  throw new GmailException("Failed to get attachement with partIndex :" + partIndex);
              }
+        } catch (GmailException e) {
+            throw e;
         } catch (Exception e) {
             throw new GmailException("Failed to get attachement with partIndex :" + partIndex, e);
         }
         
         return result;
     }
-    
+
+    @Override
+    public GmailAttachment getAttachment(final String partPath) {
+        if (!isImapOpen()) {
+            final int dot = partPath.indexOf('.');
+            if (dot != -1) {
+                throw new GmailException("Nested attachments can only be "
+                        + "read from an open IMAP folder: " + partPath);
+            }
+            final int index;
+            try {
+                index = Integer.parseInt(partPath) - 1;
+            } catch (final NumberFormatException e) {
+                throw new GmailException("Invalid part path " + partPath, e);
+            }
+            return getAttachment(index);
+        }
+        try {
+            BODYSTRUCTURE part = getBodyStructure();
+            for (final String index : partPath.split("\\.")) {
+                final int i = Integer.parseInt(index) - 1;
+                if (!part.isMulti() || i < 0 || i >= part.bodies.length) {
+                    throw new GmailException("Message has no part " 
+                            + partPath);
+                }
+                part = part.bodies[i];
+            }
+            return isAttachment(part) ? toAttachment(part, partPath) : null;
+        } catch (final GmailException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new GmailException("Failed to get attachement " 
+                    + partPath, e);
+        }
+    }
+
+    /**
+     * Gets {@link #attachmentCache}
+     * 
+     * @return cache of attachment data, can be null
+     * @since 0.5
+     */
+    public ImapAttachmentCache getAttachmentCache() {
+        return attachmentCache;
+    }
+
+    /**
+     * Sets {@link #attachmentCache}. Attachments listed after this are read
+     * from the cache, and downloaded into it when they are not there. 
+     * Requires the {@code X-GM-EXT-1} extension for the Gmail message id.
+     * 
+     * @param attachmentCache cache of attachment data, null for none
+     * @since 0.5
+     */
+    public void setAttachmentCache(final ImapAttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
+    /**
+     * Tells if the message is in an open IMAP folder, so its parts can be 
+     * fetched separately
+     * 
+     * @return true if message parts can be fetched
+     */
+    private boolean isImapOpen() {
+        if (!(source instanceof IMAPMessage)) {
+            return false;
+        }
+        final Folder folder = source.getFolder();
+        return folder != null && folder.isOpen();
+    }
+
+    /**
+     * Gets the IMAP {@code BODYSTRUCTURE} of the message, fetching it once
+     * 
+     * @return body structure
+     * @throws MessagingException if fetch fails
+     */
+    private BODYSTRUCTURE getBodyStructure() throws MessagingException {
+        BODYSTRUCTURE result = structure;
+        if (result == null) {
+            result = ImapCommands.fetchBodyStructure(source.getFolder(), 
+                    source.getMessageNumber());
+            if (result == null) {
+                throw new MessagingException("No BODYSTRUCTURE for message "
+                        + source.getMessageNumber());
+            }
+            structure = result;
+        }
+        return result;
+    }
+
+    /**
+     * Adds attachments of a part and its subparts, depth first
+     * 
+     * @param part part to look in
+     * @param section IMAP section of the part, empty for the message
+     * @param result list to add to
+     * @throws Exception if part is malformed
+     */
+    private void addAttachments(final BODYSTRUCTURE part, final String section,
+            final List<GmailAttachment> result) throws Exception {
+        if (part.isMulti()) {
+            for (int i = 0; i < part.bodies.length; i++) {
+                addAttachments(part.bodies[i], section.length() == 0 
+                        ? String.valueOf(i + 1) : section + "." + (i + 1), 
+                        result);
+            }
+        } else if (isAttachment(part)) {
+            result.add(toAttachment(part, 
+                    section.length() == 0 ? "1" : section));
+        }
+    }
+
+    /**
+     * Tells if a part is an attachment
+     * 
+     * @param part body structure of the part
+     * @return true if part has attachment disposition
+     */
+    private static boolean isAttachment(final BODYSTRUCTURE part) {
+        return !part.isMulti() 
+                && Part.ATTACHMENT.equalsIgnoreCase(part.disposition);
+    }
+
+    /**
+     * Creates an attachment that will fetch its data when it is read
+     * 
+     * @param part body structure of the part
+     * @param section IMAP section of the part
+     * @return attachment
+     * @throws Exception if file name cannot be decoded
+     */
+    private GmailAttachment toAttachment(final BODYSTRUCTURE part, 
+            final String section) throws Exception {
+        String fileName = part.dParams == null 
+                ? null : part.dParams.get("filename");
+        if (fileName == null && part.cParams != null) {
+            fileName = part.cParams.get("name");
+        }
+        if (fileName != null) {
+            fileName = MimeUtility.decodeText(fileName);
+        }
+        final String contentType = new ContentType(part.type, part.subtype, 
+                part.cParams).toString();
+        ImapAttachmentCache cache = attachmentCache;
+        long gmailId = -1;
+        if (cache != null) {
+            try {
+                gmailId = getGmailMessageId();
+            } catch (final GmailException e) {
+                log.debug("No Gmail message id, not caching attachments", e);
+                cache = null;
+            }
+        }
+        return new JavaMailGmailAttachment((IMAPMessage) source, getUid(), 
+                section, fileName, contentType, part.size, part.encoding, 
+                cache, gmailId);
+    }
+
+    /**
+     * Remembered value of a field that can be null
+     */
+    private static final class Memo<T> {
+
+        /**
+         * The value, can be null
+         */
+        final T value;
+
+        /**
+         * Constructor
+         *
+         * @param value value to remember
+         */
+        Memo(final T value) {
+            this.value = value;
+        }
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * {@link ImapMessageCache} that keeps entries in memory up to a total 
+ * size, dropping the least recently used ones first.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     client.setMessageCache(new MemoryImapMessageCache(64 * 1024 * 1024));
+ * </pre></blockquote></p>
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class MemoryImapMessageCache implements ImapMessageCache {
+
+    /**
+     * Entries, least recently used first
+     */
+    private final LinkedHashMap<String, byte[]> entries = 
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * Maximum total size of values in bytes
+     */
+    private final long maxSize;
+
+    /**
+     * Total size of values in bytes
+     */
+    private long size;
+
+    /**
+     * Constructor with the size limit
+     *
+     * @param maxSize maximum total size of values in bytes
+     * @throws GmailException if size is not positive
+     */
+    public MemoryImapMessageCache(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new GmailException("MemoryImapMessageCache max size must "
+                    + "be positive");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets {@link #size}
+     *
+     * @return total size of values in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the number of entries
+     *
+     * @return number of entries
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    public synchronized byte[] get(final String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(final String key, final byte[] value) {
+        if (value.length > maxSize) {
+            remove(key);
+            return;
+        }
+        final byte[] old = entries.put(key, value);
+        if (old != null) {
+            size -= old.length;
+        }
+        size += value.length;
+        final Iterator<Map.Entry<String, byte[]>> it = 
+                entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Map.Entry<String, byte[]> eldest = it.next();
+            size -= eldest.getValue().length;
+            it.remove();
+        }
+    }
+
+    public synchronized void remove(final String key) {
+        final byte[] old = entries.remove(key);
+        if (old != null) {
+            size -= old.length;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link ImapSyncStateStore} that keeps the state in memory only, for 
+ * pollers that do a full sync after every restart.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class MemoryImapSyncStateStore implements ImapSyncStateStore {
+
+    /**
+     * Saved states by key
+     */
+    private final Map<String, ImapSyncState> states = 
+            new HashMap<String, ImapSyncState>();
+
+    public synchronized ImapSyncState load(final String key) {
+        return states.get(key);
+    }
+
+    public synchronized void save(final String key, final ImapSyncState state) {
+        states.put(key, state);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import java.util.EventListener;
+
+import com.googlecode.gmail4j.GmailMessageList;
+
+/**
+ * Listener of messages pushed by the server to 
+ * {@link ImapGmailClient#addNewMessageListener(NewMessageListener)}.
+ * <p>
+ * Listeners are called on the JavaMail event thread, one at a time. Message
+ * attributes in the client's fetch profile are already fetched, other 
+ * attributes are read on demand, which briefly interrupts IMAP IDLE.
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public interface NewMessageListener extends EventListener {
+
+    /**
+     * Called when new messages arrive to the watched folder
+     *
+     * @param messages new messages
+     */
+    void messagesArrived(GmailMessageList messages);
+}
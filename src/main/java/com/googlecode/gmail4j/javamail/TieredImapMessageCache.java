@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2008-2012 Tomas Varaneckas
+ * http://www.varaneckas.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.googlecode.gmail4j.javamail;
+
+import com.googlecode.gmail4j.GmailException;
+
+/**
+ * {@link ImapMessageCache} made of a fast cache in front of a larger one,
+ * usually a {@link MemoryImapMessageCache} in front of a 
+ * {@link FileImapMessageCache}. Entries are written to both, and entries
+ * found in the second one only are copied into the first one.
+ * <p>
+ * Example:
+ * <p><blockquote><pre>
+ *     FileImapMessageCache disk = new FileImapMessageCache(
+ *             new File("messages"), 1024L * 1024 * 1024);
+ *     client.setMessageCache(new TieredImapMessageCache(
+ *             new MemoryImapMessageCache(64 * 1024 * 1024), disk));
+ *     //on shutdown
+ *     disk.close();
+ * </pre></blockquote></p>
+ *
+ * @author Tomas Varaneckas &lt;tomas.varaneckas@gmail.com&gt;
+ * @since 0.5
+ */
+public class TieredImapMessageCache implements ImapMessageCache {
+
+    /**
+     * Cache that is looked up first
+     */
+    private final ImapMessageCache first;
+
+    /**
+     * Cache that is looked up when {@link #first} has no entry
+     */
+    private final ImapMessageCache second;
+
+    /**
+     * Constructor with both tiers
+     *
+     * @param first cache that is looked up first
+     * @param second cache that is looked up next
+     * @throws GmailException if a tier is missing
+     */
+    public TieredImapMessageCache(final ImapMessageCache first, 
+            final ImapMessageCache second) {
+        if (first == null || second == null) {
+            throw new GmailException("TieredImapMessageCache requires two "
+                    + "caches");
+        }
+        this.first = first;
+        this.second = second;
+    }
+
+    public byte[] get(final String key) {
+        byte[] value = first.get(key);
+        if (value == null) {
+            value = second.get(key);
+            if (value != null) {
+                first.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public void put(final String key, final byte[] value) {
+        second.put(key, value);
+        first.put(key, value);
+    }
+
+    public void remove(final String key) {
+        first.remove(key);
+        second.remove(key);
+    }
+}
@@ -36,4 +36,10 @@ public class Constants {
     public static final String MESSAGE_IN_REPLY_TO = "In-Reply-To";
     public static final String MESSAGE_REFERENCES = "References";
     public static final int PREVIEW_LENGTH = 80;
+    // bytes of the first text part fetched from IMAP for a preview
+    public static final int PREVIEW_FETCH_SIZE = 2048;
+    // bytes of an attachment fetched from IMAP per request
+    public static final int ATTACHMENT_FETCH_SIZE = 65536;
+    // gmail limit of simultaneous IMAP connections per account
+    public static final int GMAIL_MAX_IMAP_CONNECTIONS = 10;
 }
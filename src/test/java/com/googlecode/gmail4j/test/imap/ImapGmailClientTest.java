@@ -16,16 +16,36 @@
  */
 package com.googlecode.gmail4j.test.imap;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,12 +57,31 @@ import com.googlecode.gmail4j.GmailClient;
 import com.googlecode.gmail4j.GmailConnection;
 import com.googlecode.gmail4j.GmailException;
 import com.googlecode.gmail4j.GmailMessage;
+import com.googlecode.gmail4j.GmailMessageFilter;
+import com.googlecode.gmail4j.GmailMessageIndex;
+import com.googlecode.gmail4j.GmailMessageList;
 import com.googlecode.gmail4j.auth.Credentials;
 import com.googlecode.gmail4j.http.ProxyAware;
+import com.googlecode.gmail4j.javamail.AttachmentDownloadListener;
+import com.googlecode.gmail4j.javamail.FileImapMessageCache;
+import com.googlecode.gmail4j.javamail.GmailFetchProfileItem;
+import com.googlecode.gmail4j.javamail.ImapAttachmentCache;
+import com.googlecode.gmail4j.javamail.ImapAttachmentDownloader;
+import com.googlecode.gmail4j.javamail.ImapConnectionPool;
+import com.googlecode.gmail4j.javamail.ImapFolderCache;
 import com.googlecode.gmail4j.javamail.ImapGmailClient;
 import com.googlecode.gmail4j.javamail.ImapGmailConnection;
 import com.googlecode.gmail4j.javamail.ImapGmailLabel;
+import com.googlecode.gmail4j.javamail.ImapMessageIterator;
+import com.googlecode.gmail4j.javamail.ImapSearchQuery;
+import com.googlecode.gmail4j.javamail.ImapSyncResult;
+import com.googlecode.gmail4j.javamail.ImapSyncStateStore;
+import com.googlecode.gmail4j.javamail.JavaMailGmailAttachment;
 import com.googlecode.gmail4j.javamail.JavaMailGmailMessage;
+import com.googlecode.gmail4j.javamail.MemoryImapMessageCache;
+import com.googlecode.gmail4j.javamail.MemoryImapSyncStateStore;
+import com.googlecode.gmail4j.javamail.NewMessageListener;
+import com.googlecode.gmail4j.javamail.TieredImapMessageCache;
 import com.googlecode.gmail4j.test.TestConfigurer;
 import com.googlecode.gmail4j.util.Constants;
 
@@ -684,4 +723,1214 @@ public class ImapGmailClientTest {
             client.disconnect();
         }
     }
+
+    /**
+     * Tests reuse of a single IMAP store in persistent store mode
+     */
+    @Test
+    public void testPersistentStore() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            connection.setPersistentStore(true);
+            client.setConnection(connection);
+            final Store store = connection.openGmailStore();
+            client.getUnreadMessages();
+            client.getUnreadMessages();
+            assertSame("Store is reused", store, connection.openGmailStore());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests marking of many messages as read with one command
+     */
+    @Test
+    public void testMarkAsReadBatch() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            client.markAsUnread(new int[] {1, 2});
+            final List<GmailMessage> messages = client.getUnreadMessages();
+            if (messages.size() > 0) {
+                final int[] numbers = new int[messages.size()];
+                for (int i = 0; i < numbers.length; i++) {
+                    numbers[i] = messages.get(i).getMessageNumber();
+                }
+                log.debug("Starting to mark " + numbers.length 
+                        + " messages as read.");
+                client.markAsRead(numbers);
+                log.debug("Finished marking messages as read.");
+            }
+            assertTrue("All messages are marked as read.", 
+                    client.getUnreadMessages().isEmpty());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that a message can be found and marked by UID
+     */
+    @Test
+    public void testMarkAsReadByUid() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            client.markAsUnread(1);
+            final List<GmailMessage> messages = client.getUnreadMessages();
+            assertTrue("There are unread messages", !messages.isEmpty());
+            final JavaMailGmailMessage message = 
+                    (JavaMailGmailMessage) messages.get(0);
+            final long uid = message.getUid();
+            assertEquals("UID validity matches", message.getUidValidity(),
+                    client.getUidValidity());
+            log.debug("Marking message with UID " + uid + " as read.");
+            client.markAsReadByUid(new long[] {uid});
+            final JavaMailGmailMessage read = 
+                    (JavaMailGmailMessage) client.getMessageByUid(uid);
+            assertEquals("Same message is found by UID", uid, read.getUid());
+            assertTrue("Message is marked as read", 
+                    read.getMessage().isSet(Flags.Flag.SEEN));
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that the second sync reports only changes
+     */
+    @Test
+    public void testSync() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final ImapSyncStateStore state = new MemoryImapSyncStateStore();
+            final ImapSyncResult first = client.sync(state);
+            assertTrue("First sync is full", first.isFullSync());
+            log.debug("Synced to " + first.getState());
+            final ImapSyncResult second = client.sync(state);
+            assertTrue("Second sync is incremental", !second.isFullSync());
+            assertTrue("Nothing arrived in sent mail", 
+                    second.getNewMessages().isEmpty());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that a message sent to self is pushed to the listener
+     */
+    @Test
+    public void testNewMessageListener() {
+        final ImapGmailClient client = new ImapGmailClient();
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final CountDownLatch arrived = new CountDownLatch(1);
+            client.addNewMessageListener(new NewMessageListener() {
+                public void messagesArrived(final GmailMessageList messages) {
+                    log.debug("Pushed " + messages.size() + " messages");
+                    arrived.countDown();
+                }
+            });
+            // give IDLE time to start
+            Thread.sleep(5000);
+            final GmailMessage msg = new JavaMailGmailMessage();
+            msg.setSubject("Test IDLE subject");
+            msg.setContentText("Test IDLE content");
+            msg.addTo(new EmailAddress(conf.getGmailCredentials().getUsername()));
+            client.send(msg);
+            assertTrue("New message was pushed", 
+                    arrived.await(2, TimeUnit.MINUTES));
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests retrieval of messages by a compound query
+     */
+    @Test
+    public void testGetMessagesByQuery() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            log.debug("Getting messages by compound query");
+            client.setConnection(connection);
+            final ImapSearchQuery query = ImapSearchQuery
+                    .where(GmailClient.EmailSearchStrategy.SUBJECT, "Test mail subject")
+                    .and(GmailClient.EmailSearchStrategy.DATE_GT, "2009-01-01 00:00:00")
+                    .and(ImapSearchQuery.not(
+                            GmailClient.EmailSearchStrategy.SUBJECT, "IDLE"));
+            final List<GmailMessage> messages = client.getMessagesBy(query);
+            for (GmailMessage message : messages) {
+                log.debug(message);
+                assertTrue("Subject matches", 
+                        message.getSubject().contains("Test mail subject"));
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests retrieval of messages by Gmail query syntax
+     */
+    @Test
+    public void testSearchRaw() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            log.debug("Getting messages by X-GM-RAW query");
+            client.setConnection(connection);
+            final long[] uids = client.searchRawUids(
+                    "subject:\"Test mail subject\"");
+            final List<GmailMessage> messages = client.searchRaw(
+                    "subject:\"Test mail subject\"");
+            assertEquals("Same messages are found", uids.length, messages.size());
+            for (GmailMessage message : messages) {
+                log.debug(message);
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that Gmail message id is the same in different folders
+     */
+    @Test
+    public void testGmailMessageId() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailClient allMail = new ImapGmailClient(ImapGmailLabel.ALL_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            allMail.setConnection(connection);
+            final FetchProfile profile = new FetchProfile();
+            profile.add(FetchProfile.Item.ENVELOPE);
+            profile.add(GmailFetchProfileItem.MSGID);
+            profile.add(GmailFetchProfileItem.THRID);
+            profile.add(GmailFetchProfileItem.LABELS);
+            final List<GmailMessage> sent = client.getMessagesBy(
+                    GmailClient.EmailSearchStrategy.SUBJECT, 
+                    "Test mail subject", profile);
+            assertTrue("There are sent messages", !sent.isEmpty());
+            final JavaMailGmailMessage message = (JavaMailGmailMessage) sent.get(0);
+            log.debug("Message " + message.getGmailMessageId() + " of thread "
+                    + message.getGmailThreadId() + " has labels "
+                    + message.getGmailLabels());
+            final long[] uids = allMail.searchRawUids(
+                    "rfc822msgid:" + message.getMessageHeaderInfo().getMessageId());
+            assertEquals("Message is in All Mail once", 1, uids.length);
+            final JavaMailGmailMessage same = 
+                    (JavaMailGmailMessage) allMail.getMessageByUid(uids[0]);
+            assertEquals("Gmail message id is the same", 
+                    message.getGmailMessageId(), same.getGmailMessageId());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests adding and removing of Gmail labels
+     */
+    @Test
+    public void testAddRemoveLabels() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final long[] found = client.searchRawUids(
+                    "subject:\"Test mail subject\"");
+            assertTrue("There are sent messages", found.length > 0);
+            final long[] uids = new long[] {found[0]};
+            final String important = ImapGmailLabel.IMPORTANT.getGmailLabel();
+            client.addLabels(uids, important);
+            assertTrue("Label is added", ((JavaMailGmailMessage) client
+                    .getMessageByUid(uids[0])).getGmailLabels().contains(important));
+            client.removeLabels(uids, important);
+            assertTrue("Label is removed", !((JavaMailGmailMessage) client
+                    .getMessageByUid(uids[0])).getGmailLabels().contains(important));
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testMoveToByUid() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.ALL_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final long[] found = client.searchRawUids(
+                    "subject:\"Test mail subject\" -in:inbox");
+            assertTrue("There are archived messages", found.length > 0);
+            final long[] uids = new long[] {found[0]};
+            final String inbox = ImapGmailLabel.INBOX.getGmailLabel();
+            client.moveToByUid(ImapGmailLabel.INBOX, uids);
+            assertTrue("Message is moved to inbox", ((JavaMailGmailMessage) client
+                    .getMessageByUid(uids[0])).getGmailLabels().contains(inbox));
+            client.removeLabels(uids, inbox);
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testIterateMessagesBy() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final ImapSearchQuery query = ImapSearchQuery.where(
+                    GmailClient.EmailSearchStrategy.SUBJECT, "Test mail subject");
+            final ImapMessageIterator it = client.iterateMessagesBy(query, 
+                    client.getFetchProfile(), 2);
+            int count = 0;
+            try {
+                while (it.hasNext()) {
+                    assertNotNull("Message has a subject", it.next().getSubject());
+                    count++;
+                }
+            } finally {
+                it.close();
+            }
+            assertEquals("All matches are iterated", it.getTotalCount(), count);
+            final GmailMessageList page = client.getMessagesPage(query, 0, 2);
+            assertTrue("Page is limited", page.size() <= 2);
+            assertEquals("Page has first matches", Math.min(2, count), page.size());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    @Test
+    public void testMessageListLookups() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final GmailMessageList messages = client.getMessagesBy(
+                    GmailClient.EmailSearchStrategy.SUBJECT, "Test mail subject");
+            assertTrue("There are sent messages", messages.size() > 0);
+            final int last = messages.size() - 1;
+            final GmailMessage message = messages.get(last);
+            assertEquals("Message is found by number", last, messages
+                    .indexOfMessageNumber(message.getMessageNumber()));
+            assertEquals("Message is found by UID", last, messages.indexOfUid(
+                    ((JavaMailGmailMessage) message).getUid()));
+            assertEquals("UIDs are listed", messages.size(), 
+                    messages.getUids().length);
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that messages without a folder have no UID in the list
+     */
+    @Test
+    public void testMessageListUidOfNewMessage() {
+        final GmailMessageList messages = new GmailMessageList();
+        messages.add(new JavaMailGmailMessage());
+        assertEquals("New message has no UID", -1, messages.getUid(0));
+        assertEquals("UIDs are listed", -1, messages.getUids()[0]);
+        assertEquals("New message is not found by UID", -1, 
+                messages.indexOfUid(1));
+    }
+
+    /**
+     * Tests that parallel filtering gives the same result as sequential
+     */
+    @Test
+    public void testParallelFilterMessagesBy() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final GmailMessageList messages = client.getMessagesBy(
+                    GmailClient.EmailSearchStrategy.KEYWORD, "Unicode");
+            final GmailMessageList parallel = messages.filterMessagesBy(
+                    GmailClient.EmailSearchStrategy.KEYWORD, "ąžuolėlį", executor);
+            final GmailMessageList sequential = messages.filterMessagesBy(
+                    GmailClient.EmailSearchStrategy.KEYWORD, "ąžuolėlį");
+            assertEquals("Parallel filtering keeps order", sequential, parallel);
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests filtering with a compiled, reusable filter
+     */
+    @Test
+    public void testCompiledFilter() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final GmailMessageList messages = client.getMessagesBy(
+                    GmailClient.EmailSearchStrategy.KEYWORD, "Unicode");
+            final GmailMessageFilter filter = GmailMessageFilter.compile(
+                    GmailClient.EmailSearchStrategy.KEYWORD, "ąžuolėlį");
+            assertEquals("Compiled filter matches like strategy", 
+                    messages.filterMessagesBy(
+                            GmailClient.EmailSearchStrategy.KEYWORD, "ąžuolėlį"),
+                    messages.filterMessagesBy(filter));
+            assertTrue("Filter and its negation match nothing", messages
+                    .filterMessagesBy(filter.and(GmailMessageFilter.not(filter)))
+                    .isEmpty());
+            assertEquals("Filter or its negation match everything", messages,
+                    messages.filterMessagesBy(filter.or(GmailMessageFilter.not(filter))));
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that queries answered by the index match plain filtering
+     */
+    @Test
+    public void testMessageIndex() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final GmailMessageList messages = client.getMessagesBy(
+                    GmailClient.EmailSearchStrategy.SUBJECT, "Test mail subject");
+            assertTrue("There are sent messages", messages.size() > 0);
+            final String to = messages.get(0).getTo().get(0).getEmail();
+            final GmailMessageList scanned = messages.filterMessagesBy(
+                    GmailMessageFilter.compile(GmailClient.EmailSearchStrategy.TO, to));
+            final GmailMessageIndex index = messages.buildIndex();
+            assertEquals("Index finds the same messages", scanned, 
+                    messages.filterMessagesBy(GmailClient.EmailSearchStrategy.TO, to));
+            final Date sent = messages.get(0).getSendDate();
+            assertTrue("Index finds messages by date", index.findBetween(sent, 
+                    new Date(sent.getTime() + 1)).contains(messages.get(0)));
+            messages.remove(0);
+            assertTrue("Index is out of date after change", !index.isCurrent());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that parsed fields are remembered and reset by setters
+     */
+    @Test
+    public void testMessageFieldCache() {
+        final JavaMailGmailMessage message = new JavaMailGmailMessage();
+        message.setFrom(new EmailAddress("me@example.com"));
+        message.setSubject("First");
+        message.addTo(new EmailAddress("j.smith@example.com"));
+        message.setContentText("Content");
+        assertEquals("First", message.getSubject());
+        assertSame("Recipients are read once", message.getTo(), message.getTo());
+        assertEquals("Content", message.getPreview());
+        assertTrue(message.toString().contains("First"));
+        message.setSubject("Second");
+        message.addTo(new EmailAddress("a.smith@example.com"));
+        message.setContentText("Changed");
+        assertEquals("Subject is reset", "Second", message.getSubject());
+        assertEquals("Recipients are reset", 2, message.getTo().size());
+        assertEquals("Preview is reset", "Changed", message.getPreview());
+        assertTrue("toString is reset", message.toString().contains("Second"));
+    }
+
+    /**
+     * Tests that preview is made from a partial fetch of the first text part
+     */
+    @Test
+    public void testPartialPreview() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final long[] uids = client.searchRawUids("subject:\"Test mail subject\"");
+            assertTrue("There are sent messages", uids.length > 0);
+            final String preview = client.getMessageByUid(uids[0]).getPreview();
+            assertNotNull("Preview is fetched", preview);
+            assertTrue("Preview is short", 
+                    preview.length() <= Constants.PREVIEW_LENGTH);
+            final String text = client.getMessageByUid(uids[0]).getContentText();
+            assertTrue("Preview is the start of content", 
+                    text.startsWith(preview.endsWith("...") 
+                            ? preview.substring(0, preview.length() - 3) : preview));
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests listing attachments from the body structure and reading them
+     * by part path
+     */
+    @Test
+    public void testAttachmentStructure() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final long[] uids = client.searchRawUids("subject:\"" 
+                    + TEST_MAIL_WITH_ATTACHEMENTS_SUBJECT + "\"");
+            assertTrue("There are messages with attachments", uids.length > 0);
+            final GmailMessage message = client.getMessageByUid(uids[0]);
+            final List<GmailAttachment> attachments = message.getAttachements();
+            assertEquals("Both attachments are listed", 2, attachments.size());
+            for (final GmailAttachment attachment : attachments) {
+                log.debug(attachment.toString());
+                assertTrue("Attachment is lazy", 
+                        attachment instanceof JavaMailGmailAttachment);
+                assertTrue("Size is known", attachment.getSize() > 0);
+                assertNotNull("Part path is known", attachment.getPartPath());
+                final GmailAttachment byPath = message.getAttachment(
+                        attachment.getPartPath());
+                assertEquals("Same attachment by path", 
+                        attachment.getFileName(), byPath.getFileName());
+                final InputStream in = attachment.getData();
+                try {
+                    assertTrue("Data is read", IOUtils.toByteArray(in).length > 0);
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests transfer of attachments to a file, and resuming the transfer
+     */
+    @Test
+    public void testAttachmentTransfer() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final long[] uids = client.searchRawUids("subject:\"" 
+                    + TEST_MAIL_WITH_ATTACHEMENTS_SUBJECT + "\"");
+            assertTrue("There are messages with attachments", uids.length > 0);
+            final GmailMessage message = client.getMessageByUid(uids[0]);
+            for (final GmailAttachment attachment : message.getAttachements()) {
+                final byte[] expected = IOUtils.toByteArray(attachment.getData());
+                final File file = File.createTempFile("gmail4j", ".tmp");
+                try {
+                    assertEquals("All bytes are written", expected.length, 
+                            attachment.transferTo(file));
+                    assertTrue("Same data", Arrays.equals(expected, 
+                            FileUtils.readFileToByteArray(file)));
+                    final RandomAccessFile partial = new RandomAccessFile(file, "rw");
+                    partial.setLength(expected.length / 2);
+                    partial.close();
+                    assertEquals("Rest of bytes is written", 
+                            expected.length - expected.length / 2, 
+                            attachment.transferTo(file, true));
+                    assertTrue("Same data after resume", Arrays.equals(expected, 
+                            FileUtils.readFileToByteArray(file)));
+                } finally {
+                    file.delete();
+                }
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests parallel download of attachments over pooled connections
+     */
+    @Test
+    public void testAttachmentDownloader() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+        ImapConnectionPool pool = null;
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            pool = new ImapConnectionPool(connection, 0, 2);
+            final long[] uids = client.searchRawUids("subject:\"" 
+                    + TEST_MAIL_WITH_ATTACHEMENTS_SUBJECT + "\"");
+            assertTrue("There are messages with attachments", uids.length > 0);
+            final List<GmailAttachment> attachments = 
+                    client.getMessageByUid(uids[0]).getAttachements();
+            final AtomicInteger completed = new AtomicInteger();
+            final ImapAttachmentDownloader downloader = 
+                    new ImapAttachmentDownloader(pool);
+            downloader.addListener(new AttachmentDownloadListener() {
+                public void downloadProgress(final GmailAttachment attachment,
+                        final long bytesWritten) {
+                    log.debug(attachment.getFileName() + ": " + bytesWritten);
+                }
+                public void downloadCompleted(final GmailAttachment attachment,
+                        final File file) {
+                    completed.incrementAndGet();
+                }
+                public void downloadFailed(final GmailAttachment attachment,
+                        final File file, final Exception error) {
+                    log.error("Download failed: " + attachment, error);
+                }
+            });
+            final File dir = File.createTempFile("gmail4j", "");
+            dir.delete();
+            dir.mkdir();
+            try {
+                final Map<GmailAttachment, File> files = 
+                        downloader.download(attachments, dir);
+                assertEquals("All attachments are downloaded", 
+                        attachments.size(), files.size());
+                assertEquals("Listener is notified", attachments.size(), 
+                        completed.get());
+                assertEquals("Statistics count attachments", 
+                        attachments.size(), downloader.getPartsCompleted());
+                for (final GmailAttachment attachment : attachments) {
+                    assertTrue("Same data", Arrays.equals(
+                            IOUtils.toByteArray(attachment.getData()),
+                            FileUtils.readFileToByteArray(files.get(attachment))));
+                }
+                assertTrue("Throughput is measured", 
+                        downloader.getBytesTransferred() > 0);
+                log.debug("Throughput: " + downloader.getThroughput() + " B/s");
+            } finally {
+                FileUtils.deleteDirectory(dir);
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests deduplication, eviction and persistence of the attachment cache
+     */
+    @Test
+    public void testAttachmentCache() throws Exception {
+        final File dir = File.createTempFile("gmail4j", "");
+        dir.delete();
+        try {
+            final byte[] logo = new byte[1000];
+            final byte[] pdf = new byte[1500];
+            Arrays.fill(logo, (byte) 1);
+            Arrays.fill(pdf, (byte) 2);
+            ImapAttachmentCache cache = new ImapAttachmentCache(dir, 2000);
+            final File first = cache.put(1, "2", new ByteArrayInputStream(logo));
+            final File second = cache.put(2, "1.2", new ByteArrayInputStream(logo));
+            assertEquals("Same content is stored once", first, second);
+            assertEquals("One content", 1, cache.getContentCount());
+            assertEquals("Size of one content", logo.length, cache.getSize());
+            assertEquals("Found by message and part", first, cache.get(2, "1.2"));
+            assertEquals("Unknown part is not found", null, cache.get(2, "2"));
+
+            cache = new ImapAttachmentCache(dir, 2000);
+            assertEquals("Index is restored", first, cache.get(1, "2"));
+            assertTrue("Data is restored", Arrays.equals(logo, 
+                    FileUtils.readFileToByteArray(cache.get(2, "1.2"))));
+
+            cache.put(3, "2", new ByteArrayInputStream(pdf));
+            assertEquals("Least recently used content is evicted", 
+                    null, cache.get(1, "2"));
+            assertEquals("All its parts are evicted", null, cache.get(2, "1.2"));
+            assertTrue("New content is kept", Arrays.equals(pdf, 
+                    FileUtils.readFileToByteArray(cache.get(3, "2"))));
+            assertEquals("Size is within limit", pdf.length, cache.getSize());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Tests that messages read by UID are served from the message cache
+     */
+    @Test
+    public void testCachedMessagesByUid() {
+        final ImapGmailClient client = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final MemoryImapMessageCache cache = 
+                    new MemoryImapMessageCache(16 * 1024 * 1024);
+            client.setMessageCache(cache);
+            final long[] uids = client.searchRawUids("subject:\"Test mail subject\"");
+            assertTrue("There are sent messages", uids.length > 0);
+            final GmailMessage downloaded = client.getMessageByUid(uids[0]);
+            assertEquals("Message is cached", 1, cache.getCount());
+            final JavaMailGmailMessage cached = 
+                    (JavaMailGmailMessage) client.getMessageByUid(uids[0]);
+            assertEquals("Same message", downloaded.getSubject(), 
+                    cached.getSubject());
+            assertEquals("UID is kept", uids[0], cached.getUid());
+            client.markAsReadByUid(new long[] {uids[0]});
+            assertTrue("Cached flags follow the client", 
+                    ((JavaMailGmailMessage) client.getMessageByUid(uids[0]))
+                            .getMessage().isSet(Flags.Flag.SEEN));
+
+            final ImapGmailClient other = new ImapGmailClient(ImapGmailLabel.SENT_MAIL);
+            other.setConnection(connection);
+            other.markAsUnreadByUid(new long[] {uids[0]});
+            assertTrue("Flags changed by another client are refreshed", 
+                    !((JavaMailGmailMessage) client.getMessageByUid(uids[0]))
+                            .getMessage().isSet(Flags.Flag.SEEN));
+            assertEquals("Missing UIDs are skipped", 1, client.getMessagesByUid(
+                    new long[] {uids[0], Integer.MAX_VALUE}).size());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests eviction and persistence of message cache tiers
+     */
+    @Test
+    public void testMessageCache() throws Exception {
+        final File dir = File.createTempFile("gmail4j", "");
+        dir.delete();
+        final byte[] a = new byte[100];
+        final byte[] b = new byte[100];
+        final byte[] c = new byte[100];
+        Arrays.fill(a, (byte) 'a');
+        Arrays.fill(b, (byte) 'b');
+        Arrays.fill(c, (byte) 'c');
+        final MemoryImapMessageCache memory = new MemoryImapMessageCache(250);
+        memory.put("a", a);
+        memory.put("b", b);
+        memory.get("a");
+        memory.put("c", c);
+        assertEquals("Least recently used message is evicted", 
+                null, memory.get("b"));
+        assertTrue("Recently used message is kept", 
+                Arrays.equals(a, memory.get("a")));
+        assertEquals("Size is within limit", 200, memory.getSize());
+
+        FileImapMessageCache disk = new FileImapMessageCache(dir, 300, 100);
+        try {
+            disk.put("a", a);
+            disk.put("b", b);
+            disk.put("c", c);
+            assertEquals("Oldest segment is evicted", null, disk.get("a"));
+            assertTrue("Newer messages are kept", 
+                    Arrays.equals(b, disk.get("b")));
+            disk.remove("b");
+            assertEquals("Removed message is gone", null, disk.get("b"));
+            disk.close();
+
+            disk = new FileImapMessageCache(dir, 300, 100);
+            assertEquals("Removal is restored", null, disk.get("b"));
+            assertTrue("Message is restored", Arrays.equals(c, disk.get("c")));
+            assertEquals("One message", 1, disk.getCount());
+
+            final MemoryImapMessageCache first = new MemoryImapMessageCache(1000);
+            final TieredImapMessageCache tiered = 
+                    new TieredImapMessageCache(first, disk);
+            assertTrue("Read through to disk", 
+                    Arrays.equals(c, tiered.get("c")));
+            assertTrue("Promoted to memory", Arrays.equals(c, first.get("c")));
+            tiered.put("a", a);
+            assertTrue("Written to disk", Arrays.equals(a, disk.get("a")));
+        } finally {
+            disk.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Tests that pooled connections are reused and borrowing times out 
+     * when all are in use
+     */
+    @Test
+    public void testConnectionPoolBorrowReturn() {
+        final ImapGmailConnection connection = new ImapGmailConnection();
+        ImapConnectionPool pool = null;
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            pool = new ImapConnectionPool(connection, 0, 2);
+            pool.setMaxWait(500);
+            final ImapGmailConnection first = pool.borrowConnection();
+            final ImapGmailConnection second = pool.borrowConnection();
+            assertEquals("Two connections are borrowed", 2, pool.getActiveCount());
+            try {
+                pool.borrowConnection();
+                fail("Borrowing from an exhausted pool must time out");
+            } catch (final GmailException e) {
+                log.debug("Timed out as expected: " + e.getMessage());
+            }
+            pool.returnConnection(first);
+            assertEquals("Returned connection is idle", 1, pool.getIdleCount());
+            assertSame("Idle connection is reused", first, pool.borrowConnection());
+            pool.returnConnection(first);
+            pool.invalidateConnection(second);
+            assertEquals("Nothing is borrowed", 0, pool.getActiveCount());
+            assertEquals("Invalidated connection is not kept", 
+                    1, pool.getIdleCount());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Tests that idle connections are closed after the idle time and that
+     * the minimum number of connections is kept open
+     */
+    @Test
+    public void testConnectionPoolIdleEviction() {
+        final ImapGmailConnection connection = new ImapGmailConnection();
+        ImapConnectionPool pool = null;
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            pool = new ImapConnectionPool(connection, 1, 2);
+            pool.setMaxIdleTime(1);
+            pool.evictIdleConnections();
+            assertEquals("Minimum connections are opened", 1, pool.getIdleCount());
+            final ImapGmailConnection first = pool.borrowConnection();
+            final ImapGmailConnection second = pool.borrowConnection();
+            pool.returnConnection(first);
+            pool.returnConnection(second);
+            Thread.sleep(50);
+            pool.evictIdleConnections();
+            assertEquals("Idle connections above minimum are closed", 
+                    1, pool.getIdleCount());
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Tests that pools of the same account share the IMAP connection limit
+     */
+    @Test
+    public void testConnectionPoolAccountLimit() {
+        final ImapGmailConnection connection = new ImapGmailConnection();
+        ImapConnectionPool first = null;
+        ImapConnectionPool second = null;
+        final List<ImapGmailConnection> borrowed = 
+                new ArrayList<ImapGmailConnection>();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            final Credentials credentials = connection.getLoginCredentials();
+            final int available = ImapConnectionPool.getAvailableSockets(credentials);
+            first = new ImapConnectionPool(connection, 0, 
+                    available / ImapConnectionPool.SOCKETS_PER_CONNECTION);
+            second = new ImapConnectionPool(connection, 0, 1);
+            second.setMaxWait(500);
+            for (int i = 0; i < first.getMaxSize(); i++) {
+                borrowed.add(first.borrowConnection());
+            }
+            assertTrue("Every connection counts its folder", 
+                    ImapConnectionPool.getAvailableSockets(credentials) 
+                            < ImapConnectionPool.SOCKETS_PER_CONNECTION);
+            try {
+                second.borrowConnection();
+                fail("Second pool must not exceed the account limit");
+            } catch (final GmailException e) {
+                log.debug("Timed out as expected: " + e.getMessage());
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            if (first != null) {
+                for (final ImapGmailConnection conn : borrowed) {
+                    first.returnConnection(conn);
+                }
+                first.close();
+            }
+            if (second != null) {
+                second.close();
+            }
+        }
+    }
+
+    /**
+     * Tests folder reuse, writes on a folder opened for reading, expunge 
+     * deferred while the folder is in use, and folders held by returned 
+     * messages
+     */
+    @Test
+    public void testFolderCache() {
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            connection.setPersistentStore(true);
+            final Store store = connection.openGmailStore();
+            final ImapFolderCache cache = connection.getFolderCache();
+            final String inbox = ImapGmailLabel.INBOX.getName();
+            final Folder reader = cache.getFolder(store, inbox, Folder.READ_ONLY);
+            assertSame("Open folder is reused", reader, 
+                    cache.getFolder(store, inbox, Folder.READ_ONLY));
+            cache.releaseFolder(reader);
+            assertTrue("Folder is still in use", cache.isInUse(inbox));
+
+            final Folder writer = cache.getFolder(store, inbox, 
+                    Folder.READ_WRITE);
+            assertSame("Folder is not reopened for writing", reader, writer);
+            assertEquals("Folder is writable", Folder.READ_WRITE, 
+                    writer.getMode());
+            cache.markForExpunge(inbox);
+            cache.releaseFolder(writer);
+            cache.flush();
+            assertTrue("Expunge waits while folder is in use", 
+                    cache.isPendingExpunge(inbox));
+            cache.releaseFolder(reader);
+            cache.flush();
+            assertTrue("Expunged when released", !cache.isPendingExpunge(inbox));
+
+            cache.setMaxOpenFolders(1);
+            final Folder held = cache.getFolder(store, inbox, Folder.READ_ONLY);
+            final List<Object> messages = new ArrayList<Object>();
+            messages.add(new Object());
+            cache.holdFolder(held, messages);
+            cache.releaseFolder(held);
+            final Folder other = cache.getFolder(store, 
+                    ImapGmailLabel.SENT_MAIL.getName(), Folder.READ_ONLY);
+            cache.releaseFolder(other);
+            assertTrue("Held folder is not evicted", held.isOpen());
+            assertTrue("Folder is held", cache.isHeld(inbox));
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests that the default profile and the profiles given to the search
+     * overloads are fetched with the messages, so prefetched attributes can
+     * be read after the folder is closed
+     */
+    @Test
+    public void testFetchProfileOverloads() {
+        final ImapGmailClient client = new ImapGmailClient();
+        final ImapGmailConnection connection = new ImapGmailConnection();
+
+        try {
+            connection.setLoginCredentials(conf.getGmailCredentials());
+            if (conf.useProxy()) {
+                connection.setProxy(conf.getProxyHost(), conf.getProxyPort());
+                connection.setProxyCredentials(conf.getProxyCredentials());
+            }
+            client.setConnection(connection);
+            final FetchProfile standard = client.getFetchProfile();
+            assertTrue("Envelope is prefetched by default", 
+                    standard.contains(FetchProfile.Item.ENVELOPE));
+            assertTrue("Flags are prefetched by default", 
+                    standard.contains(FetchProfile.Item.FLAGS));
+            assertTrue("UID is prefetched by default", 
+                    standard.contains(UIDFolder.FetchProfileItem.UID));
+
+            final JavaMailGmailMessage prefetched = (JavaMailGmailMessage) 
+                    client.getMessagesBy(GmailClient.EmailSearchStrategy.SUBJECT, 
+                            "Test mail subject").get(0);
+            final JavaMailGmailMessage lazy = (JavaMailGmailMessage) 
+                    client.getMessagesBy(GmailClient.EmailSearchStrategy.SUBJECT, 
+                            "Test mail subject", null).get(0);
+            prefetched.getMessage().getFolder().close(false);
+            lazy.getMessage().getFolder().close(false);
+            assertNotNull("Default profile prefetches the envelope", 
+                    prefetched.getSubject());
+            // throws if flags were not prefetched
+            prefetched.getMessage().isSet(Flags.Flag.SEEN);
+            try {
+                lazy.getSubject();
+                fail("Envelope must not be fetched without a profile");
+            } catch (final GmailException e) {
+                log.debug("Not prefetched as expected: " + e.getMessage());
+            }
+
+            final FetchProfile flags = new FetchProfile();
+            flags.add(FetchProfile.Item.FLAGS);
+            final List<GmailMessage> unread = client.getUnreadMessages(flags);
+            final List<GmailMessage> priority = 
+                    client.getPriorityMessages(true, flags);
+            if (!unread.isEmpty()) {
+                ((JavaMailGmailMessage) unread.get(0)).getMessage()
+                        .getFolder().close(false);
+            }
+            if (!priority.isEmpty()) {
+                ((JavaMailGmailMessage) priority.get(0)).getMessage()
+                        .getFolder().close(false);
+            }
+            for (final GmailMessage message : unread) {
+                assertTrue("Prefetched flags of unread messages", 
+                        !((JavaMailGmailMessage) message).getMessage()
+                                .isSet(Flags.Flag.SEEN));
+            }
+            for (final GmailMessage message : priority) {
+                assertTrue("Prefetched flags of priority messages", 
+                        !((JavaMailGmailMessage) message).getMessage()
+                                .isSet(Flags.Flag.SEEN));
+            }
+        } catch (final Exception e) {
+            log.error("Test Failed", e);
+            fail("Caught exception: " + e.getMessage());
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Tests that opened attachment data outlives eviction and that added 
+     * data is journaled instead of rewriting the index
+     */
+    @Test
+    public void testAttachmentCacheReadDuringEviction() throws Exception {
+        final File dir = File.createTempFile("gmail4j", "");
+        dir.delete();
+        try {
+            final byte[] logo = new byte[1000];
+            final byte[] pdf = new byte[1500];
+            Arrays.fill(logo, (byte) 1);
+            Arrays.fill(pdf, (byte) 2);
+            ImapAttachmentCache cache = new ImapAttachmentCache(dir, 2000);
+            final File data = cache.put(1, "2", new ByteArrayInputStream(logo));
+            assertTrue("Index is not rewritten on put", 
+                    !new File(dir, "index.properties").exists());
+            assertTrue("Put is journaled", 
+                    new File(dir, "index.journal").isFile());
+
+            final InputStream in = cache.open(1, "2");
+            cache.put(2, "2", new ByteArrayInputStream(pdf));
+            assertEquals("Opened content is evicted", null, cache.get(1, "2"));
+            assertTrue("Opened data file is kept", data.isFile());
+            assertTrue("Opened data is readable", 
+                    Arrays.equals(logo, IOUtils.toByteArray(in)));
+            in.close();
+            assertTrue("Data file is deleted when closed", !data.exists());
+
+            final File temp = new File(dir, "put1234.tmp");
+            final File orphan = new File(dir, data.getName());
+            FileUtils.writeByteArrayToFile(temp, logo);
+            FileUtils.writeByteArrayToFile(orphan, logo);
+            cache = new ImapAttachmentCache(dir, 2000);
+            assertTrue("Temporary file is deleted on load", !temp.exists());
+            assertTrue("Unindexed data file is deleted on load", 
+                    !orphan.exists());
+            assertTrue("Journal is compacted into the index", 
+                    !new File(dir, "index.journal").exists());
+            assertEquals("Eviction is restored", null, cache.get(1, "2"));
+            assertTrue("Journaled data is restored", Arrays.equals(pdf, 
+                    IOUtils.toByteArray(cache.open(2, "2"))));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
 }